@@ -19,6 +19,7 @@ public class Client {
         double deposit, withdraw, transfer;
         int monitorDuration;
 
+        refreshShardMap();          // find the servers of a sharded bank, if the server at HOST_NAME is one of them
         System.out.printf("%20s\n","Welcome to CZ4013 Bank!");
         while (!end) {
             try {
@@ -115,7 +116,7 @@ public class Client {
                     case ADD_OBSERVERS_FOR_MONITORING_CODE: {
                         System.out.println("Monitoring updates...");
                         monitorDuration = readMonitorDuration();
-                        monitorUpdates(monitorDuration);
+                        monitorUpdates(monitorDuration, readMonitorSubscription());
                         System.out.println("Monitoring ended");
                         break;
                     }
@@ -138,6 +139,14 @@ public class Client {
                     System.out.println("Error: Wrong name/password entered");
                 } else if (Objects.equals(serverError.getMessage(), INSUFFICIENT)){
                     System.out.println("Error: Insufficient amount in account");
+                } else if (Objects.equals(serverError.getMessage(), MISDIRECTED)){
+                    System.out.println("Error: Account is held by another server, transfers between servers are not supported");
+                } else if (Objects.equals(serverError.getMessage(), BAD_REQUEST)){
+                    System.out.println("Error: Request refused by the server, e.g. a transfer to the same account");
+                } else if (Objects.equals(serverError.getMessage(), STORE_FULL)){
+                    System.out.println("Error: The server cannot open any more accounts");
+                } else if (Objects.equals(serverError.getMessage(), TIMED_OUT)){
+                    System.out.println("Error: No reply from the server, please try again later");
                 }
             }
             catch (Exception e) {
@@ -1,185 +1,667 @@
 import objects.Observer;
-import objects.Account;
-import objects.LruReplyHistory;
+import objects.ObserverDispatcher;
+import objects.AccountStore;
+import objects.BufferPool;
+import objects.ConcurrentAccountMap;
+import objects.ReplyCache;
+import objects.ShardMap;
+import objects.Subscribers;
+import objects.Subscription;
+import persistence.MappedAccountTable;
+import persistence.MutationLog;
+import persistence.ReplicationBackup;
+import persistence.ReplicationPrimary;
+import persistence.Snapshot;
+import persistence.Snapshotter;
+import persistence.WriteAheadLog;
 
-import java.net.DatagramPacket;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static functionalities.ServerInterface.*;
+import static utils.BinaryMarshallFunctions.getSubscription;
+import static utils.BinaryMarshallFunctions.isBinaryRequest;
+import static utils.BinaryMarshallFunctions.marshallStatusBinary;
+import static utils.BinaryMarshallFunctions.toByteArray;
 import static utils.Constants.*;
 import static utils.MarshallFunctions.marshall;
+import static utils.SocketFunctions.openServerChannel;
 import static utils.SocketFunctions.receiveRequest;
 import static utils.SocketFunctions.sendReply;
-import static utils.UtilityFunctions.byteArrayToInt;
 import static utils.UtilityFunctions.failMessage;
 
 public class Server {
-    public static Map<Integer, Account> accMapping = new HashMap<>();                                               // maintain a mapping of account numbers to all accounts currently on the server
-    private static final LruReplyHistory<String, byte[]> replyHistory = new LruReplyHistory<>(LRU_CACHE_SIZE);      // maintain a history of replies base on the least recently used scheme
-    private static final Map<String, Observer> observerMap = new HashMap<>();                                       // maintain a mapping of clients who are currently monitoring the server for updates
-
-    public static void main(String[] args) {
-        System.out.println("Server started on port " + SERVER_PORT_NUMBER);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        byte[] reply = new byte[BUFFER_SIZE];
-        byte[] data;
-        DatagramPacket request = null;
-        InetAddress clientIp;
-        int clientPort;
-        String messageID, clientIdentifier;
+    public static AccountStore accMapping = openAccountStore();                                                     // maintain a mapping of account numbers to all accounts currently on the server
+    private static final ReplyCache replyCache = new ReplyCache(REPLY_CACHE_SEGMENTS, REPLY_CACHE_BYTES, REPLY_CACHE_TTL_MILLIS, REPLY_WINDOW);     // replies kept for retransmitted requests, in a window per client
+    private static final Subscribers subscribers = new Subscribers();                                               // clients currently monitoring the server for updates, indexed by the accounts they watch
+    private static final ObserverDispatcher observers = openObserverDispatcher();                                   // sends the updates to the monitoring clients off the request path
+    private static final BufferPool buffers = new BufferPool(BUFFER_POOL_SIZE, BUFFER_SIZE);                        // receive and reply buffers, reused from request to request
+
+    /**
+     * Starts the server in the mode given as the first argument
+     * "single" handles one request at a time on the main thread
+     * "pool" receives on the main thread and handles requests on a pool of worker threads, the size of the pool can be
+     * given as the second argument
+     * "virtual" receives on the main thread and handles every request on its own virtual thread
+     * "sharded" runs several receive loops, each on its own thread with its own socket bound to the server port and its
+     * own reply history, the number of loops can be given as the second argument
+     * "backup" follows the primary server at the host and replication port given as the second and third arguments, and
+     * takes over from it on the server port given as the fourth argument when it is lost, in the mode and with the
+     * number of threads given after that; run every server of a host from its own directory
+     * "shard" holds the shard of the accounts given as the third argument in the shard map file given as the second,
+     * serving on the port of the shard in the mode and with the number of threads given after that; backups of the
+     * shard connect to that port + 1
+     * The accounts are only kept across restarts, and backups only accepted, if WRITE_AHEAD_LOG is set; the log and the
+     * snapshots are then written to the working directory
+     *
+     * @param args optional server mode followed by the number of worker threads or receive loops
+     * @throws IOException if the server port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : SERVER_MODE;
+        if (BACKUP_MODE.equals(mode)) {
+            followPrimary(new InetSocketAddress(args[1], Integer.parseInt(args[2])), Integer.parseInt(args[3]),
+                    args.length > 4 ? args[4] : SERVER_MODE, args.length > 5 ? Integer.parseInt(args[5]) : 0);
+            return;
+        }
+
+        int port = SERVER_PORT_NUMBER;
+        int threadsIndex = 1;
+        if (ACCOUNT_SHARD_MODE.equals(mode)) {
+            ShardMap shardMap = ShardMap.load(Paths.get(args[1]));
+            int shard = Integer.parseInt(args[2]);
+            setShard(shardMap, shard);
+            port = shardMap.address(shard).getPort();
+            System.out.println("Holding shard " + shard + " of " + shardMap.shards() + ", account numbers "
+                    + shardMap.first(shard) + " to " + (shardMap.end(shard) - 1));
+            mode = args.length > 3 ? args[3] : SERVER_MODE;
+            threadsIndex = 4;
+        }
+
+        if (WRITE_AHEAD_LOG) {
+            long snapshotPosition = Snapshot.load(Paths.get(SNAPSHOT_PATH), accMapping);
+            WriteAheadLog log = openWriteAheadLog(snapshotPosition);
+            setMutationLog(replicate(log, snapshotPosition, port + 1));
+        }
+        serve(mode, args.length > threadsIndex ? Integer.parseInt(args[threadsIndex]) : 0, port);
+    }
+
+    /**
+     * Serves requests on a port in one of the server modes
+     * The counters of the reply cache are printed when the server shuts down
+     *
+     * @param mode the server mode
+     * @param threads the number of worker threads or receive loops, 0 for the default
+     * @param port the UDP port to serve on
+     * @throws IOException if the port cannot be bound
+     */
+    private static void serve(String mode, int threads, int port) throws IOException {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(replyCache)));     // report the hits, misses and evictions
+        switch (mode) {
+            case SINGLE_THREADED_MODE: {
+                DatagramChannel channel = openServerChannel(port);                // bound once, used for every receive and send
+                System.out.println("Server started on port " + port);
+                serveSingleThreaded(channel);
+                break;
+            }
+            case WORKER_POOL_MODE: {
+                DatagramChannel channel = openServerChannel(port);
+                int workers = threads > 0 ? threads : WORKER_THREADS;
+                System.out.println("Server started on port " + port + " with " + workers + " worker threads");
+                serveWithExecutor(channel, Executors.newFixedThreadPool(workers));
+                break;
+            }
+            case VIRTUAL_THREAD_MODE: {
+                DatagramChannel channel = openServerChannel(port);
+                System.out.println("Server started on port " + port + " with a thread per request");
+                serveWithExecutor(channel, newThreadPerRequestExecutor());
+                break;
+            }
+            case SHARDED_MODE: {
+                int loops = threads > 0 ? threads : RECEIVE_LOOPS;
+                System.out.println("Server started on port " + port + " with " + loops + " receive loops");
+                serveSharded(loops, port);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown server mode: " + mode);
+        }
+    }
+
+    /**
+     * Runs as a backup of a primary server until the primary is lost, then takes over from it: continues the log
+     * received from the primary, accepts backups of its own on port + 1 and serves requests
+     *
+     * @param primary address the primary accepts backups on
+     * @param port the UDP port to serve on after taking over
+     * @param mode the server mode after taking over
+     * @param threads the number of worker threads or receive loops, 0 for the default
+     * @throws IOException if the primary cannot be reached or the port cannot be bound
+     */
+    private static void followPrimary(InetSocketAddress primary, int port, String mode, int threads) throws IOException {
+        ReplicationBackup backup = new ReplicationBackup(primary, accMapping, Paths.get(SNAPSHOT_PATH),
+                Paths.get(WRITE_AHEAD_LOG_PATH), GROUP_COMMIT_WINDOW_MICROS, REPLICATION_TIMEOUT_MILLIS);
+        WriteAheadLog log = backup.follow();
+
+        setMutationLog(replicate(log, backup.snapshotPosition(), port + 1));
+        System.out.println("Taking over from primary " + primary + " with " + accMapping.size() + " accounts");
+        serve(mode, threads, port);
+    }
+
+    /**
+     * Receives and handles requests one at a time
+     *
+     * @param channel the server's DatagramChannel
+     */
+    private static void serveSingleThreaded(DatagramChannel channel) {
+        ByteBuffer buffer = buffers.acquire();
 
         //noinspection InfiniteLoopStatement
         while (true) {
-            try {
-                request = receiveRequest(buffer);                                                   // listen for requests from clients
-                assert request != null : "Data from client is null";
-                data = request.getData();                                                           // get the data from the request DatagramPacket
-                clientIp = request.getAddress();                                                    // get the client ip address
-                clientPort = request.getPort();                                                     // get the client port number
-                clientIdentifier = clientPort + clientIp.toString();                                // construct the client identifier
-                messageID = new String(Arrays.copyOfRange(data, 0, MESSAGE_ID_LENGTH));             // retrieve the unique message id
-                System.out.printf("\nmessageID: %s\n", messageID);
-
-                Optional<byte[]> cachedReply = replyHistory.getReply(messageID);    //Check if message reply has already been stored
-
-                int action;
-                // if message reply was cached, and we are using At-Most-Once semantics, tell server to send cached reply
-                if(cachedReply.isPresent() && !AT_LEAST_ONCE){
-                    reply = cachedReply.get();
-                    action = CACHED_REPLY;
-                }else {
-                    action = byteArrayToInt(Arrays.copyOfRange(data, MESSAGE_ID_LENGTH, MESSAGE_INFO_START_INDEX));    // get the action to be taken by the server
+            SocketAddress clientAddress = receiveRequest(channel, buffer);                      // listen for requests from clients
+            if (clientAddress != null)
+                handleRequest(channel, clientAddress, buffer.flip());                         // the request is read in place from the receive buffer
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Receives requests on the calling thread and hands each of them to an executor, either a pool of worker threads or
+     * one that starts a thread per request
+     * Every request is received into its own buffer from the pool, which the worker returns once the request is handled
+     *
+     * @param channel the server's DatagramChannel
+     * @param pool the executor running the requests
+     */
+    private static void serveWithExecutor(DatagramChannel channel, ExecutorService pool) {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            ByteBuffer request = buffers.acquire();
+            SocketAddress clientAddress = receiveRequest(channel, request);                     // listen for requests from clients
+            if (clientAddress == null) {
+                buffers.release(request);
+                continue;
+            }
+            pool.execute(() -> {
+                try {
+                    handleRequest(channel, clientAddress, request.flip());
+                } finally {
+                    buffers.release(request);
                 }
-                byte[] info = Arrays.copyOfRange(data, MESSAGE_INFO_START_INDEX, data.length);                         // get the information sent from the client
+            });
+        }
+    }
 
+    /**
+     * Runs several single threaded receive loops, each with its own socket bound to the server port using SO_REUSEPORT
+     * The kernel always hands the datagrams of one client to the same socket, and the loops share nothing but the
+     * accounts, the reply cache and the monitoring clients
+     *
+     * @param loops number of receive loops
+     * @param port the port the loops share
+     * @throws IOException if the sockets cannot be bound, or SO_REUSEPORT is not supported on this platform
+     */
+    private static void serveSharded(int loops, int port) throws IOException {
+        for (int i = 0; i < loops; i++) {
+            DatagramChannel channel = openServerChannel(port, true);
+            new Thread(() -> serveSingleThreaded(channel), "receive-loop-" + i).start();
+        }
+    }
 
-                // switch statement to select the action to be taken by the server
-                switch (action) {
-                    case ACC_CREATION_CODE: {
-                        System.out.println("Creating account...");
-                        reply = processAccCreation(info, accMapping);
+    /**
+     * Handles one request from a client: runs the action asked for, replies to the client and notifies monitoring clients
+     * With at-most-once semantics a request is only run if the reply cache admits it as new; a retransmission gets the
+     * reply kept, or is dropped if the request is still being run or the client is done with it
+     * The reply is marshalled into a buffer from the pool and sent straight from it
+     * With a write-ahead log, the reply is held back until every change logged so far is on disk, so a client never sees
+     * a change, or a balance including one, that a crash could still undo; the flusher of the log sends it instead
+     * Safe to call from several threads at once
+     *
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the request
+     * @param request ByteBuffer holding the datagram received from the client, from index 0 up to its limit
+     */
+    private static void handleRequest(DatagramChannel channel, SocketAddress clientAddress, ByteBuffer request) {
+        ByteBuffer reply = reserveSequence(buffers.acquire());
+        boolean replyDeferred = false;                                                          // the reply buffer is released once the deferred reply is sent
+        InetAddress clientIp;
+        int clientPort;
+        long clientID = 0, sequence = 0;
+        boolean admitted = false;                                                               // marked as running in the reply cache
+        String clientIdentifier;
+        List<byte[]> updates = Collections.emptyList();                                         // the updates published besides the reply: on the recipient account of a transfer, or on every account of a batch
+        boolean binary = isBinaryRequest(request);                                                 // requests in both wire formats are served side by side
 
-                        if (!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+        try {
+            clientIp = ((InetSocketAddress) clientAddress).getAddress();                        // get the client ip address
+            clientPort = ((InetSocketAddress) clientAddress).getPort();                         // get the client port number
+            clientID = request.getLong(CLIENT_ID_INDEX);                                        // retrieve the unique message id
+            sequence = request.getLong(SEQUENCE_INDEX);
+            log("\nmessageID: ", clientID, sequence);
 
-                        System.out.println("Account created");
-                        break;
-                    }
-                    case ACC_BALANCE_CODE: {
-                        System.out.println("Querying account balance...");
-                        reply = processAccBalanceQuery(info, accMapping);
+            int action;
+            int admission = AT_LEAST_ONCE ? ReplyCache.NEW
+                    : replyCache.admit(clientID, sequence, binary ? request.getLong(BINARY_ACKNOWLEDGED_INDEX) : 0);
+            Optional<byte[]> cachedReply = admission == ReplyCache.DUPLICATE ? replyCache.getReply(clientID, sequence) : Optional.empty();
+            if (admission == ReplyCache.NEW) {
+                admitted = !AT_LEAST_ONCE;
+                action = binary ? request.get(BINARY_ACTION_INDEX) : request.getInt(MESSAGE_ID_LENGTH);            // get the action to be taken by the server
+            } else if (cachedReply.isPresent()) {
+                // if message reply was cached, and we are using At-Most-Once semantics, tell server to send cached reply
+                reply.put(cachedReply.get());
+                action = CACHED_REPLY;
+            } else {
+                log(admission == ReplyCache.TOO_OLD ? "Dropping request the client is done with" : "Dropping request still being run");
+                return;
+            }
+            ByteBuffer info = request.position(binary ? BINARY_INFO_START_INDEX : MESSAGE_INFO_START_INDEX);     // the information sent from the client, read in place
 
-                        if (!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
 
-                        System.out.println("Account balance queried");
-                        break;
-                    }
-                    case ACC_CLOSING_CODE: {
-                        System.out.println("Closing account...");
-                        reply = processAccClosure(info, accMapping);
+            // switch statement to select the action to be taken by the server
+            switch (action) {
+                case ACC_CREATION_CODE: {
+                    log("Creating account...");
+                    if (binary)
+                        processAccCreationBinary(info, reply, accMapping);
+                    else
+                        processAccCreation(info, reply, accMapping);
 
-                        if (!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if (!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Account closed");
-                        break;
-                    }
-                    case DEPOSIT_MONEY_CODE:
-                    {
-                        System.out.println("Depositing money...");
-                        reply = depositMoney(info, accMapping);
+                    log("Account created");
+                    break;
+                }
+                case ACC_BALANCE_CODE: {
+                    log("Querying account balance...");
+                    if (binary)
+                        processAccBalanceQueryBinary(info, reply, accMapping);
+                    else
+                        processAccBalanceQuery(info, reply, accMapping);
 
-                        if(!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if (!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Money deposited");
-                        break;
-                    }
-                    case WITHDRAW_MONEY_CODE:
-                    {
-                        System.out.println("Withdrawing money...");
-                        reply = withdrawMoney(info, accMapping);
+                    log("Account balance queried");
+                    break;
+                }
+                case ACC_CLOSING_CODE: {
+                    log("Closing account...");
+                    if (binary)
+                        processAccClosureBinary(info, reply, accMapping);
+                    else
+                        processAccClosure(info, reply, accMapping);
 
-                        if(!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if (!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Money withdrawn");
-                        break;
-                    }
-                    case TRANSFER_MONEY_CODE:
-                    {
-                        System.out.println("Transferring money...");
-                        reply = transferMoney(info, accMapping);
+                    log("Account closed");
+                    break;
+                }
+                case DEPOSIT_MONEY_CODE:
+                {
+                    log("Depositing money...");
+                    if (binary)
+                        depositMoneyBinary(info, reply, accMapping);
+                    else
+                        depositMoney(info, reply, accMapping);
 
-                        if(!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Money transferred");
-                        break;
-                    }
-                    case CACHED_REPLY: {
-                        System.out.println("Sending reply from cache");
-                        break;
-                    }
-                    case ADD_OBSERVERS_FOR_MONITORING_CODE: {
-                        System.out.println("Adding client " + clientIdentifier + " for monitoring...");
-                        Observer o = new Observer(clientIp, clientPort);
-                        reply = addObserver(clientIdentifier, o, observerMap);
+                    log("Money deposited");
+                    break;
+                }
+                case WITHDRAW_MONEY_CODE:
+                {
+                    log("Withdrawing money...");
+                    if (binary)
+                        withdrawMoneyBinary(info, reply, accMapping);
+                    else
+                        withdrawMoney(info, reply, accMapping);
 
-                        if(!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Client " + clientIdentifier + " is now monitoring server...");
-                        break;
+                    log("Money withdrawn");
+                    break;
+                }
+                case TRANSFER_MONEY_CODE:
+                {
+                    log("Transferring money...");
+                    ByteBuffer recipient = monitored() ? buffers.acquire() : null;
+                    try {
+                        if (binary)
+                            transferMoneyBinary(info, reply, recipient, accMapping);
+                        else
+                            transferMoney(info, reply, recipient, accMapping);
+                        if (recipient != null)
+                            updates = Collections.singletonList(toByteArray(recipient));
+                    } finally {
+                        if (recipient != null)
+                            buffers.release(recipient);
                     }
-                    case REMOVE_OBSERVERS_FROM_MONITORING_CODE: {
-                        System.out.println("Removing client " + clientIdentifier + " from monitoring");
-                        reply = removeObserver(clientIdentifier, observerMap);
 
-                        if(!AT_LEAST_ONCE)
-                            replyHistory.putReply(messageID, reply);
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
 
-                        System.out.println("Client " + clientIdentifier + " is now removed from monitoring server...");
-                        break;
-                    }
+                    log("Money transferred");
+                    break;
                 }
+                case SHARD_MAP_CODE: {
+                    log("Sending shard map...");
+                    if (!binary)
+                        throw new IllegalArgumentException(BAD_REQUEST);                            // the shard map is only sent in the binary format
+                    processShardMapQueryBinary(reply);
 
-                //Simulate server reply failure
-                //We assume all messages fail to send when simulating packet loss
-                if(!failMessage("server")) {
-                    sendReply(request, reply, SERVER_FAILURE_PROB);      // send to client the reply message
-                    if (action != ADD_OBSERVERS_FOR_MONITORING_CODE && action != REMOVE_OBSERVERS_FROM_MONITORING_CODE) {
-                        for (Map.Entry<String, Observer> entry : observerMap.entrySet()) {
-                            entry.getValue().notify(reply);     // notify any monitoring clients
-                        }
-                    }
-                }else{
-                    System.out.println("Message was not sent to simulate packet loss.");
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
+
+                    log("Shard map sent");
+                    break;
                 }
-            } catch (IllegalArgumentException validationError) {
-                if (Objects.equals(validationError.getMessage(), NOT_FOUND)) {
-                    assert request != null;
-                    sendReply(request, marshall(NOT_FOUND), SERVER_FAILURE_PROB);
-                    System.out.println("Error: Account Number not found");
-                } else if (Objects.equals(validationError.getMessage(), UNAUTHORIZED)) {
-                    assert request != null;
-                    sendReply(request, marshall(UNAUTHORIZED), SERVER_FAILURE_PROB);
-                    System.out.println("Error: Wrong name/password entered.");
-                } else if (Objects.equals(validationError.getMessage(), INSUFFICIENT)) {
-                    assert request != null;
-                    sendReply(request, marshall(INSUFFICIENT), SERVER_FAILURE_PROB);
-                    System.out.println("Error: Insufficient amount in account.");
+                case BATCH_CODE: {
+                    log("Running batch...");
+                    if (!binary)
+                        throw new IllegalArgumentException(BAD_REQUEST);                            // batches are only sent in the binary format
+                    List<byte[]> batchUpdates = monitored() ? new ArrayList<>() : null;
+                    processBatchBinary(info, reply, batchUpdates, accMapping);
+                    if (batchUpdates != null)
+                        updates = batchUpdates;
+
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
+
+                    log("Batch run");
+                    break;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                case CACHED_REPLY: {
+                    log("Sending reply from cache");
+                    break;
+                }
+                case ADD_OBSERVERS_FOR_MONITORING_CODE: {
+                    clientIdentifier = clientPort + clientIp.toString();                        // construct the client identifier
+                    log("Adding client " + clientIdentifier + " for monitoring...");
+                    Observer o = new Observer(clientIp, clientPort, binary ? getSubscription(info) : Subscription.ALL);
+                    reply.put(binary ? addObserverBinary(clientIdentifier, o, subscribers) : addObserver(clientIdentifier, o, subscribers));
+
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
+
+                    log("Client " + clientIdentifier + " is now monitoring server...");
+                    break;
+                }
+                case REMOVE_OBSERVERS_FROM_MONITORING_CODE: {
+                    clientIdentifier = clientPort + clientIp.toString();
+                    log("Removing client " + clientIdentifier + " from monitoring");
+                    reply.put(binary ? removeObserverBinary(clientIdentifier, subscribers) : removeObserver(clientIdentifier, subscribers));
+
+                    if(!AT_LEAST_ONCE)
+                        replyCache.putReply(clientID, sequence, toByteArray(reply));
+
+                    log("Client " + clientIdentifier + " is now removed from monitoring server...");
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException(BAD_REQUEST);                             // not an action the server knows
             }
-            finally {
-                // reset buffers
-                reply = new byte[BUFFER_SIZE];
-                buffer = new byte[BUFFER_SIZE];
+
+            replyDeferred = reply(channel, clientAddress, reply, sequence, updates, action);
+        } catch (IllegalArgumentException | BufferOverflowException validationError) {      // a reply too long to be sent is answered as a malformed request
+            String statusCode = validationError.getMessage();
+            if (Objects.equals(statusCode, NOT_FOUND)) {
+                log("Error: Account Number not found");
+            } else if (Objects.equals(statusCode, UNAUTHORIZED)) {
+                log("Error: Wrong name/password entered.");
+            } else if (Objects.equals(statusCode, INSUFFICIENT)) {
+                log("Error: Insufficient amount in account.");
+            } else if (Objects.equals(statusCode, MISDIRECTED)) {
+                log("Error: Account is held by another shard.");
+            } else if (Objects.equals(statusCode, STORE_FULL)) {
+                log("Error: Account store is full.");
+            } else {
+                log("Error: Malformed request, " + statusCode);
+                statusCode = BAD_REQUEST;
+            }
+
+            // the error is kept in the reply cache like any other reply, so a retransmitted request gets the same error
+            // instead of being run again
+            reserveSequence(reply.clear());
+            reply.put(binary ? marshallStatusBinary(statusCode) : marshall(statusCode));
+            if (!AT_LEAST_ONCE)
+                replyCache.putReply(clientID, sequence, toByteArray(reply));
+            replyDeferred = reply(channel, clientAddress, reply, sequence, Collections.emptyList(), ERROR_REPLY);
+        } catch (Exception e) {
+            if (admitted)
+                replyCache.abandon(clientID, sequence);
+            e.printStackTrace();
+        } finally {
+            if (!replyDeferred)
+                buffers.release(reply);
+        }
+    }
+
+    /**
+     * Keeps the room for the sequence number sent after the reply free, so a reply too long to be sent fails while it is
+     * being marshalled instead of when the sequence number is appended
+     *
+     * @param reply the cleared reply buffer
+     * @return the reply buffer, its limit REPLY_SEQUENCE_LENGTH bytes short of its capacity
+     */
+    private static ByteBuffer reserveSequence(ByteBuffer reply) {
+        return reply.limit(reply.capacity() - REPLY_SEQUENCE_LENGTH);
+    }
+
+    /**
+     * Sends the reply to the client, unless its loss is simulated, once every change logged so far is on disk
+     *
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the request
+     * @param reply ByteBuffer holding the reply, up to its position
+     * @param sequence sequence number of the request
+     * @param updates the updates published besides the reply
+     * @param action the action taken by the server
+     * @return true if the reply is sent later by the flusher of the log, which then releases the reply buffer
+     */
+    private static boolean reply(DatagramChannel channel, SocketAddress clientAddress, ByteBuffer reply, long sequence, List<byte[]> updates, int action) {
+        //Simulate server reply failure
+        //We assume all messages fail to send when simulating packet loss
+        if (failMessage("server")) {
+            log("Message was not sent to simulate packet loss.");
+            return false;
+        }
+
+        reply.flip();
+        MutationLog mutationLog = getMutationLog();
+        long logPosition = mutationLog.appendedPosition();
+        if (mutationLog.isDurable(logPosition)) {
+            sendAndNotify(channel, clientAddress, reply, sequence, updates, action);
+            return false;
+        }
+        mutationLog.whenDurable(logPosition, () -> {
+            try {
+                sendAndNotify(channel, clientAddress, reply, sequence, updates, action);
+            } finally {
+                buffers.release(reply);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sends the reply to the client and hands the update to the dispatcher, which notifies the monitoring clients
+     * subscribed to it on its own thread
+     * Only actions on an account are published, and a reply sent again from the cache is not published a second time
+     *
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the request
+     * @param reply ByteBuffer holding the reply, from its position up to its limit
+     * @param sequence sequence number of the request, sent after the reply but not to the monitoring clients
+     * @param updates the updates published besides the reply: on the recipient account of a transfer, or on every
+     *                account of a batch, whose reply itself is not published
+     * @param action the action taken by the server
+     */
+    private static void sendAndNotify(DatagramChannel channel, SocketAddress clientAddress, ByteBuffer reply, long sequence, List<byte[]> updates, int action) {
+        sendReply(channel, clientAddress, reply, sequence);      // send to client the reply message
+        if (action == ADD_OBSERVERS_FOR_MONITORING_CODE || action == REMOVE_OBSERVERS_FROM_MONITORING_CODE
+                || action == SHARD_MAP_CODE || action == CACHED_REPLY || action == ERROR_REPLY || !monitored())
+            return;
+        if (action != BATCH_CODE)
+            observers.publish(reply);       // notify any monitoring clients
+        if (!updates.isEmpty())
+            observers.publish(updates);
+    }
+
+    /**
+     * @return true if the updates are to be published, to the multicast group or to the clients in subscribers
+     */
+    private static boolean monitored() {
+        return MONITOR_MULTICAST || !subscribers.isEmpty();
+    }
+
+    /**
+     * Starts the dispatcher thread sending the updates to the clients in subscribers, or to the multicast group if
+     * MONITOR_MULTICAST is set
+     *
+     * @return the dispatcher
+     */
+    private static ObserverDispatcher openObserverDispatcher() {
+        try {
+            return new ObserverDispatcher(subscribers, OBSERVER_BACKLOG, MONITOR_MULTICAST
+                    ? new InetSocketAddress(MONITOR_MULTICAST_GROUP, MONITOR_MULTICAST_PORT) : null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the store holding the accounts: the memory-mapped account table if MAPPED_ACCOUNT_TABLE is set, which is
+     * written to disk when the server shuts down, otherwise a map on the heap
+     *
+     * @return the account store
+     */
+    private static AccountStore openAccountStore() {
+        if (!MAPPED_ACCOUNT_TABLE)
+            return new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, expectedAccounts());
+
+        try {
+            MappedAccountTable table = MappedAccountTable.open(Paths.get(ACCOUNT_TABLE_PATH), INITIAL_ACCOUNT_CAPACITY);
+            System.out.println("Opened account table " + ACCOUNT_TABLE_PATH + " with " + table.size() + " accounts");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            return table;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of accounts the account map should hold without growing: those in the snapshot the server
+     * recovers from, with room to spare, or INITIAL_ACCOUNT_CAPACITY for a new server
+     */
+    private static int expectedAccounts() {
+        try {
+            long accounts = WRITE_AHEAD_LOG ? Snapshot.accounts(Paths.get(SNAPSHOT_PATH)) : 0;
+            return (int) Math.min(Math.max(INITIAL_ACCOUNT_CAPACITY, accounts + accounts / 4), Integer.MAX_VALUE / 2);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the write-ahead log for the changes to come, first applying the changes logged since the snapshot the
+     * accounts were loaded from
+     * The log is closed when the server shuts down so the last batch is forced to disk
+     *
+     * @param snapshotPosition the log position of the snapshot the accounts were loaded from, 0 if there was none
+     * @return the write-ahead log
+     * @throws IOException if the log cannot be read or written
+     */
+    private static WriteAheadLog openWriteAheadLog(long snapshotPosition) throws IOException {
+        long start = System.nanoTime();
+        WriteAheadLog log = WriteAheadLog.open(Paths.get(WRITE_AHEAD_LOG_PATH), snapshotPosition, GROUP_COMMIT_WINDOW_MICROS, accMapping);
+        System.out.println("Recovered " + accMapping.size() + " accounts from " + SNAPSHOT_PATH + " and " + WRITE_AHEAD_LOG_PATH
+                + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return log;
+    }
+
+    /**
+     * Starts taking snapshots in the background and accepting backups, which every change in the log is sent to
+     * Both stop, and the log is closed, when the server shuts down
+     *
+     * @param log the write-ahead log
+     * @param snapshotPosition the log position of the latest snapshot
+     * @param port the TCP port backups connect to
+     * @return the log replies wait on, which waits for the backups as set by REPLICATION_ACK_LEVEL
+     * @throws IOException if the port cannot be bound
+     */
+    private static MutationLog replicate(WriteAheadLog log, long snapshotPosition, int port) throws IOException {
+        Snapshotter snapshotter = new Snapshotter(Paths.get(SNAPSHOT_PATH), accMapping, log, snapshotPosition, SNAPSHOT_LOG_BYTES);
+        ReplicationPrimary replication = new ReplicationPrimary(log, snapshotter, Paths.get(SNAPSHOT_PATH), port,
+                REPLICATION_ACK_LEVEL, REPLICATION_HEARTBEAT_MILLIS, REPLICATION_QUEUE_BATCHES);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                replication.close();
+                snapshotter.close();
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }));
+        return replication;
+    }
+
+    /**
+     * Creates the executor that runs every request on a new virtual thread
+     * Virtual threads are only available from Java 21, which is looked up at runtime so the server still builds for
+     * Java 11; on older runtimes every request gets a new platform thread instead
+     *
+     * @return an executor starting one thread per task
+     */
+    private static ExecutorService newThreadPerRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this Java runtime, using a platform thread per request");
+            return Executors.newCachedThreadPool();
         }
     }
+
+    /**
+     * Prints a line about the request being handled, unless server logging is turned off
+     *
+     * @param message the line to print
+     */
+    private static void log(String message) {
+        if (SERVER_LOGGING)
+            System.out.println(message);
+    }
+
+    /**
+     * Prints the message id of the request being handled, unless server logging is turned off
+     * The line is only put together when it is printed
+     *
+     * @param message the start of the line
+     * @param clientID the client id of the message id
+     * @param sequence the sequence number of the message id
+     */
+    private static void log(String message, long clientID, long sequence) {
+        if (SERVER_LOGGING)
+            System.out.println(message + Long.toHexString(clientID) + "/" + sequence);
+    }
 }
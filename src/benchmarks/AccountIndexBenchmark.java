@@ -0,0 +1,112 @@
+package benchmarks;
+
+import objects.Account;
+import objects.AccountMap;
+import objects.AccountStore;
+import objects.ConcurrentAccountMap;
+import objects.Currency;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static utils.Constants.ACCOUNT_MAP_SEGMENTS;
+import static utils.Constants.AccountCreation;
+
+/**
+ * Compares the memory used per account and the lookup latency of the account index implementations:
+ * HashMap and ConcurrentHashMap with boxed Integer keys against AccountMap and ConcurrentAccountMap
+ * Every entry refers to the same Account object, so only the cost of the index itself is measured
+ *
+ * Needs a large heap for 10M accounts, e.g.
+ * java -Xmx4g -cp out benchmarks.AccountIndexBenchmark 1000000 10000000
+ *
+ * Usage: java benchmarks.AccountIndexBenchmark [numbers of accounts...]
+ */
+public class AccountIndexBenchmark {
+    private static final int LOOKUPS = 10_000_000;
+    private static final Account ACCOUNT = new Account("John Smith", Currency.SGD, "P@ssw0rd", 0, 1000000000, AccountCreation);
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[]{1_000_000, 10_000_000};
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        System.out.printf("%-22s %12s %16s %16s\n", "index", "accounts", "bytes/account", "ns/lookup");
+        for (int accounts : sizes) {
+            SplittableRandom random = new SplittableRandom(accounts);
+            int[] accNumbers = new int[accounts];
+            for (int i = 0; i < accounts; i++)
+                accNumbers[i] = random.nextInt(1000000000, Integer.MAX_VALUE);      // same range as the server uses
+            int[] lookups = new int[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++)
+                lookups[i] = accNumbers[random.nextInt(accounts)];
+
+            runMap("HashMap", new HashMap<>(), accNumbers, lookups);
+            runMap("ConcurrentHashMap", new ConcurrentHashMap<>(), accNumbers, lookups);
+            runStore("AccountMap", new AccountMap(), accNumbers, lookups);
+            runStore("ConcurrentAccountMap", new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, 0), accNumbers, lookups);
+        }
+    }
+
+    private static void runMap(String name, Map<Integer, Account> map, int[] accNumbers, int[] lookups) {
+        long before = usedHeap();
+        for (int accNumber : accNumbers)
+            map.putIfAbsent(accNumber, ACCOUNT);
+        long bytes = usedHeap() - before;
+
+        lookupMap(map, lookups);            // warm up
+        long start = System.nanoTime();
+        int found = lookupMap(map, lookups);
+        long elapsed = System.nanoTime() - start;
+        print(name, accNumbers.length, bytes, elapsed, lookups.length, found);
+    }
+
+    private static void runStore(String name, AccountStore store, int[] accNumbers, int[] lookups) {
+        long before = usedHeap();
+        for (int accNumber : accNumbers)
+            store.putIfAbsent(accNumber, ACCOUNT);
+        long bytes = usedHeap() - before;
+
+        lookupStore(store, lookups);        // warm up
+        long start = System.nanoTime();
+        int found = lookupStore(store, lookups);
+        long elapsed = System.nanoTime() - start;
+        print(name, accNumbers.length, bytes, elapsed, lookups.length, found);
+    }
+
+    private static int lookupMap(Map<Integer, Account> map, int[] lookups) {
+        int found = 0;
+        for (int accNumber : lookups) {
+            if (map.get(accNumber) != null)
+                found++;
+        }
+        return found;
+    }
+
+    private static int lookupStore(AccountStore store, int[] lookups) {
+        int found = 0;
+        for (int accNumber : lookups) {
+            if (store.get(accNumber) != null)
+                found++;
+        }
+        return found;
+    }
+
+    private static void print(String name, int accounts, long bytes, long elapsed, int lookups, int found) {
+        if (found != lookups)
+            throw new IllegalStateException(name + " lost accounts");
+        System.out.printf("%-22s %12d %16.1f %16.1f\n", name, accounts, bytes / (double) accounts, elapsed / (double) lookups);
+    }
+
+    /**
+     * @return bytes of heap in use after a full garbage collection
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
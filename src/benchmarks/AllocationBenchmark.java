@@ -0,0 +1,136 @@
+package benchmarks;
+
+import objects.AccountStore;
+import objects.BufferPool;
+import objects.ConcurrentAccountMap;
+import objects.Currency;
+import objects.Pointer;
+import utils.MessageIDGenerator;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static functionalities.ServerInterface.*;
+import static utils.BinaryMarshallFunctions.*;
+import static utils.Constants.*;
+import static utils.MarshallFunctions.marshall;
+import static utils.MarshallFunctions.unmarshall;
+import static utils.UtilityFunctions.concatWithCopy;
+
+/**
+ * Measures the bytes allocated on the heap to handle one request, in the same way Server.handleRequest does: the
+ * request is received into a buffer from the pool, read in place, run against the accounts and the reply marshalled
+ * into another buffer from the pool
+ * The at-most-once reply history is left out, it keeps a copy of every reply by design
+ * Uses the per thread allocation counter of the HotSpot JVM
+ *
+ * Also serves as a regression check on the hot path: exits with status 1 if any request allocates more than the
+ * given number of bytes
+ *
+ * Usage: java benchmarks.AllocationBenchmark [requests per measurement] [max bytes per request]
+ */
+public class AllocationBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd";
+    private static final MessageIDGenerator ids = new MessageIDGenerator();
+    private static final long MAX_BYTES_PER_REQUEST = 128;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long maxBytes = args.length > 1 ? Long.parseLong(args[1]) : MAX_BYTES_PER_REQUEST;
+        AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, INITIAL_ACCOUNT_CAPACITY);
+        BufferPool buffers = new BufferPool(2, BUFFER_SIZE);
+
+        ByteBuffer reply = buffers.acquire();
+        processAccCreation(ByteBuffer.wrap(concatWithCopy(marshall(NAME), marshall("SGD"), marshall(PASSWORD), marshall("1000.00"))), reply, accMapping);
+        Pointer pointer = new Pointer(0);
+        unmarshall(pointer, reply.array());                 // status code
+        String accNumber = unmarshall(pointer, reply.array());
+        buffers.release(reply);
+
+        byte[] v1Deposit = concatWithCopy(ids.next(), ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(DEPOSIT_MONEY_CODE).array(),
+                marshall(NAME), marshall(accNumber), marshall(PASSWORD), marshall("SGD"), marshall("1.0"));
+        byte[] v1Balance = concatWithCopy(ids.next(), ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_BALANCE_CODE).array(),
+                marshall(accNumber), marshall(PASSWORD));
+
+        ByteBuffer request = newBinaryRequest(ids, DEPOSIT_MONEY_CODE);
+        putString(request, NAME);
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, PASSWORD);
+        putCurrency(request, Currency.SGD);
+        request.putLong(100);
+        byte[] v2Deposit = toByteArray(request);
+        request = newBinaryRequest(ids, ACC_BALANCE_CODE);
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, PASSWORD);
+        byte[] v2Balance = toByteArray(request);
+
+        String[] names = {"v1 deposit", "v1 balance", "v2 deposit", "v2 balance"};
+        byte[][] datagrams = {v1Deposit, v1Balance, v2Deposit, v2Balance};
+        boolean failed = false;
+
+        System.out.printf("%-12s %16s\n", "request", "bytes/request");
+        for (int i = 0; i < datagrams.length; i++) {
+            long bytes = measure(datagrams[i], buffers, accMapping, requests);
+            System.out.printf("%-12s %16d%s\n", names[i], bytes, bytes > maxBytes ? "   above " + maxBytes : "");
+            failed |= bytes > maxBytes;
+        }
+        if (failed)
+            System.exit(1);
+    }
+
+    /**
+     * Handles the same request many times and reports the average number of bytes allocated for each
+     *
+     * @param datagram the request as it would be received
+     * @param buffers the pool of receive and reply buffers
+     * @param accMapping the accounts
+     * @param requests number of times the request is handled
+     * @return bytes allocated per request
+     */
+    private static long measure(byte[] datagram, BufferPool buffers, AccountStore accMapping, int requests) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < requests; i++)         // warm up so the JIT compiler has done its work
+            handle(datagram, buffers, accMapping);
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < requests; i++)
+            handle(datagram, buffers, accMapping);
+        return (threads.getThreadAllocatedBytes(thread) - start) / requests;
+    }
+
+    /**
+     * Receives the datagram into a pooled buffer and handles it as Server.handleRequest does
+     *
+     * @param datagram the request
+     * @param buffers the pool of receive and reply buffers
+     * @param accMapping the accounts
+     */
+    private static void handle(byte[] datagram, BufferPool buffers, AccountStore accMapping) {
+        ByteBuffer request = buffers.acquire();
+        ByteBuffer reply = buffers.acquire();
+        request.put(datagram).flip();
+
+        boolean binary = isBinaryRequest(request);
+        int action = binary ? request.get(BINARY_ACTION_INDEX) : request.getInt(MESSAGE_ID_LENGTH);
+        ByteBuffer info = request.position(binary ? BINARY_INFO_START_INDEX : MESSAGE_INFO_START_INDEX);
+
+        if (action == DEPOSIT_MONEY_CODE) {
+            if (binary)
+                depositMoneyBinary(info, reply, accMapping);
+            else
+                depositMoney(info, reply, accMapping);
+        } else {
+            if (binary)
+                processAccBalanceQueryBinary(info, reply, accMapping);
+            else
+                processAccBalanceQuery(info, reply, accMapping);
+        }
+        reply.flip();
+
+        buffers.release(reply);
+        buffers.release(request);
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import functionalities.AsyncClient;
+import functionalities.ClientInterface;
+import objects.Account;
+import objects.Currency;
+
+import java.util.concurrent.CompletableFuture;
+
+import static utils.Constants.SINGLE_THREADED_MODE;
+
+/**
+ * Compares a batch of deposits made one at a time through ClientInterface with the same batch submitted all at once
+ * through an AsyncClient, which keeps up to REPLY_WINDOW of them in flight
+ * The server is started as a separate process, as in ServerModeBenchmark.
+ *
+ * Usage: java benchmarks.AsyncClientBenchmark [deposits] [server mode]
+ */
+public class AsyncClientBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd1";
+
+    public static void main(String[] args) throws Exception {
+        int deposits = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String mode = args.length > 1 ? args[1] : SINGLE_THREADED_MODE;
+
+        Process server = ServerModeBenchmark.startServer(mode);
+        try (AsyncClient client = new AsyncClient()) {
+            Account account = ClientInterface.createAccount(NAME, Currency.SGD, PASSWORD, "1.00");
+            System.out.printf("%-10s %10s %12s %14s\n", "client", "deposits", "seconds", "deposits/s");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < deposits; i++)
+                ClientInterface.depositMoney(NAME, account.getAccNumber(), PASSWORD, Currency.SGD, 0.01);
+            print("blocking", deposits, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            CompletableFuture<?>[] replies = new CompletableFuture<?>[deposits];
+            for (int i = 0; i < deposits; i++)
+                replies[i] = client.depositMoney(NAME, account.getAccNumber(), PASSWORD, Currency.SGD, 0.01);
+            CompletableFuture.allOf(replies).join();
+            print("async", deposits, System.nanoTime() - start);
+
+            long expected = account.getAccBalance() + 2L * deposits;
+            long balance = ClientInterface.queryAccBalance(account.getAccNumber(), PASSWORD).getAccBalance();
+            System.out.println(client);
+            System.out.println(balance == expected ? "every deposit made once" : "balance " + balance + ", expected " + expected);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void print(String label, int deposits, long nanos) {
+        System.out.printf("%-10s %10d %12.2f %14.0f\n", label, deposits, nanos / 1e9, deposits / (nanos / 1e9));
+    }
+}
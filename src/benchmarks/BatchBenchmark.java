@@ -0,0 +1,121 @@
+package benchmarks;
+
+import functionalities.Batch;
+import functionalities.ClientInterface;
+import functionalities.ServerInterface;
+import objects.Account;
+import objects.AccountMap;
+import objects.BatchResult;
+import objects.Currency;
+import utils.RequestStats;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static utils.BinaryMarshallFunctions.*;
+import static utils.Constants.*;
+import static utils.MarshallFunctions.unmarshallAccountReply;
+import static utils.UtilityFunctions.toMinorUnits;
+
+/**
+ * Compares deposits made one request each through ClientInterface with the same deposits sent as batches through
+ * ClientInterface.sendBatch, which packs as many of them into a request as fit
+ * The server is started as a separate process, as in ServerModeBenchmark. Before that, a batched transfer is run in
+ * this process to check the monitoring updates it publishes.
+ *
+ * Usage: java benchmarks.BatchBenchmark [deposits] [server mode]
+ */
+public class BatchBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd1";
+
+    public static void main(String[] args) throws Exception {
+        int deposits = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String mode = args.length > 1 ? args[1] : SINGLE_THREADED_MODE;
+
+        checkTransferUpdates();
+
+        Process server = ServerModeBenchmark.startServer(mode);
+        try {
+            Account account = ClientInterface.createAccount(NAME, Currency.SGD, PASSWORD, "1.00");
+            System.out.printf("%-10s %10s %12s %14s\n", "client", "deposits", "seconds", "deposits/s");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < deposits; i++)
+                ClientInterface.depositMoney(NAME, account.getAccNumber(), PASSWORD, Currency.SGD, 0.01);
+            print("one each", deposits, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Batch batch = new Batch();
+            for (int i = 0; i < deposits; i++)
+                batch.depositMoney(NAME, account.getAccNumber(), PASSWORD, Currency.SGD, 0.01);
+            List<BatchResult> results = ClientInterface.sendBatch(batch);
+            print("batched", deposits, System.nanoTime() - start);
+
+            checkOversizedOperation(account);
+
+            long failed = results.stream().filter(result -> !result.isOk()).count();
+            long expected = account.getAccBalance() + 2L * deposits;
+            long balance = ClientInterface.queryAccBalance(account.getAccNumber(), PASSWORD).getAccBalance();
+            System.out.println(ClientInterface.transportStats());
+            System.out.println(failed + " batched deposits failed");
+            System.out.println(balance == expected ? "every deposit made once" : "balance " + balance + ", expected " + expected);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Runs a batch holding one transfer straight through ServerInterface, and checks that it publishes exactly one
+     * binary account update for the sender and one for the recipient
+     */
+    private static void checkTransferUpdates() {
+        AccountMap accounts = new AccountMap();
+        accounts.putIfAbsent(FIRST_ACCOUNT_NUMBER, new Account(NAME, Currency.SGD, PASSWORD, 10_000, FIRST_ACCOUNT_NUMBER));
+        accounts.putIfAbsent(FIRST_ACCOUNT_NUMBER + 1, new Account(NAME, Currency.SGD, PASSWORD, 0, FIRST_ACCOUNT_NUMBER + 1));
+
+        ByteBuffer fields = ByteBuffer.allocate(BUFFER_SIZE);
+        putString(fields, NAME);
+        fields.putInt(FIRST_ACCOUNT_NUMBER);
+        putString(fields, PASSWORD);
+        fields.putInt(FIRST_ACCOUNT_NUMBER + 1);
+        putCurrency(fields, Currency.SGD);
+        fields.putLong(toMinorUnits(25.0));
+        fields.flip();
+        ByteBuffer request = ByteBuffer.allocate(BUFFER_SIZE);
+        request.put((byte) TRANSFER_MONEY_CODE).putShort((short) fields.remaining()).put(fields).flip();
+
+        List<byte[]> updates = new ArrayList<>();
+        ServerInterface.processBatchBinary(request, ByteBuffer.allocate(BUFFER_SIZE), updates, accounts);
+
+        List<String> found = new ArrayList<>();
+        for (byte[] update : updates) {
+            Account account = isBinaryReply(update) ? unmarshallAccountReply(update) : null;
+            found.add(account == null ? "malformed" : account.getAccNumber() + " " + account.getAction() + " " + account.getAccBalance());
+        }
+        List<String> expected = List.of(FIRST_ACCOUNT_NUMBER + " " + TransferFundsOut + " 7500",
+                (FIRST_ACCOUNT_NUMBER + 1) + " " + TransferFundsIn + " 2500");
+        System.out.println(found.equals(expected) ? "batched transfer publishes one update per account" : "batched transfer published " + found);
+    }
+
+    /**
+     * Sends a batch holding one operation too long for a request, which should fail without a request being sent
+     *
+     * @param account an account on the server
+     */
+    private static void checkOversizedOperation(Account account) {
+        Batch batch = new Batch();
+        batch.depositMoney("x".repeat(BUFFER_SIZE - 40), account.getAccNumber(), PASSWORD, Currency.SGD, 0.01);
+        RequestStats before = ClientInterface.lastRequestStats();
+        List<BatchResult> results = ClientInterface.sendBatch(batch);
+        boolean sent = ClientInterface.lastRequestStats() != before;
+        System.out.println(!sent && results.size() == 1 && results.get(0).getStatusCode().equals(BAD_REQUEST)
+                ? "oversized operation failed without a request" : "oversized operation: " + results + (sent ? ", request sent" : ""));
+    }
+
+    private static void print(String label, int deposits, long nanos) {
+        System.out.printf("%-10s %10d %12.2f %14.0f\n", label, deposits, nanos / 1e9, deposits / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import objects.AccountStore;
+import objects.ConcurrentAccountMap;
+import objects.Pointer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static functionalities.ServerInterface.*;
+import static utils.Constants.*;
+import static utils.MarshallFunctions.marshall;
+import static utils.MarshallFunctions.unmarshall;
+import static utils.UtilityFunctions.concatWithCopy;
+
+/**
+ * Measures how the request handlers scale with the number of threads running them against the shared account store
+ * Each thread runs a mixed workload of 40% deposits, 20% withdrawals and 40% balance queries on random accounts,
+ * the same work a worker in the "pool" server mode does once a request has been received
+ *
+ * Usage: java benchmarks.ConcurrentStoreBenchmark [number of accounts] [seconds per run]
+ */
+public class ConcurrentStoreBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd";
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+        AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, INITIAL_ACCOUNT_CAPACITY);
+        String[] accNumbers = new String[accounts];
+        byte[] creation = concatWithCopy(marshall(NAME), marshall("SGD"), marshall(PASSWORD), marshall("1000000.00"));
+        ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int i = 0; i < accounts; i++) {
+            processAccCreation(ByteBuffer.wrap(creation), reply.clear(), accMapping);
+            Pointer pointer = new Pointer(0);
+            unmarshall(pointer, reply.array());             // status code
+            accNumbers[i] = unmarshall(pointer, reply.array());
+        }
+
+        /* requests are built up front so only the handlers are measured */
+        ByteBuffer[] deposits = new ByteBuffer[accounts];
+        ByteBuffer[] withdrawals = new ByteBuffer[accounts];
+        ByteBuffer[] queries = new ByteBuffer[accounts];
+        for (int i = 0; i < accounts; i++) {
+            deposits[i] = ByteBuffer.wrap(concatWithCopy(marshall(NAME), marshall(accNumbers[i]), marshall(PASSWORD), marshall("SGD"), marshall("10.0")));
+            withdrawals[i] = ByteBuffer.wrap(concatWithCopy(marshall(NAME), marshall(accNumbers[i]), marshall(PASSWORD), marshall("SGD"), marshall("5.0")));
+            queries[i] = ByteBuffer.wrap(concatWithCopy(marshall(accNumbers[i]), marshall(PASSWORD)));
+        }
+
+        System.out.printf("%8s %14s\n", "threads", "ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            LongAdder operations = new LongAdder();
+            CountDownLatch done = new CountDownLatch(threads);
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+            for (int t = 0; t < threads; t++) {
+                new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    ByteBuffer threadReply = ByteBuffer.allocate(BUFFER_SIZE);
+                    while (System.nanoTime() < end) {
+                        int i = random.nextInt(accounts);
+                        int kind = random.nextInt(10);
+                        threadReply.clear();
+                        if (kind < 4)
+                            depositMoney(deposits[i], threadReply, accMapping);
+                        else if (kind < 6)
+                            withdrawMoney(withdrawals[i], threadReply, accMapping);
+                        else
+                            processAccBalanceQuery(queries[i], threadReply, accMapping);
+                        operations.increment();
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            System.out.printf("%8d %14.0f\n", threads, operations.sum() / (double) seconds);
+        }
+    }
+}
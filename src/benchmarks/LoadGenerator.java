@@ -0,0 +1,367 @@
+package benchmarks;
+
+import functionalities.AsyncClient;
+import objects.Account;
+import objects.Currency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static utils.Constants.TIMED_OUT;
+
+/**
+ * Puts a server under load over UDP and reports the throughput and the distribution of the end to end latency of the
+ * requests, to compare changes to the server on one machine
+ * The requests are made through AsyncClient, so they go through the same marshalling, transport and retransmissions
+ * as those of any client. A population of accounts is opened first, then every request is an operation on a random one
+ * of them, picked from a mix of operation types by weight. Accounts are never closed, so the population stays the same.
+ *
+ * In closed loop mode a number of clients, each with a client id and a socket of its own, keep one request in flight at
+ * a time: the next is sent once the reply to the last arrives, so the load follows the speed of the server.
+ * In open loop mode requests are sent at a fixed rate whatever the server does, spread over OPEN_LOOP_CLIENTS clients.
+ * The latency of a request is measured from when it was due to be sent rather than when it was, so a generator falling
+ * behind the schedule shows in the latencies instead of hiding them.
+ *
+ * Requests sent in the first WARMUP_SECONDS are not counted. The throughput is that of the replies from the end of the
+ * warmup until the last reply, so an overloaded server in open loop mode shows its own rate rather than the one asked
+ * for. Replies with an error status code are counted as replies, and their status codes listed; requests the client
+ * gave up on after MAX_ATTEMPTS are counted as timeouts. The retransmissions of the clients over the whole run are
+ * listed too, as a request sent again keeps those after it waiting for the window of its client.
+ *
+ * Usage: java benchmarks.LoadGenerator closed|open [clients|requests per second] [seconds] [accounts] [mix] [server modes...]
+ * e.g. java -cp out benchmarks.LoadGenerator open 5000 10 1000 query=50,deposit=25,withdraw=15,transfer=10 single virtual
+ * A server mode of - uses the server already listening on HOST_NAME instead of starting one.
+ */
+public class LoadGenerator {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd1";
+    private static final String INITIAL_BALANCE = "1000000.00";
+    private static final String DEFAULT_MIX = "query=50,deposit=25,withdraw=15,transfer=10";
+    private static final String RUNNING_SERVER = "-";
+    private static final String[] OPERATIONS = {"create", "query", "deposit", "withdraw", "transfer"};
+    private static final int OPEN_LOOP_CLIENTS = 8;
+    private static final int WARMUP_SECONDS = 1;
+    private static final int DRAIN_SECONDS = 30;      // how long the requests still in flight at the end are waited for
+
+    public static void main(String[] args) throws Exception {
+        boolean open = args.length > 0 && args[0].equals("open");
+        int load = args.length > 1 ? Integer.parseInt(args[1]) : open ? 1000 : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int accounts = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int[] mix = parseMix(args.length > 4 ? args[4] : DEFAULT_MIX);
+        String[] modes = args.length > 5 ? Arrays.copyOfRange(args, 5, args.length) : new String[]{RUNNING_SERVER};
+
+        for (String mode : modes) {
+            Process server = mode.equals(RUNNING_SERVER) ? null : ServerModeBenchmark.startServer(mode);
+            try {
+                String[] accNumbers = openAccounts(accounts);
+                Results results = new Results();
+                if (open)
+                    openLoop(load, seconds, accNumbers, mix, results);
+                else
+                    closedLoop(load, seconds, accNumbers, mix, results);
+                results.print(String.format("%s, %s loop, %s %d, %d accounts, mix %s", mode.equals(RUNNING_SERVER) ? "running server" : mode,
+                        open ? "open" : "closed", open ? "requests/s" : "clients", load, accounts, formatMix(mix)));
+            } finally {
+                if (server != null) {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the accounts the requests are made on
+     *
+     * @param accounts number of accounts
+     * @return their account numbers
+     */
+    private static String[] openAccounts(int accounts) throws Exception {
+        try (AsyncClient client = new AsyncClient()) {
+            List<CompletableFuture<Account>> opened = new ArrayList<>();
+            for (int i = 0; i < accounts; i++)
+                opened.add(client.createAccount(NAME, Currency.SGD, PASSWORD, INITIAL_BALANCE));
+            String[] accNumbers = new String[accounts];
+            for (int i = 0; i < accounts; i++)
+                accNumbers[i] = opened.get(i).join().getAccNumber();
+            return accNumbers;
+        }
+    }
+
+    /**
+     * Runs clients each keeping one request in flight until the time is up
+     *
+     * @param clients number of concurrent clients
+     * @param seconds how long to measure for, after the warmup
+     * @param accNumbers the accounts the requests are made on
+     * @param mix weight of each of OPERATIONS
+     * @param results where the replies are counted
+     */
+    private static void closedLoop(int clients, int seconds, String[] accNumbers, int[] mix, Results results) throws InterruptedException {
+        long measured = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = measured + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int c = 0; c < clients; c++) {
+            new Thread(() -> {
+                try (AsyncClient client = new AsyncClient()) {
+                    for (long start = System.nanoTime(); start < end; start = System.nanoTime()) {
+                        CompletableFuture<Account> reply = submit(client, accNumbers, mix);
+                        Throwable failure = null;
+                        try {
+                            reply.join();
+                        } catch (CompletionException e) {
+                            failure = e.getCause();
+                        }
+                        if (start >= measured)
+                            results.record(System.nanoTime() - start, failure);
+                    }
+                    results.retransmitted(client.retransmissions());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + c).start();
+        }
+        done.await();
+        results.elapsed(System.nanoTime() - measured);
+    }
+
+    /**
+     * Sends requests at a fixed rate until the time is up, then waits for the replies still outstanding
+     *
+     * @param rate requests per second
+     * @param seconds how long to measure for, after the warmup
+     * @param accNumbers the accounts the requests are made on
+     * @param mix weight of each of OPERATIONS
+     * @param results where the replies are counted
+     */
+    private static void openLoop(int rate, int seconds, String[] accNumbers, int[] mix, Results results) throws Exception {
+        AsyncClient[] clients = new AsyncClient[OPEN_LOOP_CLIENTS];
+        for (int c = 0; c < clients.length; c++)
+            clients[c] = new AsyncClient();
+        try {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long first = System.nanoTime();
+            long measured = first + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+            long end = measured + TimeUnit.SECONDS.toNanos(seconds);
+            List<CompletableFuture<?>> outstanding = new ArrayList<>();
+
+            for (long i = 0, due = first; due < end; due = first + ++i * interval) {
+                LockSupport.parkNanos(due - System.nanoTime());
+                long scheduled = due;
+                CompletableFuture<Account> reply = submit(clients[(int) (i % clients.length)], accNumbers, mix);
+                if (scheduled >= measured)
+                    outstanding.add(reply.handle((account, failure) -> {
+                        results.record(System.nanoTime() - scheduled, failure instanceof CompletionException ? failure.getCause() : failure);
+                        return null;
+                    }));
+            }
+            results.late(System.nanoTime() - end);
+            CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).get(DRAIN_SECONDS, TimeUnit.SECONDS);
+            results.elapsed(System.nanoTime() - measured);
+        } finally {
+            for (AsyncClient client : clients) {
+                results.retransmitted(client.retransmissions());
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Sends a request for an operation picked from the mix, on a random account of the population
+     *
+     * @param client the client sending the request
+     * @param accNumbers the accounts the requests are made on
+     * @param mix weight of each of OPERATIONS
+     * @return the reply
+     */
+    private static CompletableFuture<Account> submit(AsyncClient client, String[] accNumbers, int[] mix) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String accNumber = accNumbers[random.nextInt(accNumbers.length)];
+        int pick = random.nextInt(Arrays.stream(mix).sum());
+        int operation = 0;
+        while (pick >= mix[operation])
+            pick -= mix[operation++];
+
+        switch (OPERATIONS[operation]) {
+            case "create":
+                return client.createAccount(NAME, Currency.SGD, PASSWORD, INITIAL_BALANCE);
+            case "query":
+                return client.queryAccBalance(accNumber, PASSWORD);
+            case "deposit":
+                return client.depositMoney(NAME, accNumber, PASSWORD, Currency.SGD, 1.0);
+            case "withdraw":
+                return client.withdrawMoney(NAME, accNumber, PASSWORD, Currency.SGD, 1.0);
+            default:
+                String toAccNumber = accNumbers[random.nextInt(accNumbers.length)];
+                return client.transferMoney(NAME, accNumber, PASSWORD, toAccNumber, Currency.SGD, 1.0);
+        }
+    }
+
+    /**
+     * Parses a mix of operations, e.g. query=50,deposit=50
+     *
+     * @param mix comma separated operation=weight pairs, operations left out have a weight of 0
+     * @return weight of each of OPERATIONS
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String pair : mix.split(",")) {
+            String[] parts = pair.split("=");
+            int operation = Arrays.asList(OPERATIONS).indexOf(parts[0].trim());
+            if (operation < 0 || parts.length != 2)
+                throw new IllegalArgumentException("Unknown operation in mix: " + pair + ", expected one of " + Arrays.toString(OPERATIONS));
+            weights[operation] = Integer.parseInt(parts[1].trim());
+        }
+        if (Arrays.stream(weights).sum() <= 0)
+            throw new IllegalArgumentException("Mix has no operations: " + mix);
+        return weights;
+    }
+
+    private static String formatMix(int[] mix) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mix.length; i++)
+            if (mix[i] > 0)
+                builder.append(builder.length() == 0 ? "" : ",").append(OPERATIONS[i]).append('=').append(mix[i]);
+        return builder.toString();
+    }
+
+    /**
+     * The replies of a run: a latency histogram, and counts of the error status codes and timeouts
+     */
+    private static final class Results {
+        private final Histogram latencies = new Histogram();
+        private final Map<String, Integer> errors = new TreeMap<>();        // by status code, guarded by this
+        private long timeouts;                                              // guarded by this
+        private long retransmissions;                                       // guarded by this, over the whole run
+        private long late;                                                  // nanoseconds the open loop ended behind schedule
+        private long elapsed;                                               // nanoseconds from the end of the warmup to the last reply
+
+        /**
+         * @param nanos latency of the request
+         * @param failure how the request failed, or null if it succeeded
+         */
+        synchronized void record(long nanos, Throwable failure) {
+            String statusCode = failure instanceof IllegalArgumentException ? failure.getMessage() : failure == null ? null : failure.toString();
+            if (TIMED_OUT.equals(statusCode)) {
+                timeouts++;
+                return;
+            }
+            latencies.record(nanos);
+            if (statusCode != null)
+                errors.merge(statusCode, 1, Integer::sum);
+        }
+
+        synchronized void retransmitted(long requests) {
+            retransmissions += requests;
+        }
+
+        synchronized void late(long nanos) {
+            late = Math.max(0, nanos);
+        }
+
+        synchronized void elapsed(long nanos) {
+            elapsed = nanos;
+        }
+
+        synchronized void print(String label) {
+            System.out.println(label);
+            System.out.printf("%10s %12s %10s %10s %10s %10s %10s %10s %10s\n",
+                    "replies", "replies/s", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)", "errors", "timeouts", "resent");
+            System.out.printf("%10d %12.0f %10d %10d %10d %10d %10d %10d %10d\n", latencies.count(), latencies.count() / (elapsed / 1e9),
+                    latencies.percentile(0.50), latencies.percentile(0.99), latencies.percentile(0.999), latencies.max(),
+                    errors.values().stream().mapToInt(Integer::intValue).sum(), timeouts, retransmissions);
+            if (!errors.isEmpty())
+                System.out.println("errors by status code: " + errors);
+            if (late > TimeUnit.MILLISECONDS.toNanos(1))
+                System.out.printf("the generator ended %.1f ms behind schedule, the rate asked for was not reached\n", late / 1e6);
+            latencies.print();
+            System.out.println();
+        }
+    }
+
+    /**
+     * A histogram of latencies in microseconds, with buckets no wider than 1/SUB_BUCKETS of their values, so that its
+     * size does not grow with the number of requests
+     * Values below 2 * SUB_BUCKETS have a bucket each; above, every power of two is split into SUB_BUCKETS buckets.
+     */
+    private static final class Histogram {
+        private static final int SUB_BUCKETS = 64;
+        private static final int SUB_BUCKET_BITS = 6;
+        private final long[] counts = new long[Long.SIZE * SUB_BUCKETS];    // guarded by this
+        private long count, max;                                            // guarded by this
+
+        synchronized void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts[index(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized long max() {
+            return max;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99
+         * @return the highest latency of the bucket holding the quantile, in microseconds
+         */
+        synchronized long percentile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(max, highest(i));
+            }
+            return 0;
+        }
+
+        /**
+         * Prints how many latencies fall within each power of two microseconds
+         */
+        synchronized void print() {
+            long seen = 0;
+            for (int bit = 0; bit < Long.SIZE - 1 && seen < count; bit++) {
+                long from = bit == 0 ? 0 : 1L << bit, to = (1L << (bit + 1)) - 1;
+                long inRange = 0;
+                for (int i = index(from); i <= index(to); i++)
+                    inRange += counts[i];
+                seen += inRange;
+                if (inRange > 0)
+                    System.out.printf("%10d - %-10d us %10d %7.2f%% %7.2f%% %s\n", from, to, inRange, 100.0 * inRange / count,
+                            100.0 * seen / count, "#".repeat((int) Math.ceil(50.0 * inRange / count)));
+            }
+        }
+
+        private static int index(long micros) {
+            if (micros < 2 * SUB_BUCKETS)
+                return (int) micros;
+            int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+        }
+
+        private static long highest(int index) {
+            if (index < 2 * SUB_BUCKETS)
+                return index;
+            int shift = index / SUB_BUCKETS - 1;
+            return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+        }
+    }
+}
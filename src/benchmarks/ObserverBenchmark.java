@@ -0,0 +1,164 @@
+package benchmarks;
+
+import objects.Account;
+import objects.Currency;
+import objects.Observer;
+import objects.ObserverDispatcher;
+import objects.Subscribers;
+import objects.Subscription;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static utils.BinaryMarshallFunctions.marshallAccountBinary;
+import static utils.Constants.*;
+import static utils.SocketFunctions.joinMonitorGroup;
+import static utils.SocketFunctions.sendMonitorReply;
+
+/**
+ * Measures how long handling a request spends notifying the monitoring clients, for a growing number of them
+ * Compares sending every update to each client on the request thread, as the server did before, with handing it to
+ * the ObserverDispatcher, first with every client subscribed to every update, then with each client subscribed to one
+ * of ACCOUNTS accounts, then sending every update once to the multicast group the clients joined. Updates are on
+ * random accounts and are sent to sockets on the loopback interface that never read them. Also reports how many
+ * datagrams each update was queued as.
+ *
+ * Usage: java benchmarks.ObserverBenchmark [updates per run]
+ */
+public class ObserverBenchmark {
+    private static final int ACCOUNTS = 1000;
+    private static final int UPDATE_INTERVAL_MICROS = 50;   // time between two requests
+
+    public static void main(String[] args) throws Exception {
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        try (DatagramChannel monitor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            InetSocketAddress address = (InetSocketAddress) monitor.getLocalAddress();
+            ByteBuffer[] accountUpdates = accountUpdates();
+            System.out.printf("%-14s %10s %14s %14s %16s %10s\n", "notify", "observers", "mean (ns)", "p99 (ns)", "datagrams/update", "dropped");
+            for (int observers = 1; observers <= 1000; observers *= 10) {
+                runSynchronous(address, observers, accountUpdates, updates);
+                runDispatcher("dispatcher", address, observers, false, accountUpdates, updates);
+                runDispatcher("filtered", address, observers, true, accountUpdates, updates);
+                runMulticast(observers, accountUpdates, updates);
+            }
+        }
+    }
+
+    /**
+     * @return a binary deposit reply for each account
+     */
+    private static ByteBuffer[] accountUpdates() {
+        ByteBuffer[] updates = new ByteBuffer[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            updates[i] = ByteBuffer.allocate(BUFFER_SIZE);
+            marshallAccountBinary(new Account("John Smith", Currency.SGD, 100000, FIRST_ACCOUNT_NUMBER + i, DepositFunds), updates[i]);
+            updates[i].flip();
+        }
+        return updates;
+    }
+
+    /**
+     * Sends every update to each monitoring client on the calling thread
+     *
+     * @param address address every monitoring client listens on
+     * @param observers number of monitoring clients
+     * @param accountUpdates an update for each account
+     * @param updates number of updates
+     */
+    private static void runSynchronous(InetSocketAddress address, int observers, ByteBuffer[] accountUpdates, int updates) throws Exception {
+        SplittableRandom random = new SplittableRandom(0);
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            long[] nanos = new long[updates];
+            for (int i = 0; i < updates; i++) {
+                ByteBuffer update = accountUpdates[random.nextInt(ACCOUNTS)];
+                long start = System.nanoTime();
+                for (int j = 0; j < observers; j++)
+                    sendMonitorReply(channel, update, address);
+                nanos[i] = System.nanoTime() - start;
+                pause();
+            }
+            print("synchronous", observers, nanos, observers, 0);
+        }
+    }
+
+    /**
+     * Hands every update to the dispatcher on the calling thread
+     *
+     * @param label label of the row printed
+     * @param address address every monitoring client listens on
+     * @param observers number of monitoring clients
+     * @param filtered whether each client subscribes to one account rather than all of them
+     * @param accountUpdates an update for each account
+     * @param updates number of updates
+     */
+    private static void runDispatcher(String label, InetSocketAddress address, int observers, boolean filtered,
+                                      ByteBuffer[] accountUpdates, int updates) throws Exception {
+        SplittableRandom random = new SplittableRandom(0);
+        Subscribers subscribers = new Subscribers();
+        for (int j = 0; j < observers; j++) {
+            Subscription subscription = filtered ? new Subscription(new int[]{FIRST_ACCOUNT_NUMBER + j % ACCOUNTS}, Subscription.ALL_ACTIONS)
+                    : Subscription.ALL;
+            subscribers.add(String.valueOf(j), new Observer(address.getAddress(), address.getPort(), subscription));
+        }
+
+        ObserverDispatcher dispatcher = new ObserverDispatcher(subscribers, OBSERVER_BACKLOG);
+        long[] nanos = new long[updates];
+        for (int i = 0; i < updates; i++) {
+            ByteBuffer update = accountUpdates[random.nextInt(ACCOUNTS)];
+            long start = System.nanoTime();
+            dispatcher.publish(update);
+            nanos[i] = System.nanoTime() - start;
+            pause();
+        }
+        Thread.sleep(1000);         // let the dispatcher catch up
+        dispatcher.close();
+        print(label, observers, nanos, dispatcher.queued() / (double) updates, dispatcher.dropped());
+    }
+
+    /**
+     * Hands every update to a dispatcher sending it to the multicast group, joined by every monitoring client
+     *
+     * @param observers number of monitoring clients
+     * @param accountUpdates an update for each account
+     * @param updates number of updates
+     */
+    private static void runMulticast(int observers, ByteBuffer[] accountUpdates, int updates) throws Exception {
+        SplittableRandom random = new SplittableRandom(0);
+        MulticastSocket[] members = new MulticastSocket[observers];
+        for (int j = 0; j < observers; j++)
+            members[j] = joinMonitorGroup();
+
+        ObserverDispatcher dispatcher = new ObserverDispatcher(new Subscribers(), OBSERVER_BACKLOG,
+                new InetSocketAddress(MONITOR_MULTICAST_GROUP, MONITOR_MULTICAST_PORT));
+        long[] nanos = new long[updates];
+        for (int i = 0; i < updates; i++) {
+            ByteBuffer update = accountUpdates[random.nextInt(ACCOUNTS)];
+            long start = System.nanoTime();
+            dispatcher.publish(update);
+            nanos[i] = System.nanoTime() - start;
+            pause();
+        }
+        Thread.sleep(1000);         // let the dispatcher catch up
+        dispatcher.close();
+        for (MulticastSocket member : members)
+            member.close();
+        print("multicast", observers, nanos, dispatcher.queued() / (double) updates, dispatcher.dropped());
+    }
+
+    private static void pause() {
+        long end = System.nanoTime() + UPDATE_INTERVAL_MICROS * 1000L;
+        while (System.nanoTime() < end) ;       // spins rather than yields, so the requests keep their pace however busy the dispatcher is
+    }
+
+    private static void print(String label, int observers, long[] nanos, double datagrams, long dropped) {
+        Arrays.sort(nanos);
+        double mean = Arrays.stream(nanos).average().orElse(0);
+        System.out.printf("%-14s %10d %14.0f %14d %16.2f %10d\n", label, observers, mean, nanos[nanos.length * 99 / 100], datagrams, dropped);
+    }
+}
@@ -0,0 +1,130 @@
+package benchmarks;
+
+import objects.Account;
+import objects.AccountStore;
+import objects.ConcurrentAccountMap;
+import objects.Currency;
+import persistence.Snapshot;
+import persistence.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static utils.Constants.ACCOUNT_MAP_SEGMENTS;
+import static utils.Constants.INITIAL_ACCOUNT_CAPACITY;
+
+/**
+ * Measures how long the server takes to recover its accounts when it starts, from a snapshot plus the log written
+ * since, against replaying the whole log
+ * Opens the accounts through the write-ahead log, takes a snapshot, then logs a number of balance changes as the tail,
+ * and recovers into an empty account map the same way Server does
+ *
+ * Needs a large heap for 10M accounts, e.g.
+ * java -Xmx3g -cp out benchmarks.RecoveryBenchmark 10000000 1000000
+ *
+ * Usage: java benchmarks.RecoveryBenchmark [accounts] [balance changes after the snapshot]
+ */
+public class RecoveryBenchmark {
+    private static final String NAME = "John Smith";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Path directory = Files.createTempDirectory("benchmark-recovery");
+        Path logDirectory = directory.resolve("accounts.wal");
+        Path snapshotPath = directory.resolve("accounts.snapshot");
+
+        long expectedBalances;
+        long snapshotPosition;
+        {
+            AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, accounts);
+            WriteAheadLog log = WriteAheadLog.open(logDirectory, 0, 0, accMapping);
+            SplittableRandom random = new SplittableRandom(accounts);
+            int[] accNumbers = new int[accounts];
+            for (int i = 0; i < accounts; i++) {
+                Account account;
+                do {
+                    accNumbers[i] = random.nextInt(1000000000, Integer.MAX_VALUE);
+                    account = new Account(NAME, Currency.SGD, "P@ssw0rd", 100000, accNumbers[i]);
+                } while (accMapping.putIfAbsent(accNumbers[i], account) != null);
+                log.logOpen(account);
+            }
+
+            long start = System.nanoTime();
+            snapshotPosition = log.rollOver();
+            long written = Snapshot.write(snapshotPath, accMapping, snapshotPosition);
+            long snapshotNanos = System.nanoTime() - start;
+
+            for (int i = 0; i < changes; i++) {
+                Account account = accMapping.get(accNumbers[random.nextInt(accounts)]);
+                account.setAccBalance(account.getAccBalance() + 1);
+                log.logBalance(account);
+            }
+            awaitDurable(log);
+            log.close();
+
+            long[] sum = new long[1];
+            accMapping.forEach(account -> sum[0] += account.getAccBalance());
+            expectedBalances = sum[0];
+
+            System.out.printf("%d accounts, snapshot %.1f MB written in %.2f s, log %.1f MB before it and %.1f MB after it\n",
+                    written, Files.size(snapshotPath) / 1e6, snapshotNanos / 1e9, snapshotPosition / 1e6,
+                    (directorySize(logDirectory) - snapshotPosition) / 1e6);
+        }
+
+        System.out.printf("%-26s %12s %12s %12s\n", "recovery", "snapshot s", "log s", "total s");
+        recover("whole log", logDirectory, null, accounts, expectedBalances);
+        recover("snapshot + log tail", logDirectory, snapshotPath, accounts, expectedBalances);
+
+        WriteAheadLogBenchmark.deleteDirectory(logDirectory);
+        Files.delete(snapshotPath);
+        Files.delete(directory);
+    }
+
+    /**
+     * Recovers the accounts into an empty account map, as Server does when it starts, and checks the result
+     *
+     * @param label label of the row printed
+     * @param logDirectory the write-ahead log
+     * @param snapshotPath the snapshot to load, or null to replay the whole log
+     * @param accounts the number of accounts expected
+     * @param expectedBalances the sum of the balances expected
+     */
+    private static void recover(String label, Path logDirectory, Path snapshotPath, int accounts, long expectedBalances) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+        long snapshotAccounts = snapshotPath == null ? 0 : Snapshot.accounts(snapshotPath);        // sized as Server does
+        AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS,
+                (int) Math.max(INITIAL_ACCOUNT_CAPACITY, snapshotAccounts + snapshotAccounts / 4));
+
+        long position = snapshotPath == null ? 0 : Snapshot.load(snapshotPath, accMapping);
+        long loaded = System.nanoTime();
+        WriteAheadLog.open(logDirectory, position, 0, accMapping).close();
+        long end = System.nanoTime();
+
+        long[] sum = new long[1];
+        accMapping.forEach(account -> sum[0] += account.getAccBalance());
+        if (accMapping.size() != accounts || sum[0] != expectedBalances)
+            throw new IllegalStateException(label + " recovered " + accMapping.size() + " accounts holding " + sum[0]);
+        System.out.printf("%-26s %12.2f %12.2f %12.2f\n", label, (loaded - start) / 1e9, (end - loaded) / 1e9, (end - start) / 1e9);
+    }
+
+    private static void awaitDurable(WriteAheadLog log) throws InterruptedException {
+        CountDownLatch durable = new CountDownLatch(1);
+        log.whenDurable(log.appendedPosition(), durable::countDown);
+        durable.await();
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        long size = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                size += Files.size(file);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,264 @@
+package benchmarks;
+
+import objects.AccountStore;
+import objects.ConcurrentAccountMap;
+import objects.Currency;
+import persistence.MutationLog;
+import persistence.ReplicationPrimary;
+import persistence.Snapshotter;
+import persistence.WriteAheadLog;
+import utils.MessageIDGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static functionalities.ServerInterface.*;
+import static utils.BinaryMarshallFunctions.*;
+import static utils.Constants.*;
+
+/**
+ * Measures primary-backup replication on localhost, with the backup as a separate server process
+ *
+ * Replication lag: deposits are handled in this process by a primary replicating to one backup, for each
+ * acknowledgement level, reporting durable deposits per second and the time from a batch being on the primary's disk to
+ * it being on the backup's disk
+ *
+ * Failover: a primary and a backup are started as separate server processes and a client keeps depositing into an
+ * account on the primary; the primary is then killed and the client queries the backup until it answers. Reports the
+ * time from the kill to the first answer, and how many deposits the client saw acknowledged that the backup lost.
+ *
+ * Usage: java benchmarks.ReplicationBenchmark [seconds per acknowledgement level]
+ */
+public class ReplicationBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd";
+    private static final int ACCOUNTS = 1000;
+    private static final int IN_FLIGHT = 256;
+    private static final int BENCHMARK_PORT = SERVER_PORT_NUMBER + 1000;     // replication port of the primary in this process
+    private static final int TIMEOUT = 200;     // in milliseconds
+    private static final MessageIDGenerator gen = new MessageIDGenerator();
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        System.out.printf("%-10s %14s %14s %14s %14s\n", "acks", "deposits/s", "lag p50 (us)", "lag p99 (us)", "lag max (us)");
+        String[] levels = {"none", "received", "durable"};
+        for (int level = REPLICATION_ACK_NONE; level <= REPLICATION_ACK_DURABLE; level++)
+            measureLag(levels[level], level, seconds);
+
+        measureFailover();
+    }
+
+    /**
+     * Handles deposits for a number of seconds on a primary in this process, replicated to a backup process
+     *
+     * @param label label of the row printed
+     * @param ackLevel the acknowledgement level
+     * @param seconds how long to run
+     */
+    private static void measureLag(String label, int ackLevel, int seconds) throws Exception {
+        Path primaryDirectory = Files.createTempDirectory("benchmark-primary");
+        Path backupDirectory = Files.createTempDirectory("benchmark-backup");
+        AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, ACCOUNTS);
+        WriteAheadLog log = WriteAheadLog.open(primaryDirectory.resolve(WRITE_AHEAD_LOG_PATH), 0, GROUP_COMMIT_WINDOW_MICROS, accMapping);
+        Snapshotter snapshotter = new Snapshotter(primaryDirectory.resolve(SNAPSHOT_PATH), accMapping, log, 0, Long.MAX_VALUE);
+        ReplicationPrimary primary = new ReplicationPrimary(log, snapshotter, primaryDirectory.resolve(SNAPSHOT_PATH), BENCHMARK_PORT,
+                ackLevel, REPLICATION_HEARTBEAT_MILLIS, REPLICATION_QUEUE_BATCHES);
+        setMutationLog(primary);
+        Process backup = startServer(backupDirectory, BACKUP_MODE, "127.0.0.1", String.valueOf(BENCHMARK_PORT), String.valueOf(BENCHMARK_PORT + 1));
+
+        try {
+            ByteBuffer[] deposits = openAccounts(accMapping);
+            ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+            while (primary.syncedBackups() == 0) {          // until the backup has loaded its snapshot and acknowledged a batch
+                depositMoneyBinary(deposits[0].position(BINARY_INFO_START_INDEX), reply.clear(), accMapping);
+                Thread.sleep(10);
+            }
+            primary.resetLag();
+
+            Semaphore replies = new Semaphore(IN_FLIGHT);
+            AtomicLong durable = new AtomicLong();
+            Runnable completed = () -> {
+                durable.incrementAndGet();
+                replies.release();
+            };
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; System.nanoTime() < end; i++) {
+                replies.acquire();
+                depositMoneyBinary(deposits[i % deposits.length].position(BINARY_INFO_START_INDEX), reply.clear(), accMapping);
+                primary.whenDurable(primary.appendedPosition(), completed);
+            }
+            replies.acquire(IN_FLIGHT);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            Thread.sleep(100);      // let the last acknowledgements from the backup arrive
+
+            System.out.printf("%-10s %14.0f %14d %14d %14d\n", label, durable.get() / elapsed, primary.lagNanos(50) / 1000,
+                    primary.lagNanos(99) / 1000, primary.lagNanos(100) / 1000);
+        } finally {
+            backup.destroy();
+            backup.waitFor();
+            setMutationLog(MutationLog.NONE);
+            primary.close();
+            snapshotter.close();
+            log.close();
+            deleteRecursively(primaryDirectory);
+            deleteRecursively(backupDirectory);
+        }
+    }
+
+    /**
+     * Opens the accounts the deposits go to
+     *
+     * @param accMapping the accounts
+     * @return a binary deposit request for each account
+     */
+    private static ByteBuffer[] openAccounts(AccountStore accMapping) {
+        ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer[] deposits = new ByteBuffer[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            processAccCreationBinary(createRequest().position(BINARY_INFO_START_INDEX), reply.clear(), accMapping);
+            deposits[i] = depositRequest(reply.getInt(2));
+        }
+        return deposits;
+    }
+
+    /**
+     * Runs a primary and a backup server process, kills the primary while a client deposits into it and measures how long
+     * the backup takes to answer the client
+     */
+    private static void measureFailover() throws Exception {
+        Path primaryDirectory = Files.createTempDirectory("benchmark-primary");
+        Path backupDirectory = Files.createTempDirectory("benchmark-backup");
+        int backupPort = SERVER_PORT_NUMBER + 2;
+        Process primary = startServer(primaryDirectory, SINGLE_THREADED_MODE);
+        Process backup = startServer(backupDirectory, BACKUP_MODE, "127.0.0.1", String.valueOf(REPLICATION_PORT), String.valueOf(backupPort));
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT);
+            ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+            if (!call(socket, SERVER_PORT_NUMBER, createRequest(), reply))
+                throw new IllegalStateException("The primary did not answer");
+            int accNumber = reply.getInt(2);
+            long expected = reply.getLong(reply.position() - 8);
+            ByteBuffer deposit = depositRequest(accNumber);
+
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (System.nanoTime() < end) {
+                if (call(socket, SERVER_PORT_NUMBER, deposit, reply))
+                    expected = reply.getLong(reply.position() - 8);
+            }
+
+            primary.destroyForcibly();
+            long killed = System.nanoTime();
+            socket.setSoTimeout(5);
+            ByteBuffer query = queryRequest(accNumber);
+            while (!call(socket, backupPort, query, reply) && System.nanoTime() - killed < TimeUnit.SECONDS.toNanos(10)) ;
+            long answered = System.nanoTime();
+
+            long balance = reply.getLong(reply.position() - 8);
+            System.out.printf("failover: backup answered %.1f ms after the primary was killed, %d acknowledged deposits lost\n",
+                    (answered - killed) / 1e6, (expected - balance) / 100);
+        } finally {
+            primary.destroyForcibly().waitFor();
+            backup.destroy();
+            backup.waitFor();
+            deleteRecursively(primaryDirectory);
+            deleteRecursively(backupDirectory);
+        }
+    }
+
+    /**
+     * Sends a request and waits for its reply
+     *
+     * @param socket the client socket
+     * @param port the server port
+     * @param request the request, from index 0 up to its limit
+     * @param reply ByteBuffer the reply is received into, positioned after the balance of the account on success
+     * @return true if the server answered with OK in time
+     */
+    private static boolean call(DatagramSocket socket, int port, ByteBuffer request, ByteBuffer reply) throws IOException {
+        request.putLong(SEQUENCE_INDEX, gen.nextSequence());       // a new message id, or the reply comes from the cache
+        socket.send(new DatagramPacket(request.array(), request.limit(), InetAddress.getLoopbackAddress(), port));
+        DatagramPacket packet = new DatagramPacket(reply.array(), reply.capacity());
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        if (reply.get(1) != 0)
+            return false;
+        reply.clear().position(6);
+        reply.position(reply.position() + 2 + reply.getShort() + 1 + 8);     // after the name, the currency and the balance
+        return true;
+    }
+
+    private static ByteBuffer createRequest() {
+        ByteBuffer request = newBinaryRequest(gen, ACC_CREATION_CODE);
+        putString(request, NAME);
+        putCurrency(request, Currency.SGD);
+        putString(request, PASSWORD);
+        request.putLong(100000);
+        return request.flip();
+    }
+
+    private static ByteBuffer depositRequest(int accNumber) {
+        ByteBuffer request = newBinaryRequest(gen, DEPOSIT_MONEY_CODE);
+        putString(request, NAME);
+        request.putInt(accNumber);
+        putString(request, PASSWORD);
+        putCurrency(request, Currency.SGD);
+        request.putLong(100);
+        return request.flip();
+    }
+
+    private static ByteBuffer queryRequest(int accNumber) {
+        ByteBuffer request = newBinaryRequest(gen, ACC_BALANCE_CODE);
+        request.putInt(accNumber);
+        putString(request, PASSWORD);
+        return request.flip();
+    }
+
+    /**
+     * Starts a server process in its own directory, with the class path of the benchmark
+     *
+     * @param directory the working directory of the server, holding its snapshot and log
+     * @param args the arguments of the server
+     * @return the server process
+     */
+    private static Process startServer(Path directory, String... args) throws Exception {
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+
+        List<String> command = new ArrayList<>(Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", String.join(File.pathSeparator, classPath), "Server"));
+        command.addAll(Arrays.asList(args));
+        Process server = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Thread.sleep(1000);     // give the server time to bind its port
+        return server;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator)
+                Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package benchmarks;
+
+import objects.ReplyCache;
+import utils.MessageIDGenerator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static utils.Constants.*;
+
+/**
+ * Compares the reply cache with the history of the last 10 replies the server kept before, a synchronized LinkedHashMap
+ * keyed by the message id as a String
+ *
+ * Retransmissions: requests arrive from many clients at a steady rate and a share of their replies is lost, so they
+ * are sent again once the client times out, atLeastOnceTimeout later. Each client acknowledges its requests as their
+ * replies arrive. Reports how many of the retransmissions were not run again, the rest would have been run twice.
+ *
+ * Throughput: threads handle new requests of random clients, each acknowledging the request before it, as the worker
+ * threads of the server do for every request, reporting requests per second.
+ *
+ * Usage: java benchmarks.ReplyCacheBenchmark [requests per second] [seconds per throughput run]
+ */
+public class ReplyCacheBenchmark {
+    private static final int CLIENTS = 10000;
+    private static final int REPLY_BYTES = 60;              // size of a typical binary account reply
+    private static final double RETRANSMITTED = 0.05;       // share of the requests whose reply is lost
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        System.out.printf("%d requests/s, %.0f%% retransmitted after %d ms\n", rate, RETRANSMITTED * 100, atLeastOnceTimeout);
+        System.out.printf("%-22s %14s %14s\n", "cache", "not run again", "run again");
+        retransmissions("last 10 replies", new LastReplies(), clients(), rate);
+        retransmissions("reply cache", new CachedReplies(), clients(), rate);
+
+        System.out.printf("\n%-22s %8s %14s\n", "cache", "threads", "requests/s");
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+            throughput("last 10 replies", new LastReplies(), clients(), threads, seconds);
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+            throughput("reply cache", new CachedReplies(), clients(), threads, seconds);
+    }
+
+    private static MessageIDGenerator[] clients() {
+        SplittableRandom random = new SplittableRandom(0);
+        MessageIDGenerator[] clients = new MessageIDGenerator[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++)
+            clients[i] = new MessageIDGenerator(random.nextLong());
+        return clients;
+    }
+
+    /**
+     * Plays the requests of atLeastOnceTimeout plus one more second, each retransmitted request sent again as many
+     * requests later as arrive in atLeastOnceTimeout
+     *
+     * @param label label of the row printed
+     * @param replies the cache
+     * @param clients the message ids of each client
+     * @param rate requests per second
+     */
+    private static void retransmissions(String label, Replies replies, MessageIDGenerator[] clients, int rate) {
+        SplittableRandom random = new SplittableRandom(1);
+        byte[] reply = new byte[REPLY_BYTES];
+        long delay = (long) rate * atLeastOnceTimeout / 1000;
+        long requests = delay + rate;
+        ArrayDeque<long[]> lost = new ArrayDeque<>();        // client, sequence number and when it is sent again
+
+        long found = 0, runAgain = 0;
+        for (long i = 0; i < requests; i++) {
+            while (!lost.isEmpty() && lost.peek()[2] <= i) {
+                long[] retransmission = lost.poll();
+                MessageIDGenerator client = clients[(int) retransmission[0]];
+                if (replies.handle(client.clientID(), retransmission[1], client.acknowledged(), reply))
+                    runAgain++;
+                else
+                    found++;
+                client.acknowledge(retransmission[1]);
+            }
+
+            int client = random.nextInt(CLIENTS);
+            long sequence = clients[client].nextSequence();
+            replies.handle(clients[client].clientID(), sequence, clients[client].acknowledged(), reply);
+            if (random.nextDouble() < RETRANSMITTED)
+                lost.add(new long[]{client, sequence, i + delay});
+            else
+                clients[client].acknowledge(sequence);
+        }
+        System.out.printf("%-22s %14d %14d\n", label, found, runAgain);
+        if (replies instanceof CachedReplies)
+            System.out.println(((CachedReplies) replies).replies);
+    }
+
+    /**
+     * Handles requests on several threads for a number of seconds
+     *
+     * @param label label of the row printed
+     * @param replies the cache
+     * @param clients the message ids of each client
+     * @param threads number of threads
+     * @param seconds how long to run
+     */
+    private static void throughput(String label, Replies replies, MessageIDGenerator[] clients, int threads, int seconds) throws InterruptedException {
+        byte[] reply = new byte[REPLY_BYTES];
+
+        LongAdder requests = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    MessageIDGenerator client = clients[random.nextInt(CLIENTS)];
+                    long sequence = client.nextSequence();
+                    replies.handle(client.clientID(), sequence, sequence - 1, reply);
+                    count++;
+                }
+                requests.add(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.printf("%-22s %8d %14.0f\n", label, threads, requests.sum() / (double) seconds);
+    }
+
+    private interface Replies {
+        /**
+         * @return true if the request is run and its reply kept, false if it is answered from the cache or dropped
+         */
+        boolean handle(long clientID, long sequence, long acknowledged, byte[] reply);
+    }
+
+    /**
+     * The reply history the server kept before: the 10 most recently used replies, by the message id decoded into a String
+     */
+    private static final class LastReplies implements Replies {
+        private final Map<String, byte[]> replies = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(10, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > 10;
+            }
+        });
+
+        @Override
+        public boolean handle(long clientID, long sequence, long acknowledged, byte[] reply) {
+            String messageID = messageID(clientID, sequence);
+            if (replies.get(messageID) != null)
+                return false;
+            replies.put(messageID, reply);
+            return true;
+        }
+
+        private static String messageID(long clientID, long sequence) {
+            byte[] id = ByteBuffer.allocate(MESSAGE_ID_LENGTH).putLong(clientID).putLong(sequence).array();
+            return new String(id, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static final class CachedReplies implements Replies {
+        private final ReplyCache replies = new ReplyCache(REPLY_CACHE_SEGMENTS, REPLY_CACHE_BYTES, REPLY_CACHE_TTL_MILLIS, REPLY_WINDOW);
+
+        @Override
+        public boolean handle(long clientID, long sequence, long acknowledged, byte[] reply) {
+            int admission = replies.admit(clientID, sequence, acknowledged);
+            if (admission == ReplyCache.DUPLICATE)
+                replies.getReply(clientID, sequence);
+            if (admission != ReplyCache.NEW)
+                return false;
+            replies.putReply(clientID, sequence, reply);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package benchmarks;
+
+import objects.Pointer;
+import utils.MessageIDGenerator;
+
+import java.io.File;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static utils.Constants.*;
+import static utils.MarshallFunctions.marshall;
+import static utils.MarshallFunctions.unmarshall;
+import static utils.UtilityFunctions.concatWithCopy;
+
+/**
+ * Compares the server modes end to end over UDP
+ * For every mode the server is started as a separate process, then a number of clients each open an account and keep
+ * one deposit or balance query in flight at a time for a fixed duration
+ *
+ * Usage: java benchmarks.ServerModeBenchmark [clients] [seconds per mode] [modes...]
+ * e.g. java -cp out benchmarks.ServerModeBenchmark 32 5 single virtual
+ */
+public class ServerModeBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd";
+    private static final int TIMEOUT = 500;     // in milliseconds
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] modes = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[]{SINGLE_THREADED_MODE, VIRTUAL_THREAD_MODE};
+
+        System.out.printf("%-10s %8s %12s %12s %12s %10s\n", "mode", "clients", "requests/s", "mean (us)", "p99 (us)", "timeouts");
+        for (String mode : modes) {
+            Process server = startServer(mode);
+            try {
+                run(mode, clients, seconds);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Starts the server in a separate process using the same class path as the benchmark
+     *
+     * @param mode the server mode to start
+     * @return the server process
+     * @throws Exception if the process cannot be started
+     */
+    static Process startServer(String... mode) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), "Server"));
+        command.addAll(Arrays.asList(mode));
+        Process server = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Thread.sleep(1000);     // give the server time to bind its port
+        return server;
+    }
+
+    /**
+     * Runs the clients against the server currently listening on SERVER_PORT_NUMBER and prints the results
+     *
+     * @param mode the server mode, only used in the results
+     * @param clients number of concurrent clients
+     * @param seconds how long to run for
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    private static void run(String mode, int clients, int seconds) throws InterruptedException {
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        int[] timeouts = new int[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            new Thread(() -> {
+                MessageIDGenerator gen = new MessageIDGenerator();
+                long[] samples = new long[1 << 16];
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(TIMEOUT);
+                    InetAddress host = InetAddress.getByName(HOST_NAME);
+                    byte[] reply = call(socket, host, frame(gen, ACC_CREATION_CODE, marshall(NAME), marshall("SGD"), marshall(PASSWORD), marshall("1000.00")));
+                    Pointer pointer = new Pointer(0);
+                    unmarshall(pointer, reply);                     // status code
+                    String accNumber = unmarshall(pointer, reply);
+
+                    while (System.nanoTime() < end) {
+                        byte[] request = ThreadLocalRandom.current().nextBoolean()
+                                ? frame(gen, DEPOSIT_MONEY_CODE, marshall(NAME), marshall(accNumber), marshall(PASSWORD), marshall("SGD"), marshall("1.0"))
+                                : frame(gen, ACC_BALANCE_CODE, marshall(accNumber), marshall(PASSWORD));
+                        long start = System.nanoTime();
+                        if (call(socket, host, request) == null) {
+                            timeouts[client]++;
+                            continue;
+                        }
+                        if (counts[client] == samples.length)
+                            samples = Arrays.copyOf(samples, samples.length * 2);
+                        samples[counts[client]++] = System.nanoTime() - start;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latencies[client] = samples;
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        int total = 0, totalTimeouts = 0;
+        for (int c = 0; c < clients; c++) {
+            total += counts[c];
+            totalTimeouts += timeouts[c];
+        }
+        long[] all = new long[total];
+        int position = 0;
+        double sum = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, position, counts[c]);
+            position += counts[c];
+        }
+        for (long latency : all)
+            sum += latency;
+        Arrays.sort(all);
+        long p99 = total == 0 ? 0 : all[(int) (total * 0.99)];
+
+        System.out.printf("%-10s %8d %12.0f %12.0f %12d %10d\n", mode, clients, total / (double) seconds,
+                total == 0 ? 0 : sum / total / 1000, p99 / 1000, totalTimeouts);
+    }
+
+    /**
+     * Builds a request the same way ClientInterface does: message id, action code and then the marshalled fields
+     *
+     * @param gen the message id generator of the client
+     * @param code the action code
+     * @param fields the marshalled fields
+     * @return the request
+     */
+    private static byte[] frame(MessageIDGenerator gen, int code, byte[]... fields) {
+        byte[] header = concatWithCopy(gen.next(), ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(code).array());
+        return concatWithCopy(header, concatWithCopy(fields));
+    }
+
+    /**
+     * Sends a request and waits for its reply
+     *
+     * @param socket the client socket
+     * @param host address of the server
+     * @param request the request
+     * @return the reply, or null if none arrived in time
+     * @throws Exception if the socket fails
+     */
+    private static byte[] call(DatagramSocket socket, InetAddress host, byte[] request) throws Exception {
+        socket.send(new DatagramPacket(request, request.length, host, SERVER_PORT_NUMBER));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            socket.receive(new DatagramPacket(buffer, buffer.length));
+            return buffer;
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+}
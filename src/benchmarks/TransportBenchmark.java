@@ -0,0 +1,144 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static utils.Constants.BUFFER_SIZE;
+import static utils.SocketFunctions.*;
+
+/**
+ * Compares the throughput of the server transport that binds a new DatagramSocket for every receive and every reply
+ * against the transport that keeps one DatagramChannel bound for the whole life of the server
+ * A client sends requests one at a time to an echo server on the loopback interface and resends a request when no reply
+ * arrives in time, so datagrams dropped while the per-packet transport has the port closed show up as retransmissions
+ *
+ * Usage: java benchmarks.TransportBenchmark [number of requests]
+ */
+public class TransportBenchmark {
+    private static final int BENCHMARK_PORT = 6790;        // kept apart from SERVER_PORT_NUMBER so a running server is not disturbed
+    private static final int RETRANSMIT_TIMEOUT = 10;      // in milliseconds
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.printf("%-24s %12s %14s %16s\n", "transport", "requests", "requests/s", "retransmissions");
+        run("socket per packet", BENCHMARK_PORT, requests, TransportBenchmark::perPacketEchoLoop);
+        run("persistent channel", BENCHMARK_PORT + 1, requests, TransportBenchmark::channelEchoLoop);
+    }
+
+    /**
+     * Runs one echo server on its own daemon thread and measures how fast a single client gets replies from it
+     *
+     * @param name the name of the transport printed in the results
+     * @param port the port the echo server listens on
+     * @param requests number of requests timed after the warm up
+     * @param echoLoop the server loop under test
+     * @throws Exception if the client socket fails
+     */
+    private static void run(String name, int port, int requests, EchoLoop echoLoop) throws Exception {
+        Thread server = new Thread(() -> {
+            try {
+                echoLoop.serve(port);
+            } catch (IOException ioException) {
+                ioException.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(100);      // give the server time to bind
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(RETRANSMIT_TIMEOUT);
+            InetAddress host = InetAddress.getLoopbackAddress();
+
+            sendAll(client, host, port, requests / 10);        // warm up
+            long start = System.nanoTime();
+            int retransmissions = sendAll(client, host, port, requests);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("%-24s %12d %14.0f %16d\n", name, requests, requests / (elapsed / 1e9), retransmissions);
+        }
+    }
+
+    /**
+     * Sends requests one after the other and waits for each to be echoed back
+     *
+     * @param client the client socket
+     * @param host address of the echo server
+     * @param port port of the echo server
+     * @param requests number of requests to send
+     * @return the number of retransmissions needed
+     * @throws IOException if the client socket fails
+     */
+    private static int sendAll(DatagramSocket client, InetAddress host, int port, int requests) throws IOException {
+        byte[] payload = new byte[64];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int retransmissions = 0;
+
+        for (int i = 0; i < requests; i++) {
+            ByteBuffer.wrap(payload).putInt(i);
+            DatagramPacket request = new DatagramPacket(payload, payload.length, host, port);
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            client.send(request);
+            while (true) {
+                try {
+                    client.receive(reply);
+                    if (ByteBuffer.wrap(buffer).getInt() == i)
+                        break;      // ignore late replies to an earlier retransmission
+                } catch (SocketTimeoutException e) {
+                    retransmissions++;
+                    client.send(request);
+                }
+            }
+        }
+        return retransmissions;
+    }
+
+    /**
+     * The server path used before: a socket is bound for every receive and another one for every reply
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    private static void perPacketEchoLoop(int port) throws IOException {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+            try (DatagramSocket aSocket = new DatagramSocket(port)) {
+                aSocket.receive(request);
+            }
+            try (DatagramSocket aSocket = new DatagramSocket(port)) {
+                aSocket.send(new DatagramPacket(buffer, request.getLength(), request.getAddress(), request.getPort()));
+            }
+        }
+    }
+
+    /**
+     * The server path used now: one DatagramChannel is bound once and used for every receive and every reply
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    private static void channelEchoLoop(int port) throws IOException {
+        try (DatagramChannel channel = openServerChannel(port)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                buffer.clear();
+                SocketAddress client = receiveRequest(channel, buffer);
+                buffer.flip();
+                channel.send(buffer, client);
+            }
+        }
+    }
+
+    /**
+     * A server loop that echoes every request back to its sender
+     */
+    private interface EchoLoop {
+        void serve(int port) throws IOException;
+    }
+}
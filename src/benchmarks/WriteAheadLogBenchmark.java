@@ -0,0 +1,141 @@
+package benchmarks;
+
+import objects.AccountStore;
+import objects.ConcurrentAccountMap;
+import objects.Currency;
+import persistence.MutationLog;
+import persistence.WriteAheadLog;
+import utils.MessageIDGenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static functionalities.ServerInterface.*;
+import static utils.BinaryMarshallFunctions.*;
+import static utils.Constants.*;
+
+/**
+ * Measures durable deposits per second through the write-ahead log for several group commit windows
+ * Deposits are handled as Server.handleRequest does in single threaded mode: one thread handles the requests and hands
+ * each reply to the log, which completes it once its batch is on disk. Up to a fixed number of requests are waiting on
+ * the log at once, as if that many clients were each waiting for their reply.
+ * A window of 0 forces a batch as soon as the previous one is done, the number of deposits per fsync then only depends
+ * on how long an fsync takes on this disk.
+ *
+ * Usage: java benchmarks.WriteAheadLogBenchmark [seconds per window] [requests in flight] [windows in microseconds...]
+ */
+public class WriteAheadLogBenchmark {
+    private static final String NAME = "John Smith";
+    private static final String PASSWORD = "P@ssw0rd";
+    private static final MessageIDGenerator ids = new MessageIDGenerator();
+    private static final int ACCOUNTS = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        long[] windows = args.length > 2 ? new long[args.length - 2] : new long[]{0, 100, 500, 1000, 5000};
+        for (int i = 2; i < args.length; i++)
+            windows[i - 2] = Long.parseLong(args[i]);
+
+        AccountStore accMapping = new ConcurrentAccountMap(ACCOUNT_MAP_SEGMENTS, ACCOUNTS);
+        ByteBuffer[] deposits = openAccounts(accMapping);
+
+        System.out.printf("%-14s %14s %14s %16s\n", "window (us)", "deposits/s", "fsyncs/s", "deposits/fsync");
+        run("no log", MutationLog.NONE, deposits, accMapping, seconds, inFlight);
+        for (long window : windows) {
+            Path directory = Files.createTempDirectory("benchmark-wal");
+            try (WriteAheadLog log = WriteAheadLog.open(directory, 0, window, accMapping)) {
+                run(String.valueOf(window), log, deposits, accMapping, seconds, inFlight);
+            } finally {
+                deleteDirectory(directory);
+            }
+        }
+        setMutationLog(MutationLog.NONE);
+    }
+
+    /**
+     * Opens the accounts the deposits go to
+     *
+     * @param accMapping the accounts
+     * @return a binary deposit request for each account
+     */
+    private static ByteBuffer[] openAccounts(AccountStore accMapping) {
+        ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer[] deposits = new ByteBuffer[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ByteBuffer request = newBinaryRequest(ids, ACC_CREATION_CODE);
+            putString(request, NAME);
+            putCurrency(request, Currency.SGD);
+            putString(request, PASSWORD);
+            request.putLong(100000);
+            processAccCreationBinary(request.flip().position(BINARY_INFO_START_INDEX), reply.clear(), accMapping);
+            int accNumber = reply.getInt(2);        // after the version and status bytes
+
+            request = newBinaryRequest(ids, DEPOSIT_MONEY_CODE);
+            putString(request, NAME);
+            request.putInt(accNumber);
+            putString(request, PASSWORD);
+            putCurrency(request, Currency.SGD);
+            request.putLong(100);
+            deposits[i] = request.flip();
+        }
+        return deposits;
+    }
+
+    /**
+     * Handles deposits for a number of seconds, each reply released once the log has made the deposit durable
+     *
+     * @param label label of the row printed
+     * @param log the log the deposits are recorded in
+     * @param deposits the deposit requests, used in turn
+     * @param accMapping the accounts
+     * @param seconds how long to run
+     * @param inFlight how many deposits may wait on the log at once
+     */
+    private static void run(String label, MutationLog log, ByteBuffer[] deposits, AccountStore accMapping, int seconds, int inFlight) throws InterruptedException {
+        setMutationLog(log);
+        ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+        Semaphore replies = new Semaphore(inFlight);
+        AtomicLong durable = new AtomicLong();
+        Runnable completed = () -> {
+            durable.incrementAndGet();
+            replies.release();
+        };
+        long batchesBefore = log instanceof WriteAheadLog ? ((WriteAheadLog) log).batches() : 0;
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; System.nanoTime() < end; i++) {
+            replies.acquire();
+            ByteBuffer request = deposits[i % deposits.length];
+            depositMoneyBinary(request.position(BINARY_INFO_START_INDEX), reply.clear(), accMapping);
+            log.whenDurable(log.appendedPosition(), completed);
+        }
+        replies.acquire(inFlight);          // wait for the last batch
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long batches = log instanceof WriteAheadLog ? ((WriteAheadLog) log).batches() - batchesBefore : 0;
+        System.out.printf("%-14s %14.0f %14.0f %16.1f\n", label, durable.get() / elapsed, batches / elapsed,
+                batches == 0 ? 0 : durable.get() / (double) batches);
+    }
+
+    /**
+     * Delete a directory of log segments
+     *
+     * @param directory the directory
+     * @throws IOException if a file cannot be deleted
+     */
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,351 @@
+package functionalities;
+
+import objects.Account;
+import objects.Currency;
+import utils.MarshallFunctions;
+import utils.MessageIDGenerator;
+import utils.RetransmissionTimer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import static functionalities.ClientInterface.*;
+import static utils.Constants.*;
+import static utils.UtilityFunctions.failMessage;
+
+/**
+ * A client keeping many requests in flight at once over one socket, each operation returning a CompletableFuture of
+ * its reply instead of waiting for it
+ * Replies are matched to their requests by the sequence number the server sends after every reply. A receiver thread
+ * completes the futures, and sends again every request whose retransmission timeout passed, estimated per server by a
+ * RetransmissionTimer as in ClientTransport, until it gives up on it after MAX_ATTEMPTS.
+ *
+ * The server only keeps the replies of the last REPLY_WINDOW sequence numbers of a client, and drops a request from
+ * before them unanswered. A request is therefore only sent once it is less than REPLY_WINDOW after the oldest request
+ * still waiting for its reply; until then it waits its turn. Requests are marshalled holding the lock, so they wait in
+ * order of sequence number.
+ *
+ * The client has a client id of its own, and sends each request to the server of its shard in the shard map of
+ * ClientInterface. A request sent to a server no longer holding its account fails with MISDIRECTED instead of being
+ * sent again.
+ */
+public class AsyncClient implements Closeable {
+    private final MessageIDGenerator ids = new MessageIDGenerator();
+    private final DatagramSocket socket;
+    private final Thread receiver;
+    private final TreeMap<Long, Request> inFlight = new TreeMap<>();                    // by sequence number, guarded by this
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();                    // in order of sequence number, guarded by this
+    private final Map<InetSocketAddress, RetransmissionTimer> timers = new HashMap<>();  // by server, guarded by this
+    private long requests, retransmissions, givenUp;                                    // guarded by this
+    private volatile boolean closed;
+
+    /**
+     * Constructor to bind the socket of the client and start its receiver thread
+     *
+     * @throws SocketException if the socket cannot be bound
+     */
+    public AsyncClient() throws SocketException {
+        this.socket = new DatagramSocket();
+        this.receiver = new Thread(this::receive, "async-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Function to open an account
+     *
+     * @param name the name of the customer
+     * @param currency the currency of the account
+     * @param password the password of the account
+     * @param initialAccBalance the initial account balance
+     * @return the account opened by the server, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> createAccount(String name, Currency currency, String password, String initialAccBalance) {
+        return submit(marshallAccCreation(ids, name, currency, password, initialAccBalance), shardForNewAccount());
+    }
+
+    /**
+     * Function to query the balance of an account
+     *
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @return the account, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> queryAccBalance(String accNumber, String password) {
+        return submit(marshallAccBalanceQuery(ids, accNumber, password), shardOf(Integer.parseInt(accNumber)));
+    }
+
+    /**
+     * Function to close an account
+     *
+     * @param name the name of the account holder
+     * @param password the password of the account
+     * @param accNumber the account number
+     * @return the account closed, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> closeAccount(String name, String password, String accNumber) {
+        return submit(marshallAccClosure(ids, name, password, accNumber), shardOf(Integer.parseInt(accNumber)));
+    }
+
+    /**
+     * Function to deposit money into an account
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency of the funds being deposited
+     * @param deposit the amount of funds being deposited
+     * @return the account after the deposit, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> depositMoney(String name, String accNumber, String password, Currency currency, double deposit) {
+        return submit(marshallDeposit(ids, name, accNumber, password, currency, deposit), shardOf(Integer.parseInt(accNumber)));
+    }
+
+    /**
+     * Function to withdraw money from an account
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency to withdraw the money in
+     * @param withdraw the amount of money to be withdrawn
+     * @return the account after the withdrawal, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> withdrawMoney(String name, String accNumber, String password, Currency currency, double withdraw) {
+        return submit(marshallWithdrawal(ids, name, accNumber, password, currency, withdraw), shardOf(Integer.parseInt(accNumber)));
+    }
+
+    /**
+     * Function to transfer money to another account
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param toAccNumber the account number of the receiving account
+     * @param currency the currency of the transfer
+     * @param transfer the amount to be transferred
+     * @return the account after the transfer, or an IllegalArgumentException with the status code of the failure
+     */
+    public synchronized CompletableFuture<Account> transferMoney(String name, String accNumber, String password, String toAccNumber, Currency currency, double transfer) {
+        return submit(marshallTransfer(ids, name, accNumber, password, toAccNumber, currency, transfer), shardOf(Integer.parseInt(accNumber)));
+    }
+
+    /**
+     * Queues a request, sending it at once if the window allows
+     *
+     * @param marshall the request
+     * @param server address of the server
+     * @return the account in the reply
+     */
+    private synchronized CompletableFuture<Account> submit(byte[] marshall, InetSocketAddress server) {
+        if (closed)
+            throw new IllegalStateException("Client closed");
+        Request request = new Request(marshall, server);
+        requests++;
+        waiting.add(request);
+        sendWaiting();
+        return request.reply.thenApply(MarshallFunctions::unmarshallAccountReply);
+    }
+
+    /**
+     * Sends the requests waiting their turn, in order, as long as they are within REPLY_WINDOW of the oldest request
+     * in flight; called holding the lock
+     */
+    private void sendWaiting() {
+        while (!waiting.isEmpty() && (inFlight.isEmpty() || waiting.peek().sequence - inFlight.firstKey() < REPLY_WINDOW)) {
+            Request request = waiting.poll();
+            inFlight.put(request.sequence, request);
+            send(request, timer(request.server));
+        }
+    }
+
+    /**
+     * Sends an attempt at a request, setting when its reply is due; called holding the lock
+     *
+     * @param request the request
+     * @param timer the retransmission timer of its server
+     */
+    private void send(Request request, RetransmissionTimer timer) {
+        request.attempts++;
+        request.sent = System.nanoTime();
+        request.deadline = request.sent + timer.timeout() * 1_000_000L;
+        try {
+            socket.send(new DatagramPacket(request.marshall, request.marshall.length, request.server));
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();        // sent again once the timeout passes
+        }
+    }
+
+    /**
+     * Runs on the receiver thread until the client is closed
+     * Waits for a reply until the earliest timeout of the requests in flight, then sends again those whose timeout
+     * passed
+     */
+    private void receive() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                socket.setSoTimeout(untilNextDeadline());
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                int length = packet.getLength() - REPLY_SEQUENCE_LENGTH;
+                if (length >= 0 && !failMessage("client"))
+                    replied(ByteBuffer.wrap(buffer).getLong(length), Arrays.copyOf(buffer, length));
+            } catch (SocketTimeoutException e) {
+                // time to send again the requests whose timeout passed
+            } catch (IOException e) {
+                if (closed)
+                    return;
+                e.printStackTrace();
+            }
+            retransmit();
+        }
+    }
+
+    /**
+     * @return milliseconds until the reply to a request in flight is due, at least 1
+     */
+    private synchronized int untilNextDeadline() {
+        long next = System.nanoTime() + 100_000_000L;       // so that closing the client is noticed while idle
+        for (Request request : inFlight.values())
+            next = Math.min(next, request.deadline);
+        return (int) Math.max(1, (next - System.nanoTime()) / 1_000_000L);
+    }
+
+    /**
+     * Completes the request a reply is for, unless the reply is a late one to a request already completed
+     *
+     * @param sequence the sequence number sent after the reply
+     * @param reply the reply without the sequence number
+     */
+    private void replied(long sequence, byte[] reply) {
+        Request request;
+        synchronized (this) {
+            request = inFlight.remove(sequence);
+            if (request == null)
+                return;
+            ids.acknowledge(sequence);
+            if (request.attempts == 1)
+                timer(request.server).sample(System.nanoTime() - request.sent);     // Karn's algorithm, see RetransmissionTimer
+            sendWaiting();
+        }
+        request.reply.complete(reply);
+    }
+
+    /**
+     * Sends again every request whose reply is overdue, or gives up on it after MAX_ATTEMPTS
+     * The timeout of a server is backed off once for all its requests overdue together
+     */
+    private void retransmit() {
+        List<Request> failed = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            Set<RetransmissionTimer> backedOff = new HashSet<>();
+            for (Iterator<Request> it = inFlight.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.deadline > now)
+                    continue;
+
+                RetransmissionTimer timer = timer(request.server);
+                if (backedOff.add(timer))
+                    timer.timedOut();
+                if (request.attempts < MAX_ATTEMPTS) {
+                    retransmissions++;
+                    send(request, timer);
+                } else {
+                    it.remove();
+                    ids.acknowledge(request.sequence);
+                    givenUp++;
+                    failed.add(request);
+                }
+            }
+            if (!failed.isEmpty())
+                sendWaiting();
+        }
+        for (Request request : failed)
+            request.reply.completeExceptionally(new IllegalArgumentException(TIMED_OUT));
+    }
+
+    /**
+     * @param server address of the server
+     * @return the retransmission timer of the server; called holding the lock
+     */
+    private RetransmissionTimer timer(InetSocketAddress server) {
+        return timers.computeIfAbsent(server, s -> new RetransmissionTimer());
+    }
+
+    /**
+     * @return the number of times requests were sent again so far
+     */
+    public synchronized long retransmissions() {
+        return retransmissions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("async client: %d requests, %d retransmissions, %d given up, %d in flight, %d waiting",
+                requests, retransmissions, givenUp, inFlight.size(), waiting.size());
+    }
+
+    /**
+     * Stops the receiver thread and closes the socket, cancelling the requests not replied to yet
+     */
+    @Override
+    public void close() {
+        List<Request> cancelled = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            cancelled.addAll(inFlight.values());
+            cancelled.addAll(waiting);
+            inFlight.clear();
+            waiting.clear();
+        }
+        socket.close();
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Request request : cancelled)
+            request.reply.cancel(false);
+    }
+
+    /**
+     * A request of the client and its attempts so far
+     */
+    private static final class Request {
+        final byte[] marshall;
+        final long sequence;
+        final InetSocketAddress server;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        int attempts;
+        long sent;          // System.nanoTime() of the last attempt
+        long deadline;      // System.nanoTime() by which the reply to the last attempt is due
+
+        Request(byte[] marshall, InetSocketAddress server) {
+            this.marshall = marshall;
+            this.sequence = ByteBuffer.wrap(marshall).getLong(SEQUENCE_INDEX);
+            this.server = server;
+        }
+    }
+}
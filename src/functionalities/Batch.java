@@ -0,0 +1,151 @@
+package functionalities;
+
+import objects.Currency;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static functionalities.ClientInterface.*;
+import static utils.Constants.*;
+
+/**
+ * A list of account operations to be run by the servers in the order they were added, sent with
+ * ClientInterface.sendBatch in as few requests as they fit in rather than one request each
+ * The fields of each operation are marshalled as it is added, in the binary format, as in the request of the operation
+ * alone.
+ */
+public class Batch {
+    static final int NEW_ACCOUNT = -1;      // the account number an account creation is routed by, sent to a random shard
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Adds the opening of an account
+     *
+     * @param name the name of the customer
+     * @param currency the currency of the account
+     * @param password the password of the account
+     * @param initialAccBalance the initial account balance
+     */
+    public void createAccount(String name, Currency currency, String password, String initialAccBalance) {
+        add(ACC_CREATION_CODE, NEW_ACCOUNT, fields -> putAccCreation(fields, name, currency, password, initialAccBalance));
+    }
+
+    /**
+     * Adds a query of the balance of an account
+     *
+     * @param accNumber the account number
+     * @param password the password of the account
+     */
+    public void queryAccBalance(String accNumber, String password) {
+        add(ACC_BALANCE_CODE, Integer.parseInt(accNumber), fields -> putAccBalanceQuery(fields, accNumber, password));
+    }
+
+    /**
+     * Adds the closing of an account
+     *
+     * @param name the name of the account holder
+     * @param password the password of the account
+     * @param accNumber the account number
+     */
+    public void closeAccount(String name, String password, String accNumber) {
+        add(ACC_CLOSING_CODE, Integer.parseInt(accNumber), fields -> putAccClosure(fields, name, password, accNumber));
+    }
+
+    /**
+     * Adds a deposit into an account
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency of the funds being deposited
+     * @param deposit the amount of funds being deposited
+     */
+    public void depositMoney(String name, String accNumber, String password, Currency currency, double deposit) {
+        add(DEPOSIT_MONEY_CODE, Integer.parseInt(accNumber), fields -> putDeposit(fields, name, accNumber, password, currency, deposit));
+    }
+
+    /**
+     * Adds a withdrawal from an account
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency to withdraw the money in
+     * @param withdraw the amount of money to be withdrawn
+     */
+    public void withdrawMoney(String name, String accNumber, String password, Currency currency, double withdraw) {
+        add(WITHDRAW_MONEY_CODE, Integer.parseInt(accNumber), fields -> putWithdrawal(fields, name, accNumber, password, currency, withdraw));
+    }
+
+    /**
+     * Adds a transfer to another account, held by the same shard
+     *
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param toAccNumber the account number of the receiving account
+     * @param currency the currency of the transfer
+     * @param transfer the amount to be transferred
+     */
+    public void transferMoney(String name, String accNumber, String password, String toAccNumber, Currency currency, double transfer) {
+        add(TRANSFER_MONEY_CODE, Integer.parseInt(accNumber), fields -> putTransfer(fields, name, accNumber, password, toAccNumber, currency, transfer));
+    }
+
+    /**
+     * @return the number of operations added
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * @return the operations, in the order they were added
+     */
+    List<Operation> operations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    private void add(int code, int accNumber, Consumer<ByteBuffer> marshaller) {
+        ByteBuffer fields = ByteBuffer.allocate(BUFFER_SIZE);
+        marshaller.accept(fields);
+        operations.add(new Operation((byte) code, accNumber, fields));
+    }
+
+    /**
+     * One operation of a batch, as sent in the batch request
+     */
+    static final class Operation {
+        final byte code;
+        final int accNumber;        // the account the operation is routed by, NEW_ACCOUNT for an account creation
+        final byte[] fields;
+
+        Operation(byte code, int accNumber, ByteBuffer fields) {
+            this.code = code;
+            this.accNumber = accNumber;
+            this.fields = new byte[fields.position()];
+            fields.flip().get(this.fields);
+        }
+
+        /**
+         * @return the number of bytes the operation takes in a batch request
+         */
+        int length() {
+            return BATCH_OPERATION_HEADER + fields.length;
+        }
+
+        /**
+         * Function to marshall the operation into a batch request: its code, the length of its fields, then the fields
+         *
+         * @param request the ByteBuffer the operation is written into
+         */
+        void put(ByteBuffer request) {
+            request.put(code);
+            request.putShort((short) fields.length);
+            request.put(fields);
+        }
+    }
+}
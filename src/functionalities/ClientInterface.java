@@ -1,13 +1,27 @@
 package functionalities;
 
 import objects.Account;
+import objects.BatchResult;
 import objects.Currency;
-import objects.Pointer;
+import objects.ShardMap;
+import objects.Subscription;
+import utils.ClientTransport;
 import utils.MessageIDGenerator;
+import utils.RequestStats;
 
-import java.net.DatagramSocket;
+import java.io.UncheckedIOException;
+import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+import static utils.BinaryMarshallFunctions.*;
 import static utils.Constants.*;
 import static utils.MarshallFunctions.*;
 import static utils.SocketFunctions.*;
@@ -15,7 +29,9 @@ import static utils.UtilityFunctions.*;
 
 
 public class ClientInterface {
-    public static final MessageIDGenerator gen = new MessageIDGenerator(MESSAGE_ID_LENGTH);   // create a new MessageIDGenerator
+    public static final MessageIDGenerator gen = new MessageIDGenerator();    // message ids of this client, a random client id and a sequence number
+    private static final ClientTransport transport = openTransport();                     // the socket every request and every retry is sent through
+    private static volatile ShardMap shardMap = ShardMap.single(new InetSocketAddress(HOST_NAME, SERVER_PORT_NUMBER));     // where each request is sent, refreshed from the servers
 
     /**
      * Function to process account creation.
@@ -31,31 +47,11 @@ public class ClientInterface {
      * @exception Exception throws exceptions returned by server
      */
     public static Account createAccount(String name, Currency currency, String password, String initialAccBalance) throws Exception {
-        byte[] accCreationByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_CREATION_CODE).array();
-        byte[] nameByteArray = marshall(name);
-        byte[] currencyByteArray = marshall(currency.name());
-        byte[] passwordByteArray = marshall(password);
-        byte[] accBalanceArray = marshall(initialAccBalance);
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, accCreationByteArray, nameByteArray, currencyByteArray, passwordByteArray, accBalanceArray);
-
-        byte[] reply = sendRequest(marshall); //send atLeastOnce
-        while(reply==null || failMessage("client")){
-            reply=sendRequest(marshall);
-            System.out.println("Resending Message");
-        }
-
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            default:
-                throw new Exception();
+        byte[] marshall = marshallAccCreation(gen, name, currency, password, initialAccBalance);
+        try {
+            return unmarshallAccountReply(sendUntilReplied(marshall, shardForNewAccount()));
+        } finally {
+            acknowledge(marshall);
         }
     }
 
@@ -71,30 +67,8 @@ public class ClientInterface {
      * @exception Exception throw exceptions returned by the server
      */
     public static Account queryAccBalance(String accNumber, String password)throws Exception {
-        byte[] accBalanceQueryByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_BALANCE_CODE).array();
-        byte[] accNumberByteArray = marshall(accNumber);
-        byte[] passwordByteArray = marshall(password);
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, accBalanceQueryByteArray, accNumberByteArray, passwordByteArray);
-
-        byte[] reply = sendRequest(marshall);
-        while(reply==null || failMessage("client")){
-            reply=sendRequest(marshall);
-            System.out.println("Resending Message");
-        }
-
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            default:
-                throw new Exception();
-        }
+        byte[] marshall = marshallAccBalanceQuery(gen, accNumber, password);
+        return sendToShard(marshall, Integer.parseInt(accNumber));
     }
 
     /**
@@ -110,30 +84,8 @@ public class ClientInterface {
      * @throws Exception throw exceptions returned by the server
      */
     public static Account closeAccount(String name, String password, String accNumber)throws Exception {
-        byte[] closeAccByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_CLOSING_CODE).array();
-        byte[] nameByteArray = marshall(name);
-        byte[] passwordByteArray = marshall(password);
-        byte[] accNumberByteArray = marshall(accNumber);
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, closeAccByteArray, accNumberByteArray, nameByteArray, passwordByteArray);
-
-        byte[] reply = sendRequest(marshall);
-        while(reply==null || failMessage("client")){
-            System.out.println("Resending Message");
-            reply=sendRequest(marshall);
-        }
-
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            default:
-                throw new Exception();}
+        byte[] marshall = marshallAccClosure(gen, name, password, accNumber);
+        return sendToShard(marshall, Integer.parseInt(accNumber));
     }
 
     /**
@@ -151,32 +103,8 @@ public class ClientInterface {
      * @throws Exception throw exceptions returned by the server
      */
     public static Account depositMoney(String name, String accNumber,String password,Currency currency, double deposit) throws Exception {
-        byte[] depositMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(DEPOSIT_MONEY_CODE).array();
-        byte[] nameByteArray = marshall(name);
-        byte[] accNumberByteArray = marshall(accNumber);
-        byte[] passwordByteArray = marshall(password);
-        byte[] currencyByteArray = marshall(currency.name());
-        byte[] depositByteArray = marshall(String.valueOf(deposit));
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, depositMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,currencyByteArray,depositByteArray);
-
-        byte[] reply = sendRequest(marshall);
-        while(reply==null || failMessage("client")){
-            reply=sendRequest(marshall);
-            System.out.println("Resending Message");
-        }
-
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            default:
-                throw new Exception();}
+        byte[] marshall = marshallDeposit(gen, name, accNumber, password, currency, deposit);
+        return sendToShard(marshall, Integer.parseInt(accNumber));
     }
 
     /**
@@ -194,34 +122,8 @@ public class ClientInterface {
      * @throws Exception throws exceptions returned by the server
      */
     public static Account withdrawMoney(String name, String accNumber,String password,Currency currency, double withdraw)throws Exception {
-        byte[] withdrawMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(WITHDRAW_MONEY_CODE).array();
-        byte[] nameByteArray = marshall(name);
-        byte[] accNumberByteArray = marshall(accNumber);
-        byte[] passwordByteArray = marshall(password);
-        byte[] currencyByteArray = marshall(currency.name());
-        byte[] withdrawByteArray = marshall(String.valueOf(withdraw));
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, withdrawMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,currencyByteArray,withdrawByteArray);
-
-        byte[] reply = sendRequest(marshall);
-        while(reply==null || failMessage("client")){
-            reply=sendRequest(marshall);
-            System.out.println("Resending Message");
-        }
-
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            case INSUFFICIENT:
-                throw new IllegalArgumentException(INSUFFICIENT);
-            default:
-                throw new Exception();}
+        byte[] marshall = marshallWithdrawal(gen, name, accNumber, password, currency, withdraw);
+        return sendToShard(marshall, Integer.parseInt(accNumber));
     }
 
     /**
@@ -240,34 +142,334 @@ public class ClientInterface {
      * @throws Exception unknown exception
      */
     public static Account transferMoney(String name, String accNumber,String password,String toAccNumber,Currency currency, double transfer)throws Exception {
-        byte[] transferMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(TRANSFER_MONEY_CODE).array();
-        byte[] nameByteArray = marshall(name);
-        byte[] accNumberByteArray = marshall(accNumber);
-        byte[] passwordByteArray = marshall(password);
-        byte[] toAccNumberByteArray = marshall(toAccNumber);
-        byte[] currencyByteArray = marshall(currency.name());
-        byte[] transferByteArray = marshall(String.valueOf(transfer));
-        byte[] messageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] marshall = concatWithCopy(messageIDArray, transferMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,toAccNumberByteArray,currencyByteArray,transferByteArray);
-
-        byte[] reply = sendRequest(marshall);
-        while(reply==null || failMessage("client")){
-            reply=sendRequest(marshall);
-            System.out.println("Resending Message");
+        byte[] marshall = marshallTransfer(gen, name, accNumber, password, toAccNumber, currency, transfer);
+        return sendToShard(marshall, Integer.parseInt(accNumber));
+    }
+
+    /**
+     * Function to marshall the request to open an account
+     *
+     * @param ids the generator of the message ids of the client
+     * @param name the name of the customer
+     * @param currency the currency of the account
+     * @param password the password of the account
+     * @param initialAccBalance the initial account balance
+     * @return the request
+     */
+    static byte[] marshallAccCreation(MessageIDGenerator ids, String name, Currency currency, String password, String initialAccBalance) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, ACC_CREATION_CODE);
+            putAccCreation(request, name, currency, password, initialAccBalance);
+            marshall = toByteArray(request);
+        } else {
+            byte[] accCreationByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_CREATION_CODE).array();
+            byte[] nameByteArray = marshall(name);
+            byte[] currencyByteArray = marshall(currency.name());
+            byte[] passwordByteArray = marshall(password);
+            byte[] accBalanceArray = marshall(initialAccBalance);
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, accCreationByteArray, nameByteArray, currencyByteArray, passwordByteArray, accBalanceArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the request to query the balance of an account
+     *
+     * @param ids the generator of the message ids of the client
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @return the request
+     */
+    static byte[] marshallAccBalanceQuery(MessageIDGenerator ids, String accNumber, String password) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, ACC_BALANCE_CODE);
+            putAccBalanceQuery(request, accNumber, password);
+            marshall = toByteArray(request);
+        } else {
+            byte[] accBalanceQueryByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_BALANCE_CODE).array();
+            byte[] accNumberByteArray = marshall(accNumber);
+            byte[] passwordByteArray = marshall(password);
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, accBalanceQueryByteArray, accNumberByteArray, passwordByteArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the request to close an account
+     *
+     * @param ids the generator of the message ids of the client
+     * @param name the name of the account holder
+     * @param password the password of the account
+     * @param accNumber the account number
+     * @return the request
+     */
+    static byte[] marshallAccClosure(MessageIDGenerator ids, String name, String password, String accNumber) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, ACC_CLOSING_CODE);
+            putAccClosure(request, name, password, accNumber);
+            marshall = toByteArray(request);
+        } else {
+            byte[] closeAccByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ACC_CLOSING_CODE).array();
+            byte[] nameByteArray = marshall(name);
+            byte[] passwordByteArray = marshall(password);
+            byte[] accNumberByteArray = marshall(accNumber);
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, closeAccByteArray, accNumberByteArray, nameByteArray, passwordByteArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the request to deposit money
+     *
+     * @param ids the generator of the message ids of the client
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency of the funds being deposited
+     * @param deposit the amount of funds being deposited
+     * @return the request
+     */
+    static byte[] marshallDeposit(MessageIDGenerator ids, String name, String accNumber, String password, Currency currency, double deposit) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, DEPOSIT_MONEY_CODE);
+            putDeposit(request, name, accNumber, password, currency, deposit);
+            marshall = toByteArray(request);
+        } else {
+            byte[] depositMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(DEPOSIT_MONEY_CODE).array();
+            byte[] nameByteArray = marshall(name);
+            byte[] accNumberByteArray = marshall(accNumber);
+            byte[] passwordByteArray = marshall(password);
+            byte[] currencyByteArray = marshall(currency.name());
+            byte[] depositByteArray = marshall(String.valueOf(deposit));
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, depositMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,currencyByteArray,depositByteArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the request to withdraw money
+     *
+     * @param ids the generator of the message ids of the client
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency to withdraw the money in
+     * @param withdraw the amount of money to be withdrawn
+     * @return the request
+     */
+    static byte[] marshallWithdrawal(MessageIDGenerator ids, String name, String accNumber, String password, Currency currency, double withdraw) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, WITHDRAW_MONEY_CODE);
+            putWithdrawal(request, name, accNumber, password, currency, withdraw);
+            marshall = toByteArray(request);
+        } else {
+            byte[] withdrawMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(WITHDRAW_MONEY_CODE).array();
+            byte[] nameByteArray = marshall(name);
+            byte[] accNumberByteArray = marshall(accNumber);
+            byte[] passwordByteArray = marshall(password);
+            byte[] currencyByteArray = marshall(currency.name());
+            byte[] withdrawByteArray = marshall(String.valueOf(withdraw));
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, withdrawMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,currencyByteArray,withdrawByteArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the request to transfer money to another account
+     *
+     * @param ids the generator of the message ids of the client
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param toAccNumber the account number of the receiving account
+     * @param currency the currency of the transfer
+     * @param transfer the amount to be transferred
+     * @return the request
+     */
+    static byte[] marshallTransfer(MessageIDGenerator ids, String name, String accNumber, String password, String toAccNumber, Currency currency, double transfer) {
+        byte[] marshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer request = newBinaryRequest(ids, TRANSFER_MONEY_CODE);
+            putTransfer(request, name, accNumber, password, toAccNumber, currency, transfer);
+            marshall = toByteArray(request);
+        } else {
+            byte[] transferMoneyByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(TRANSFER_MONEY_CODE).array();
+            byte[] nameByteArray = marshall(name);
+            byte[] accNumberByteArray = marshall(accNumber);
+            byte[] passwordByteArray = marshall(password);
+            byte[] toAccNumberByteArray = marshall(toAccNumber);
+            byte[] currencyByteArray = marshall(currency.name());
+            byte[] transferByteArray = marshall(String.valueOf(transfer));
+            byte[] messageIDArray = ids.next();
+            marshall = concatWithCopy(messageIDArray, transferMoneyByteArray, nameByteArray, accNumberByteArray, passwordByteArray,toAccNumberByteArray,currencyByteArray,transferByteArray);
+        }
+        return marshall;
+    }
+
+    /**
+     * Function to marshall the fields of the account creation in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param name the name of the customer
+     * @param currency the currency of the account
+     * @param password the password of the account
+     * @param initialAccBalance the initial account balance
+     */
+    static void putAccCreation(ByteBuffer request, String name, Currency currency, String password, String initialAccBalance) {
+        putString(request, name);
+        putCurrency(request, currency);
+        putString(request, password);
+        request.putLong(parseMinorUnits(initialAccBalance));
+    }
+
+    /**
+     * Function to marshall the fields of the balance query in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param accNumber the account number
+     * @param password the password of the account
+     */
+    static void putAccBalanceQuery(ByteBuffer request, String accNumber, String password) {
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, password);
+    }
+
+    /**
+     * Function to marshall the fields of the account closure in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param name the name of the account holder
+     * @param password the password of the account
+     * @param accNumber the account number
+     */
+    static void putAccClosure(ByteBuffer request, String name, String password, String accNumber) {
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, name);
+        putString(request, password);
+    }
+
+    /**
+     * Function to marshall the fields of the deposit in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency of the funds being deposited
+     * @param deposit the amount of funds being deposited
+     */
+    static void putDeposit(ByteBuffer request, String name, String accNumber, String password, Currency currency, double deposit) {
+        putString(request, name);
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, password);
+        putCurrency(request, currency);
+        request.putLong(toMinorUnits(deposit));
+    }
+
+    /**
+     * Function to marshall the fields of the withdrawal in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param currency the currency to withdraw the money in
+     * @param withdraw the amount of money to be withdrawn
+     */
+    static void putWithdrawal(ByteBuffer request, String name, String accNumber, String password, Currency currency, double withdraw) {
+        putString(request, name);
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, password);
+        putCurrency(request, currency);
+        request.putLong(toMinorUnits(withdraw));
+    }
+
+    /**
+     * Function to marshall the fields of the transfer in the binary format, after the header of a request or in a batch
+     *
+     * @param request the ByteBuffer the fields are written into
+     * @param name the name of the account holder
+     * @param accNumber the account number
+     * @param password the password of the account
+     * @param toAccNumber the account number of the receiving account
+     * @param currency the currency of the transfer
+     * @param transfer the amount to be transferred
+     */
+    static void putTransfer(ByteBuffer request, String name, String accNumber, String password, String toAccNumber, Currency currency, double transfer) {
+        putString(request, name);
+        request.putInt(Integer.parseInt(accNumber));
+        putString(request, password);
+        request.putInt(Integer.parseInt(toAccNumber));
+        putCurrency(request, currency);
+        request.putLong(toMinorUnits(transfer));
+    }
+
+    /**
+     * Function to run a batch of operations, binary wire format only
+     * The operations on the accounts of each shard are packed into as few batch requests as they fit in, up to
+     * BATCH_MAX_OPERATIONS each, which are sent one after the other, so the operations on one account run in the order
+     * they were added. Every operation gets a result, the status code of the batch request for one the server did not
+     * run, e.g. TIMED_OUT if no reply came; the operations of a request that timed out may or may not have been run.
+     * An operation too long for a request of its own is not sent and gets BAD_REQUEST.
+     *
+     * @param batch the operations
+     * @return a result for each operation, in the order they were added
+     */
+    public static List<BatchResult> sendBatch(Batch batch) {
+        if (WIRE_FORMAT_VERSION != PROTOCOL_V2)
+            throw new UnsupportedOperationException("Batches are only sent in the binary wire format");
+
+        List<Batch.Operation> operations = batch.operations();
+        Map<InetSocketAddress, List<Integer>> byServer = new LinkedHashMap<>();       // indices of the operations on each shard
+        for (int i = 0; i < operations.size(); i++) {
+            int accNumber = operations.get(i).accNumber;
+            InetSocketAddress server = accNumber == Batch.NEW_ACCOUNT ? shardForNewAccount() : shardOf(accNumber);
+            byServer.computeIfAbsent(server, k -> new ArrayList<>()).add(i);
         }
 
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        switch (statusCode) {
-            case OK:
-                return unmarshallAccount(pointer, reply);
-            case NOT_FOUND:
-                throw new IllegalArgumentException(NOT_FOUND);
-            case UNAUTHORIZED:
-                throw new IllegalArgumentException(UNAUTHORIZED);
-            default:
-                throw new Exception();
+        BatchResult[] results = new BatchResult[operations.size()];
+        for (Map.Entry<InetSocketAddress, List<Integer>> shard : byServer.entrySet()) {
+            List<Integer> indices = shard.getValue();
+            int from = 0;
+            while (from < indices.size()) {
+                if (operations.get(indices.get(from)).length() > BUFFER_SIZE - BINARY_INFO_START_INDEX) {
+                    results[indices.get(from++)] = new BatchResult(BAD_REQUEST);    // too long for a request of its own, not sent
+                    continue;
+                }
+                ByteBuffer request = newBinaryRequest(gen, BATCH_CODE);
+                int to = from;
+                while (to < indices.size() && to - from < BATCH_MAX_OPERATIONS && operations.get(indices.get(to)).length() <= request.remaining())
+                    operations.get(indices.get(to++)).put(request);
+
+                byte[] marshall = toByteArray(request);
+                ByteBuffer reply = null;
+                String statusCode;
+                try {
+                    reply = ByteBuffer.wrap(sendUntilReplied(marshall, shard.getKey()));
+                    statusCode = unmarshallStatusBinary(reply);
+                } catch (IllegalArgumentException failure) {
+                    statusCode = failure.getMessage();
+                } finally {
+                    acknowledge(marshall);
+                }
+
+                for (int i = from; i < to; i++)
+                    results[indices.get(i)] = !statusCode.equals(OK) ? new BatchResult(statusCode)
+                            : reply.hasRemaining() ? unmarshallResultBinary(reply) : new BatchResult(BAD_REQUEST);
+                from = to;
+            }
         }
+        return Arrays.asList(results);
     }
 
     /**
@@ -275,41 +477,197 @@ public class ClientInterface {
      * Sends a request to the server to add current client to the list of monitoring clients
      * Client then begin monitoring the server for a set duration, timekeeping done by client
      * When duration is up, client sends a request to the server to stop monitoring
+     * With a sharded server, the client monitors the server of every shard through the same socket
      *
      * @param duration time in seconds to monitor
      * @throws Exception throws unknown exception
      */
     public static void monitorUpdates(int duration) throws Exception {
-        /* Set up the byte array containing instructions for current client to monitor server */
-        byte[] startMonitorUpdatesByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ADD_OBSERVERS_FOR_MONITORING_CODE).array();
-        byte[] startMessageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] startMonitoringMarshall = concatWithCopy(startMessageIDArray, startMonitorUpdatesByteArray);
-
-        /* Set up the byte array containing instructions for current client to end monitoring of server */
-        byte[] endMonitorUpdatesByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(REMOVE_OBSERVERS_FROM_MONITORING_CODE).array();
-        byte[] endMessageIDArray = convertStringToByteArray(gen.nextString());
-        byte[] endMonitoringMarshall = concatWithCopy(endMessageIDArray, endMonitorUpdatesByteArray);
-
-        DatagramSocket aSocket = new DatagramSocket();
-        byte[] reply = sendRequestForMonitoring(startMonitoringMarshall, aSocket);
-        while(reply==null || failMessage("client")){
-            reply=sendRequestForMonitoring(startMonitoringMarshall, aSocket);
-            System.out.println("Resending Message");
+        monitorUpdates(duration, Subscription.ALL);
+    }
+
+    /**
+     * Function to monitor only the updates on some accounts or of some actions
+     * The server filters the updates, only the v1 format cannot carry a subscription and always gets every update
+     * With MONITOR_MULTICAST, the client registers with no server but joins the group every update is sent to, and
+     * filters the updates itself
+     *
+     * @param duration time in seconds to monitor
+     * @param subscription the accounts and actions to monitor
+     * @throws Exception throws unknown exception
+     */
+    public static void monitorUpdates(int duration, Subscription subscription) throws Exception {
+        if (MONITOR_MULTICAST) {
+            try (MulticastSocket aSocket = joinMonitorGroup()) {
+                monitorServer(duration, aSocket, subscription);
+            }
+            return;
         }
 
-        Pointer pointer = new Pointer(0);
-        String statusCode = unmarshall(pointer, reply);
-        if (!statusCode.equals(OK)) {
-            throw new Exception();
+        byte[] startMonitoringMarshall, endMonitoringMarshall;
+        if (WIRE_FORMAT_VERSION == PROTOCOL_V2) {
+            ByteBuffer startRequest = newBinaryRequest(gen, ADD_OBSERVERS_FOR_MONITORING_CODE);
+            putSubscription(startRequest, subscription);
+            startMonitoringMarshall = toByteArray(startRequest);
+            endMonitoringMarshall = toByteArray(newBinaryRequest(gen, REMOVE_OBSERVERS_FROM_MONITORING_CODE));
+        } else {
+            /* Set up the byte array containing instructions for current client to monitor server */
+            byte[] startMonitorUpdatesByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(ADD_OBSERVERS_FOR_MONITORING_CODE).array();
+            byte[] startMessageIDArray = gen.next();
+            startMonitoringMarshall = concatWithCopy(startMessageIDArray, startMonitorUpdatesByteArray);
+
+            /* Set up the byte array containing instructions for current client to end monitoring of server */
+            byte[] endMonitorUpdatesByteArray = ByteBuffer.allocate(BYTE_BLOCK_SIZE_FOR_INT).putInt(REMOVE_OBSERVERS_FROM_MONITORING_CODE).array();
+            byte[] endMessageIDArray = gen.next();
+            endMonitoringMarshall = concatWithCopy(endMessageIDArray, endMonitorUpdatesByteArray);
         }
 
-        monitorServer(duration, aSocket);
+        ShardMap shards = shardMap;
+        try (ClientTransport monitor = new ClientTransport()) {       // the servers send the updates to the socket the client registered from
+            try {
+                for (int i = 0; i < shards.shards(); i++) {
+                    String statusCode = unmarshallStatusReply(monitor.send(startMonitoringMarshall, shards.address(i), MAX_ATTEMPTS));
+                    if (!statusCode.equals(OK)) {
+                        throw new Exception();
+                    }
+                }
+            } finally {
+                acknowledge(startMonitoringMarshall);
+            }
 
-        reply = sendRequestForMonitoring(endMonitoringMarshall, aSocket);
-        while(reply==null || failMessage("client")){
-            reply=sendRequestForMonitoring(endMonitoringMarshall, aSocket);
-            System.out.println("Resending Message");
+            monitorServer(duration, monitor.socket(), subscription);
+
+            try {
+                for (int i = 0; i < shards.shards(); i++)
+                    monitor.send(endMonitoringMarshall, shards.address(i), MAX_ATTEMPTS);
+            } finally {
+                acknowledge(endMonitoringMarshall);
+            }
+        }
+    }
+
+    /**
+     * Function to refresh the shard map from the servers
+     * Asks the server of each shard in the current map in turn until one replies; a server that does not hold a shard
+     * replies NOT_FOUND, and the client keeps sending every request to it
+     * Only binary requests carry the shard map, in the v1 format the client always sends to HOST_NAME
+     */
+    public static void refreshShardMap() {
+        if (WIRE_FORMAT_VERSION != PROTOCOL_V2)
+            return;
+
+        ShardMap current = shardMap;
+        byte[] marshall = toByteArray(newBinaryRequest(gen, SHARD_MAP_CODE));
+        try {
+            for (int i = 0; i < current.shards(); i++) {
+                byte[] reply;
+                try {
+                    reply = transport.send(marshall, current.address(i), MAX_ATTEMPTS);
+                } catch (IllegalArgumentException timedOut) {
+                    continue;           // try the next shard, this one may be down
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(reply);
+                if (unmarshallStatusBinary(buffer).equals(OK))
+                    shardMap = unmarshallShardMapBinary(buffer);
+                return;
+            }
+        } finally {
+            acknowledge(marshall);
+        }
+    }
+
+    /**
+     * Function to send a request for an account to the server of the shard holding it
+     * If that server no longer holds the account, the shard map is refreshed and the request sent once more
+     * The request is acknowledged only then, the servers drop a request once it is acknowledged
+     *
+     * @param marshall the request
+     * @param accNumber the account number the request is routed by
+     * @return reconstructed Account object with details provided by the server
+     * @throws IllegalArgumentException throws exceptions returned by the server
+     */
+    private static Account sendToShard(byte[] marshall, int accNumber) throws IllegalArgumentException {
+        try {
+            ShardMap shards = shardMap;
+            try {
+                return unmarshallAccountReply(sendUntilReplied(marshall, shards.address(shards.shardOf(accNumber))));
+            } catch (IllegalArgumentException serverError) {
+                if (!MISDIRECTED.equals(serverError.getMessage()))
+                    throw serverError;
+            }
+
+            refreshShardMap();
+            shards = shardMap;
+            return unmarshallAccountReply(sendUntilReplied(marshall, shards.address(shards.shardOf(accNumber))));
+        } finally {
+            acknowledge(marshall);
+        }
+    }
+
+    /**
+     * Function to tell the servers, with the next request, that the client is done with a request
+     *
+     * @param marshall the request
+     */
+    private static void acknowledge(byte[] marshall) {
+        gen.acknowledge(ByteBuffer.wrap(marshall).getLong(SEQUENCE_INDEX));
+    }
+
+    /**
+     * @return address of the server of a random shard, which gives the new account a number in its own range
+     */
+    static InetSocketAddress shardForNewAccount() {
+        ShardMap shards = shardMap;
+        return shards.address(ThreadLocalRandom.current().nextInt(shards.shards()));
+    }
+
+    /**
+     * @param accNumber the account number
+     * @return address of the server of the shard holding the account, as far as the client knows
+     */
+    static InetSocketAddress shardOf(int accNumber) {
+        ShardMap shards = shardMap;
+        return shards.address(shards.shardOf(accNumber));
+    }
+
+    /**
+     * Function to send a request until a reply arrives, up to MAX_ATTEMPTS times
+     *
+     * @param marshall the request
+     * @param server address of the server
+     * @return the reply message from the server
+     * @throws IllegalArgumentException with the TIMED_OUT status code if no reply arrived
+     */
+    private static byte[] sendUntilReplied(byte[] marshall, InetSocketAddress server) throws IllegalArgumentException {
+        return transport.send(marshall, server, MAX_ATTEMPTS);     //send atLeastOnce
+    }
+
+    /**
+     * @return how the last request of the client fared: its retries and the round trip time of its reply, or null
+     *         before the first request
+     */
+    public static RequestStats lastRequestStats() {
+        return transport.lastStats();
+    }
+
+    /**
+     * @return the requests, retransmissions and estimated round trip times of the client so far
+     */
+    public static String transportStats() {
+        return transport.toString();
+    }
+
+    /**
+     * Binds the socket of the client, once for its whole life
+     *
+     * @return the transport
+     */
+    private static ClientTransport openTransport() {
+        try {
+            return new ClientTransport();
+        } catch (SocketException e) {
+            throw new UncheckedIOException(e);
         }
-        aSocket.close();
     }
 }
@@ -1,28 +1,75 @@
 package functionalities;
 
 import objects.Account;
+import objects.AccountStore;
 import objects.Currency;
 import objects.Observer;
 import objects.Pointer;
+import objects.ShardMap;
+import objects.StringView;
+import objects.StripedLocks;
+import objects.Subscribers;
 
-import java.util.Map;
+import persistence.MutationLog;
+import utils.BinaryMarshallFunctions;
+import utils.MarshallFunctions;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static utils.BinaryMarshallFunctions.*;
 import static utils.Constants.*;
 import static utils.MarshallFunctions.*;
-import static utils.UtilityFunctions.round;
 
 public class ServerInterface {
+    private static final StripedLocks accountLocks = new StripedLocks(ACCOUNT_LOCK_STRIPES);   // serialise operations on the same account when requests run in parallel
+    private static volatile MutationLog mutationLog = MutationLog.NONE;                         // every change to the accounts is recorded here
+    private static volatile ShardMap shardMap;                                                  // null unless this server holds one shard of the accounts
+    private static volatile int firstAccNumber = FIRST_ACCOUNT_NUMBER;                          // the account numbers held by this server, up to endAccNumber
+    private static volatile int endAccNumber = Integer.MAX_VALUE;
+
+    /**
+     * Set the log every change to the accounts is recorded in, e.g. a WriteAheadLog
+     *
+     * @param log the log
+     */
+    public static void setMutationLog(MutationLog log) {
+        mutationLog = log;
+    }
+
+    /**
+     * @return the log every change to the accounts is recorded in
+     */
+    public static MutationLog getMutationLog() {
+        return mutationLog;
+    }
+
+    /**
+     * Make this server hold one shard of the accounts: new accounts are given numbers in the range of the shard, and
+     * requests for accounts outside of it are refused with MISDIRECTED so the client refreshes its shard map
+     *
+     * @param map the shard map, sent to clients asking for it
+     * @param shard index of the shard held by this server
+     */
+    public static void setShard(ShardMap map, int shard) {
+        firstAccNumber = map.first(shard);
+        endAccNumber = map.end(shard);
+        shardMap = map;
+    }
+
     /**
      * Function to process the account creation
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data from the data given
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data from the data given
      * Generates a random account number, creates the account and adds it into the account mapping
      *
-     * @param request byte array containing data from the client
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @return the byte array containing the details of the newly created account
+     * @param request ByteBuffer holding the request as received, positioned at the data from the client
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
      */
-    public static byte[] processAccCreation(byte[] request, Map<Integer, Account> accMapping) {
+    public static void processAccCreation(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) {
         /*
             I'm basing my design off CORBA's Common Data Representation where it is assumed that sender and recipient have
             common knowledge of the order and types of the data items in a message.
@@ -49,225 +96,699 @@ public class ServerInterface {
             31 30 30 30 2E 30 30 5F = "1000.00_" (7 bytes to represent the initial bank amount with 1 byte as padding)
 
          */
-        Pointer pointer = new Pointer(0);
+        Pointer pointer = new Pointer(request.position());
 
         String name = unmarshall(pointer, request);
-        String currency = unmarshall(pointer, request);
+        Currency currency = unmarshallCurrency(pointer, request);
         String password = unmarshall(pointer, request);
-        String amtString = unmarshall(pointer, request);
-        double amt = round(Double.parseDouble(amtString), 2);
-
-        int accNumber = (int) ((Math.random() * (Integer.MAX_VALUE - 1000000000)) + 1000000000);        // Generate random acc number
-        if (accMapping.containsKey(accNumber)) {
-            accNumber = (int) ((Math.random() * (Integer.MAX_VALUE - 1000000000)) + 1000000000);        // Generate another account number if not unique (not likely to happen in our use case)
-        }
-        Account newAccount = new Account(name, Currency.valueOf(currency), password, amt, accNumber, AccountCreation);
-        accMapping.put(accNumber, newAccount);     // create account and add it into the account mapping
+        long amt = unmarshallAmount(pointer, request);
 
-        return marshallAccount(newAccount);
+        openAccount(name, currency, password, amt, accMapping, MarshallFunctions::marshallAccount, reply);
     }
 
     /**
      * Function to query the server for the current account balance
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data given by the client
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data given by the client
      * Find the account to be queried
      *
-     * @param request byte array containing the account number and password of the account
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @return an Account object containing the account details (excluding password)
+     * @param request ByteBuffer holding the request as received, positioned at the account number and password of the account
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
      * @throws IllegalArgumentException throws exception if account is not found or password given is wrong
      */
-    public static byte[] processAccBalanceQuery(byte[] request, Map<Integer, Account> accMapping) throws IllegalArgumentException {
-        Pointer val = new Pointer(0);
+    public static void processAccBalanceQuery(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
 
-        int accNumber = Integer.parseInt(unmarshall(val, request));
-        String password = unmarshall(val, request);
+        int accNumber = unmarshallInt(val, request);
+        StringView password = unmarshallView(val, request);
 
-        if (!accMapping.containsKey(accNumber))
-            throw new IllegalArgumentException(NOT_FOUND);
-
-        Account queriedAccount = accMapping.get(accNumber);
-
-        if (queriedAccount.verifyPassword(password)) {
-            queriedAccount.setAction(CheckBalance);
-            return marshallAccount(queriedAccount);
-        } else {
-            throw new IllegalArgumentException(UNAUTHORIZED);
-        }
+        queryBalance(accNumber, password, accMapping, MarshallFunctions::marshallAccount, reply);
     }
 
     /**
      * Function to close an account on the server
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data given by the client
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data given by the client
      * Find the account to be queried
      *
-     * @param request byte array containing the account number, name and password of account to be closed
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @param <K> Integer
-     * @param <V> Account
-     * @return an Account object containing the account details (excluding password)
+     * @param request ByteBuffer holding the request as received, positioned at the account number, name and password of account to be closed
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
      * @throws IllegalArgumentException throws exception if account is not found or password given is wrong
      */
-    public static <K,V> byte[] processAccClosure(byte[] request, Map<K,V> accMapping) throws IllegalArgumentException {
-        Pointer val = new Pointer(0);
+    public static void processAccClosure(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
 
-        int accNumber = Integer.parseInt(unmarshall(val, request));
-        String name = unmarshall(val, request);
-        String password = unmarshall(val, request);
+        int accNumber = unmarshallInt(val, request);
+        StringView name = unmarshallView(val, request);
+        StringView password = unmarshallView(val, request);
 
-        if (!accMapping.containsKey(accNumber))
-            throw new IllegalArgumentException(NOT_FOUND);
-
-        Account queriedAccount = (Account) accMapping.get(accNumber);
-
-        if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
-            accMapping.remove(accNumber);
-            queriedAccount.setAction(AccountClosure);
-            return marshallAccount(queriedAccount);
-        } else {
-            throw new IllegalArgumentException(UNAUTHORIZED);
-        }
+        closeAccount(accNumber, name, password, accMapping, MarshallFunctions::marshallAccount, reply);
     }
 
     /**
      * Function to deposit money into an account on the server
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data given by the client
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data given by the client
      * Find the account to be queried and check that account name and password entered is correct
      *
-     * @param request byte array containing the account number, name and password of account to be closed
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @return an Account object containing the account details (excluding password)
+     * @param request ByteBuffer holding the request as received, positioned at the account number, name and password of account to be closed
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
      * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong
      */
-    public static byte[] depositMoney(byte[] request, Map<Integer, Account> accMapping) throws IllegalArgumentException{
-        Pointer val = new Pointer(0);
+    public static void depositMoney(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException{
+        Pointer val = new Pointer(request.position());
 
-        String name = unmarshall(val, request);
-        int accNumber = Integer.parseInt(unmarshall(val, request));
-        String password = unmarshall(val, request);
-        String currency = unmarshall(val, request);
-        double deposit = round(Double.parseDouble(unmarshall(val, request)), 2);
+        StringView name = unmarshallView(val, request);
+        int accNumber = unmarshallInt(val, request);
+        StringView password = unmarshallView(val, request);
+        Currency currency = unmarshallCurrency(val, request);
+        long deposit = unmarshallAmount(val, request);
 
-        if (!accMapping.containsKey(accNumber))
-            throw new IllegalArgumentException(NOT_FOUND);
-        Account queriedAccount = accMapping.get(accNumber);
-
-        if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
-            queriedAccount.deposit(deposit,currency);
-            queriedAccount.setAction(DepositFunds);
-            return marshallAccount(queriedAccount);
-        } else {
-            throw new IllegalArgumentException(UNAUTHORIZED);
-        }
+        deposit(name, accNumber, password, currency, deposit, accMapping, MarshallFunctions::marshallAccount, reply);
     }
 
     /**
      * Function to withdraw money from an account on the server
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data given by the client
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data given by the client
      * Find the account to be queried and check that account name and password entered is correct
      * Withdraw money if there is sufficient funds in account
      *
-     * @param request byte array containing the account number, name and password of account to be closed
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @return an Account object containing the account details (excluding password)
+     * @param request ByteBuffer holding the request as received, positioned at the account number, name and password of account to be closed
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
      * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
      */
-    public static byte[] withdrawMoney(byte[] request, Map<Integer, Account> accMapping) throws IllegalArgumentException{
+    public static void withdrawMoney(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException{
+        Pointer val = new Pointer(request.position());
+
+        StringView name = unmarshallView(val, request);
+        int accNumber = unmarshallInt(val, request);
+        StringView password = unmarshallView(val, request);
+        Currency currency = unmarshallCurrency(val, request);
+        long withdraw = unmarshallAmount(val, request);
+
+        withdraw(name, accNumber, password, currency, withdraw, accMapping, MarshallFunctions::marshallAccount, reply);
+    }
+
+    /**
+     * Function to transfer money from an account on the server to another account on the server
+     * Data from the client is read in place from the received request with help of a Pointer object
+     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should read the data given by the client
+     * Find the account to be queried and check that account name and password entered is correct
+     * Check that the recipient account exists
+     * Withdraw money if there is sufficient funds in account and then deposit funds into the recipient account
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the account number, name and password of account to be closed
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    public static void transferMoney(ByteBuffer request, ByteBuffer reply, AccountStore accMapping){
+        transferMoney(request, reply, null, accMapping);
+    }
+
+    /**
+     * Function to transfer money from an account on the server to another account on the server, also writing the
+     * details of the recipient account for the monitoring clients
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, account number and password
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param recipientUpdate ByteBuffer the recipient account is written into, or null if no one is monitoring
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    public static void transferMoney(ByteBuffer request, ByteBuffer reply, ByteBuffer recipientUpdate, AccountStore accMapping){
+        Pointer val = new Pointer(request.position());
+
+        StringView name = unmarshallView(val, request);
+        int accNumber = unmarshallInt(val, request);
+        StringView password = unmarshallView(val, request);
+        int toAccNumber = unmarshallInt(val, request);
+        Currency currency = unmarshallCurrency(val, request);
+        long transfer = unmarshallAmount(val, request);
+
+        transfer(name, accNumber, password, toAccNumber, currency, transfer, accMapping, MarshallFunctions::marshallAccount, reply,
+                recipientUpdate == null ? null : recipient -> marshallAccount(recipient, recipientUpdate));
+    }
+
+    /*
+        Handlers for requests in the binary wire format (see BinaryMarshallFunctions)
+        The fields are read in the same order as in the v1 handlers above, and the reply is marshalled in the binary format
+     */
+
+    /**
+     * Function to process the account creation from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, currency, password and initial balance in the binary format
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    public static void processAccCreationBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) {
+        processAccCreationBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply, accMapping);
+    }
+
+    /**
+     * Function to query the current account balance from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the account number and password in the binary format
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or password given is wrong
+     */
+    public static void processAccBalanceQueryBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        processAccBalanceQueryBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply, accMapping);
+    }
+
+    /**
+     * Function to close an account from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the account number, name and password in the binary format
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong
+     */
+    public static void processAccClosureBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        processAccClosureBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply, accMapping);
+    }
+
+    /**
+     * Function to deposit money from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, account number, password, currency and amount in the binary format
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong
+     */
+    public static void depositMoneyBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        depositMoneyBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply, accMapping);
+    }
+
+    /**
+     * Function to withdraw money from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, account number, password, currency and amount in the binary format
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    public static void withdrawMoneyBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        withdrawMoneyBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply, accMapping);
+    }
+
+    /**
+     * Function to transfer money to another account from a binary request
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, account number, password, recipient account number, currency and
+     * @param reply ByteBuffer the reply to the client is written into
+     *                amount in the binary format
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    public static void transferMoneyBinary(ByteBuffer request, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        transferMoneyBinary(request, reply, null, accMapping);
+    }
+
+    /**
+     * Function to transfer money to another account from a binary request, also writing the details of the recipient
+     * account for the monitoring clients
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the name, account number and password
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param recipientUpdate ByteBuffer the recipient account is written into, or null if no one is monitoring
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    public static void transferMoneyBinary(ByteBuffer request, ByteBuffer reply, ByteBuffer recipientUpdate, AccountStore accMapping) throws IllegalArgumentException {
+        transferMoneyBinary(request, BinaryMarshallFunctions::marshallAccountBinary, reply,
+                recipientUpdate == null ? null : recipient -> marshallAccountBinary(recipient, recipientUpdate), accMapping);
+    }
+
+    /**
+     * Function to transfer money from a binary request, marshalling the accounts with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param recipientUpdate function given the recipient account for the monitoring clients, or null if no one is monitoring
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void transferMoneyBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply,
+                                            Consumer<Account> recipientUpdate, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
+
+        StringView name = getStringView(val, request);
+        int accNumber = getInt(val, request);
+        StringView password = getStringView(val, request);
+        int toAccNumber = getInt(val, request);
+        Currency currency = getCurrency(val, request);
+        long transfer = getLong(val, request);
+
+        transfer(name, accNumber, password, toAccNumber, currency, transfer, accMapping, marshaller, reply, recipientUpdate);
+    }
+
+    /**
+     * Function to process the account creation from a binary request, marshalling the account with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void processAccCreationBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply, AccountStore accMapping) {
+        Pointer val = new Pointer(request.position());
+
+        String name = getString(val, request);
+        Currency currency = getCurrency(val, request);
+        String password = getString(val, request);
+        long amt = getLong(val, request);
+
+        openAccount(name, currency, password, amt, accMapping, marshaller, reply);
+    }
+
+    /**
+     * Function to query the account balance from a binary request, marshalling the account with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void processAccBalanceQueryBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
+
+        int accNumber = getInt(val, request);
+        StringView password = getStringView(val, request);
+
+        queryBalance(accNumber, password, accMapping, marshaller, reply);
+    }
+
+    /**
+     * Function to close an account from a binary request, marshalling the account with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void processAccClosureBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
+
+        int accNumber = getInt(val, request);
+        StringView name = getStringView(val, request);
+        StringView password = getStringView(val, request);
+
+        closeAccount(accNumber, name, password, accMapping, marshaller, reply);
+    }
+
+    /**
+     * Function to deposit money from a binary request, marshalling the account with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void depositMoneyBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
+
+        StringView name = getStringView(val, request);
+        int accNumber = getInt(val, request);
+        StringView password = getStringView(val, request);
+        Currency currency = getCurrency(val, request);
+        long deposit = getLong(val, request);
+
+        deposit(name, accNumber, password, currency, deposit, accMapping, marshaller, reply);
+    }
+
+    /**
+     * Function to withdraw money from a binary request, marshalling the account with the function given
+     *
+     * @param request ByteBuffer holding the request as received, positioned at its fields
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    private static void withdrawMoneyBinary(ByteBuffer request, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply, AccountStore accMapping) throws IllegalArgumentException {
+        Pointer val = new Pointer(request.position());
+
+        StringView name = getStringView(val, request);
+        int accNumber = getInt(val, request);
+        StringView password = getStringView(val, request);
+        Currency currency = getCurrency(val, request);
+        long withdraw = getLong(val, request);
+
+        withdraw(name, accNumber, password, currency, withdraw, accMapping, marshaller, reply);
+    }
+
+    /**
+     * Function to run the operations of a batch request one after the other, in the binary format only
+     * Each operation is its code as a byte, the length of its fields as an unsigned short, then the fields as in the
+     * binary request of the operation alone. The reply is the OK status code followed by a result for each operation
+     * run, in order: its status code, then the account number, currency and balance of the account if it succeeded.
+     * An operation that fails does not stop the ones after it. At most BATCH_MAX_OPERATIONS are run, and the operations
+     * from one whose length runs past the end of the request are not run, the client finds fewer results than it sent.
+     *
+     * @param request ByteBuffer holding the request as received, positioned at the first operation
+     * @param reply ByteBuffer the reply to the client is written into
+     * @param updates list the account details of every operation that succeeded are added to for the monitoring
+     *                clients, in the format of the reply to the operation alone, or null if no one is monitoring
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     */
+    public static void processBatchBinary(ByteBuffer request, ByteBuffer reply, List<byte[]> updates, AccountStore accMapping) {
+        BiConsumer<Account, ByteBuffer> marshaller = updates == null ? BinaryMarshallFunctions::marshallResultBinary
+                : (account, buffer) -> {
+                    marshallResultBinary(account, buffer);
+                    updates.add(marshallAccountUpdateBinary(account));
+                };
+        Consumer<Account> recipientUpdate = updates == null ? null : recipient -> updates.add(marshallAccountUpdateBinary(recipient));
+
+        reply.put(marshallStatusBinary(OK));
+        int end = request.limit();
+        for (int operations = 0; operations < BATCH_MAX_OPERATIONS && request.position() + BATCH_OPERATION_HEADER <= end; operations++) {
+            byte code = request.get();
+            int next = (request.getShort() & 0xFFFF) + request.position();
+            if (next > end)
+                break;
+
+            int result = reply.position();
+            request.limit(next);
+            try {
+                switch (code) {
+                    case ACC_CREATION_CODE: processAccCreationBinary(request, marshaller, reply, accMapping); break;
+                    case ACC_BALANCE_CODE: processAccBalanceQueryBinary(request, marshaller, reply, accMapping); break;
+                    case ACC_CLOSING_CODE: processAccClosureBinary(request, marshaller, reply, accMapping); break;
+                    case DEPOSIT_MONEY_CODE: depositMoneyBinary(request, marshaller, reply, accMapping); break;
+                    case WITHDRAW_MONEY_CODE: withdrawMoneyBinary(request, marshaller, reply, accMapping); break;
+                    case TRANSFER_MONEY_CODE: transferMoneyBinary(request, marshaller, reply, recipientUpdate, accMapping); break;
+                    default: throw new IllegalArgumentException(BAD_REQUEST);
+                }
+            } catch (RuntimeException failure) {
+                // the operations before it were run, so the batch carries on instead of failing as a whole
+                reply.position(result);
+                marshallResultBinary(isStatusCode(failure.getMessage()) ? failure.getMessage() : BAD_REQUEST, reply);
+            } finally {
+                request.limit(end).position(next);
+            }
+        }
+    }
+
+    /**
+     * Function to reply with the shard map of a sharded server
+     *
+     * @param reply ByteBuffer the reply to the client is written into
+     * @throws IllegalArgumentException throws exception if this server does not hold a shard
+     */
+    public static void processShardMapQueryBinary(ByteBuffer reply) throws IllegalArgumentException {
+        ShardMap map = shardMap;
+        if (map == null)
+            throw new IllegalArgumentException(NOT_FOUND);
+        marshallShardMapBinary(map, reply);
+    }
+
+    /*
+        Actions on the accounts, shared by both wire formats
+        The reply is marshalled while the account is still locked, so it always shows the state left by this action
+     */
+
+    /**
+     * Generates a random account number in the range held by this server, creates the account and adds it into the account mapping
+     *
+     * @param name name of the account holder
+     * @param currency currency of the account
+     * @param password password of the account
+     * @param amt initial account balance, in cents
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     */
+    private static void openAccount(String name, Currency currency, String password, long amt, AccountStore accMapping,
+                                    BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply) {
+        while (true) {
+            int first = firstAccNumber;
+            int accNumber = (int) ((Math.random() * ((long) endAccNumber - first)) + first);    // Generate random acc number
+            Account newAccount = new Account(name, currency, password, amt, accNumber, AccountCreation);
+            accountLocks.lock(accNumber);       // so the creation is logged before any other change to the account
+            try {
+                if (accMapping.putIfAbsent(accNumber, newAccount) == null) {
+                    mutationLog.logOpen(newAccount);
+                    marshaller.accept(newAccount, reply);
+                    return;
+                }
+            } finally {
+                accountLocks.unlock(accNumber);
+            }
+            // Generate another account number if not unique (not likely to happen in our use case)
+        }
+    }
+
+    /**
+     * Finds the account to be queried and checks the password
+     *
+     * @param accNumber the account number
+     * @param password password of the account
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @throws IllegalArgumentException throws exception if account is not found or password given is wrong
+     */
+    private static void queryBalance(int accNumber, StringView password, AccountStore accMapping,
+                                     BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply) throws IllegalArgumentException {
+        checkShard(accNumber);
+        accountLocks.lock(accNumber);
+        try {
+            Account queriedAccount = accMapping.get(accNumber);
+            if (queriedAccount == null)
+                throw new IllegalArgumentException(NOT_FOUND);
+
+            if (queriedAccount.verifyPassword(password)) {
+                queriedAccount.setAction(CheckBalance);
+                marshaller.accept(queriedAccount, reply);
+            } else {
+                throw new IllegalArgumentException(UNAUTHORIZED);
+            }
+        } finally {
+            accountLocks.unlock(accNumber);
+        }
+    }
+
+    /**
+     * Finds the account, checks the name and password and removes the account from the account mapping
+     *
+     * @param accNumber the account number
+     * @param name name of the account holder
+     * @param password password of the account
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong
+     */
+    private static void closeAccount(int accNumber, StringView name, StringView password, AccountStore accMapping,
+                                     BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply) throws IllegalArgumentException {
+        checkShard(accNumber);
+        accountLocks.lock(accNumber);
         try {
-            Pointer val = new Pointer(0);
+            Account queriedAccount = accMapping.get(accNumber);
+            if (queriedAccount == null)
+                throw new IllegalArgumentException(NOT_FOUND);
 
-            String name = unmarshall(val, request);
-            int accNumber = Integer.parseInt(unmarshall(val, request));
-            String password = unmarshall(val, request);
-            String currency = unmarshall(val, request);
-            double withdraw = round(Double.parseDouble(unmarshall(val, request)), 2);
+            if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
+                accMapping.remove(accNumber);
+                mutationLog.logClose(accNumber);
+                queriedAccount.setAction(AccountClosure);
+                marshaller.accept(queriedAccount, reply);
+            } else {
+                throw new IllegalArgumentException(UNAUTHORIZED);
+            }
+        } finally {
+            accountLocks.unlock(accNumber);
+        }
+    }
 
-            if (!accMapping.containsKey(accNumber))
+    /**
+     * Finds the account, checks the name and password and deposits the amount
+     *
+     * @param name name of the account holder
+     * @param accNumber the account number
+     * @param password password of the account
+     * @param currency currency of the amount deposited
+     * @param deposit amount deposited, in cents
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong
+     */
+    private static void deposit(StringView name, int accNumber, StringView password, Currency currency, long deposit,
+                                AccountStore accMapping, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply) throws IllegalArgumentException {
+        checkShard(accNumber);
+        accountLocks.lock(accNumber);
+        try {
+            Account queriedAccount = accMapping.get(accNumber);
+            if (queriedAccount == null)
                 throw new IllegalArgumentException(NOT_FOUND);
+
+            if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
+                queriedAccount.deposit(deposit, currency);
+                accMapping.update(queriedAccount);
+                mutationLog.logBalance(queriedAccount);
+                queriedAccount.setAction(DepositFunds);
+                marshaller.accept(queriedAccount, reply);
+            } else {
+                throw new IllegalArgumentException(UNAUTHORIZED);
+            }
+        } finally {
+            accountLocks.unlock(accNumber);
+        }
+    }
+
+    /**
+     * Finds the account, checks the name and password and withdraws the amount if there is sufficient funds in account
+     *
+     * @param name name of the account holder
+     * @param accNumber the account number
+     * @param password password of the account
+     * @param currency currency of the amount withdrawn
+     * @param withdraw amount withdrawn, in cents
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     */
+    private static void withdraw(StringView name, int accNumber, StringView password, Currency currency, long withdraw,
+                                 AccountStore accMapping, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply) throws IllegalArgumentException {
+        checkShard(accNumber);
+        accountLocks.lock(accNumber);
+        try {
             Account queriedAccount = accMapping.get(accNumber);
+            if (queriedAccount == null)
+                throw new IllegalArgumentException(NOT_FOUND);
 
             if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
                 queriedAccount.withdraw(withdraw, currency);
+                accMapping.update(queriedAccount);
+                mutationLog.logBalance(queriedAccount);
                 queriedAccount.setAction(WithdrawFunds);
-                return marshallAccount(queriedAccount);
+                marshaller.accept(queriedAccount, reply);
             } else {
                 throw new IllegalArgumentException(UNAUTHORIZED);
             }
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            accountLocks.unlock(accNumber);
         }
     }
 
     /**
-     * Function to transfer money from an account on the server to another account on the server
-     * Data (byte array form) from the client is first unmarshalled with help of a Pointer object
-     * The Pointer object is passed into every unmarshall operation, and it keeps tracks of where we should extract the data given by the client
-     * Find the account to be queried and check that account name and password entered is correct
-     * Withdraw money if there is sufficient funds in account
+     * Finds the account, checks the name and password and withdraws the amount if there is sufficient funds in account
      * Check that the recipient account exists and then deposit funds into it
+     * A transfer to the same account is refused: a store such as MappedAccountTable returns a separate copy of the
+     * account for each get, and writing back the recipient would undo the withdrawal.
      *
-     * @param request byte array containing the account number, name and password of account to be closed
-     * @param accMapping the HashMap mapping account numbers to their respective accounts
-     * @return an Account object containing the account details (excluding password)
-     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account
+     * @param name name of the account holder
+     * @param accNumber the account number
+     * @param password password of the account
+     * @param toAccNumber account number of the recipient account
+     * @param currency currency of the amount transferred
+     * @param transfer amount transferred, in cents
+     * @param accMapping the AccountStore mapping account numbers to their respective accounts
+     * @param marshaller function marshalling the account details into the reply buffer
+     * @param reply ByteBuffer the reply is written into
+     * @param recipientUpdate function given the recipient account for the monitoring clients, or null
+     * @throws IllegalArgumentException throws exception if account is not found or name/password given is wrong or insufficient funds in account,
+     *                                  or BAD_REQUEST for a transfer to the same account
      */
-    public static byte[] transferMoney(byte[] request, Map<Integer, Account> accMapping){
-        Pointer val = new Pointer(0);
+    private static void transfer(StringView name, int accNumber, StringView password, int toAccNumber, Currency currency, long transfer,
+                                 AccountStore accMapping, BiConsumer<Account, ByteBuffer> marshaller, ByteBuffer reply,
+                                 Consumer<Account> recipientUpdate) throws IllegalArgumentException {
+        if (toAccNumber == accNumber)
+            throw new IllegalArgumentException(BAD_REQUEST);
+        checkShard(accNumber);
+        checkShard(toAccNumber);        // transfers between shards are not supported
+        accountLocks.lockBoth(accNumber, toAccNumber);
+        try {
+            Account queriedAccount = accMapping.get(accNumber);
+            if (queriedAccount == null)
+                throw new IllegalArgumentException(NOT_FOUND);
+            if (!queriedAccount.verifyName(name) || !queriedAccount.verifyPassword(password))
+                throw new IllegalArgumentException(UNAUTHORIZED);
 
-        String name = unmarshall(val, request);
-        int accNumber = Integer.parseInt(unmarshall(val, request));
-        String password = unmarshall(val, request);
-        int toAccNumber = Integer.parseInt(unmarshall(val, request));
-        String currency = unmarshall(val, request);
-        double transfer = round(Double.parseDouble(unmarshall(val, request)), 2);
+            //Recipient acc, looked up before the sender is debited so a failed transfer leaves both accounts untouched
+            Account recipientAccount = accMapping.get(toAccNumber);
+            if (recipientAccount == null)
+                throw new IllegalArgumentException(NOT_FOUND);
 
-        if (!accMapping.containsKey(accNumber))
-            throw new IllegalArgumentException(NOT_FOUND);
-        Account queriedAccount = accMapping.get(accNumber);
-        if (queriedAccount.verifyName(name) && queriedAccount.verifyPassword(password)) {
-            queriedAccount.withdraw(transfer,currency);
+            queriedAccount.withdraw(transfer, currency);
             queriedAccount.setAction(TransferFundsOut);
-        } else {
-            throw new IllegalArgumentException(UNAUTHORIZED);
+            recipientAccount.deposit(transfer, currency);
+            recipientAccount.setAction(TransferFundsIn);
+            accMapping.update(queriedAccount);
+            accMapping.update(recipientAccount);
+            mutationLog.logTransfer(queriedAccount, recipientAccount);
+
+            marshaller.accept(queriedAccount, reply);
+            if (recipientUpdate != null)
+                recipientUpdate.accept(recipientAccount);
+        } finally {
+            accountLocks.unlockBoth(accNumber, toAccNumber);
         }
+    }
 
-        //Recipient acc
-        if (!accMapping.containsKey(toAccNumber)) {
-            queriedAccount.deposit(transfer,currency);
-            throw new IllegalArgumentException(NOT_FOUND);
-        }
-
-        Account recipientAccount = accMapping.get(toAccNumber);
-        recipientAccount.deposit(transfer,currency);
-        recipientAccount.setAction(TransferFundsIn);
-
-        return marshallAccount(queriedAccount);
+    /**
+     * Checks that an account is in the range held by this server, if it only holds one shard of the accounts
+     *
+     * @param accNumber the account number
+     * @throws IllegalArgumentException throws exception if the account is held by another shard
+     */
+    private static void checkShard(int accNumber) throws IllegalArgumentException {
+        if ((accNumber < firstAccNumber || accNumber >= endAccNumber) && shardMap != null)
+            throw new IllegalArgumentException(MISDIRECTED);
     }
 
     /**
      * Adds a client into the list of clients monitoring the server
      * @param clientIdentifier  the string identifying a particular client
-     * @param o the Observer object which represents a client observing the server
-     * @param observerMap the HashMap that maps the clientIdentifier to an Observer object
+     * @param o the Observer object which represents a client observing the server, with its subscription
+     * @param subscribers the monitoring clients, by clientIdentifier
      * @return a byte array representing the OK status code
      */
-    public static byte[] addObserver(String clientIdentifier, Observer o, Map<String, Observer> observerMap) {
-        observerMap.put(clientIdentifier, o);
+    public static byte[] addObserver(String clientIdentifier, Observer o, Subscribers subscribers) {
+        subscribers.add(clientIdentifier, o);
         return marshall(OK);
     }
 
     /**
      * Removes a client from the list of clients monitoring the server
      * @param clientIdentifier  the string identifying a particular client
-     * @param observerMap the HashMap that maps the clientIdentifier to an Observer object
+     * @param subscribers the monitoring clients, by clientIdentifier
      * @return a byte array representing the OK status code
      */
-    public static byte[] removeObserver(String clientIdentifier, Map<String, Observer> observerMap) {
-        observerMap.remove(clientIdentifier);
+    public static byte[] removeObserver(String clientIdentifier, Subscribers subscribers) {
+        subscribers.remove(clientIdentifier);
         return marshall(OK);
     }
+
+    /**
+     * Adds a client sending binary requests into the list of clients monitoring the server
+     * @param clientIdentifier  the string identifying a particular client
+     * @param o the Observer object which represents a client observing the server, with its subscription
+     * @param subscribers the monitoring clients, by clientIdentifier
+     * @return a binary reply with the OK status code
+     */
+    public static byte[] addObserverBinary(String clientIdentifier, Observer o, Subscribers subscribers) {
+        subscribers.add(clientIdentifier, o);
+        return marshallStatusBinary(OK);
+    }
+
+    /**
+     * Removes a client sending binary requests from the list of clients monitoring the server
+     * @param clientIdentifier  the string identifying a particular client
+     * @param subscribers the monitoring clients, by clientIdentifier
+     * @return a binary reply with the OK status code
+     */
+    public static byte[] removeObserverBinary(String clientIdentifier, Subscribers subscribers) {
+        subscribers.remove(clientIdentifier);
+        return marshallStatusBinary(OK);
+    }
 }
@@ -3,19 +3,24 @@ package objects;
 import java.util.Objects;
 
 import static utils.Constants.*;
+import static utils.UtilityFunctions.convertMinorUnits;
+import static utils.UtilityFunctions.credentialHash;
 
 /**
  * Account object, representation of an Account on the server
+ * Balances and amounts are whole numbers of minor units (cents), so repeated deposits and withdrawals never drift
+ * Accounts loaded from an account table only carry a hash of their password (see UtilityFunctions.credentialHash)
  */
 public class Account {
     private final String name;
     private final Currency cur;
     private String password;
-    private double accBalance;
+    private long credentialHash;    // only used when the password itself is not kept
+    private long accBalance;        // in minor units of the account currency
     private final int accNumber;
     private String action;  // most recent action done on this account e.g. account creation, deposit, withdrawal etc.
 
-    public Account(String name, Currency cur, String password, double accBalance, int accNumber) {
+    public Account(String name, Currency cur, String password, long accBalance, int accNumber) {
         this.name = name;
         this.cur = cur;
         this.password = password;
@@ -23,7 +28,15 @@ public class Account {
         this.accNumber = accNumber;
     }
 
-    public Account(String name, Currency cur, double accBalance, int accNumber, String action) {
+    public Account(String name, Currency cur, long credentialHash, long accBalance, int accNumber) {
+        this.name = name;
+        this.cur = cur;
+        this.credentialHash = credentialHash;
+        this.accBalance = accBalance;
+        this.accNumber = accNumber;
+    }
+
+    public Account(String name, Currency cur, long accBalance, int accNumber, String action) {
         this.name = name;
         this.cur = cur;
         this.accBalance = accBalance;
@@ -31,7 +44,7 @@ public class Account {
         this.action = action;
     }
 
-    public Account(String name, Currency cur, String password, double accBalance, int accNumber, String action) {
+    public Account(String name, Currency cur, String password, long accBalance, int accNumber, String action) {
         this.name = name;
         this.cur = cur;
         this.password = password;
@@ -52,6 +65,10 @@ public class Account {
         return String.valueOf(accNumber);
     }
 
+    public int getAccNumberValue() {
+        return accNumber;
+    }
+
     public String getName() {
         return name;
     }
@@ -63,16 +80,12 @@ public class Account {
     /**
      * Convert the amt to be withdrawn into the currency of the account if needed
      * To Deduct the amt from the current balance
-     * @param amt the amt to be withdrawn
+     * @param amt the amt to be withdrawn, in minor units
      * @param currency the currency of the amt to be withdrawn
      * @exception IllegalArgumentException throw exception if there is insufficient amount in account
      */
-    public void withdraw(double amt,String currency) {
-        double accCurrencyRate=getCurrencyRate(cur.toString());
-        double depositCurrencyRate=getCurrencyRate(currency);
-
-        amt=(amt/depositCurrencyRate)*accCurrencyRate;
-        amt=Math.round(amt*100.0)/100.0;
+    public void withdraw(long amt, Currency currency) {
+        amt = convertMinorUnits(amt, currency, cur);
 
         if (accBalance < amt)
             throw new IllegalArgumentException(INSUFFICIENT);
@@ -83,37 +96,51 @@ public class Account {
      * Convert the amt to be deposited into the currency of the account if needed
      * Deposit the amt into the account
      *
-     * @param amt the amt to be deposited
+     * @param amt the amt to be deposited, in minor units
      * @param currency the currency of the amt to be deposited
      */
-    public void deposit(double amt,String currency) {
-        double accCurrencyRate=getCurrencyRate(cur.toString());
-        double depositCurrencyRate=getCurrencyRate(currency);
-
-        amt=(amt/depositCurrencyRate)*accCurrencyRate;
-        amt=Math.round(amt*100.0)/100.0;
-        this.accBalance += amt;
+    public void deposit(long amt, Currency currency) {
+        this.accBalance = Math.addExact(accBalance, convertMinorUnits(amt, currency, cur));
     }
 
     public boolean verifyPassword(String text) {
+        if (password == null)
+            return text != null && credentialHash(accNumber, text) == credentialHash;
         return Objects.equals(password, text);
     }
     public boolean verifyName(String text) {
         return Objects.equals(name, text);
     }
 
-    public double getAccBalance() {
-        return this.accBalance;
+    public boolean verifyPassword(StringView text) {
+        if (password == null)
+            return text.credentialHash(accNumber) == credentialHash;
+        return text.contentEquals(password);
+    }
+    public boolean verifyName(StringView text) {
+        return text.contentEquals(name);
     }
 
-    public double getCurrencyRate(String cur){
-        if (cur.equals("SGD"))
-            return sgdExchangeRate;
-        if (cur.equals("NZD"))
-            return nzdExchangeRate;
-        if (cur.equals("USD"))
-            return usdExchangeRate;
-        return 0.00;
+    /**
+     * @return the salted hash of the password, as kept in an account table
+     */
+    public long getCredentialHash() {
+        return password != null ? credentialHash(accNumber, password) : credentialHash;
+    }
+
+    /**
+     * @return the balance in minor units of the account currency
+     */
+    public long getAccBalance() {
+        return this.accBalance;
     }
 
+    /**
+     * Set the balance as recorded in a log, only used when recovering the accounts
+     *
+     * @param accBalance the balance in minor units of the account currency
+     */
+    public void setAccBalance(long accBalance) {
+        this.accBalance = accBalance;
+    }
 }
@@ -0,0 +1,161 @@
+package objects;
+
+import java.util.function.Consumer;
+
+/**
+ * An open addressing hash map from account numbers to accounts, for use by one thread at a time
+ * Account numbers are kept as primitive ints in one array and the accounts in a parallel array, so a lookup boxes
+ * nothing and an account costs two array slots instead of a node object and an Integer
+ * Collisions are resolved by linear probing, removals shift the following entries back so no tombstones are left
+ *
+ * Account number 0 marks an empty slot and cannot be stored
+ */
+public class AccountMap implements AccountStore {
+    private static final int EMPTY = 0;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private int[] keys;
+    private Account[] values;
+    private int size;
+    private int threshold;
+
+    public AccountMap() {
+        this(16);
+    }
+
+    /**
+     * Constructor to create a map sized for a number of accounts
+     *
+     * @param expectedAccounts the number of accounts the map should hold without growing
+     */
+    public AccountMap(int expectedAccounts) {
+        allocate(tableSizeFor((int) Math.ceil(expectedAccounts / LOAD_FACTOR)));
+    }
+
+    /**
+     * Mix the account number so numbers close to each other are spread over the table
+     *
+     * @param accNumber the account number
+     * @return the mixed hash
+     */
+    static int hash(int accNumber) {
+        int h = accNumber * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public Account get(int accNumber) {
+        int[] keys = this.keys;
+        Account[] values = this.values;
+        int mask = keys.length - 1;
+        int index = hash(accNumber) & mask;
+
+        for (int probes = 0; probes < keys.length; probes++) {      // bounded, see ConcurrentAccountMap.get
+            int key = keys[index];
+            if (key == accNumber && key != EMPTY)
+                return values[index];
+            if (key == EMPTY)
+                return null;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    @Override
+    public Account putIfAbsent(int accNumber, Account account) {
+        if (accNumber == EMPTY)
+            throw new IllegalArgumentException("Account number " + EMPTY + " cannot be stored");
+
+        int mask = keys.length - 1;
+        int index = hash(accNumber) & mask;
+        while (keys[index] != EMPTY) {
+            if (keys[index] == accNumber)
+                return values[index];
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = accNumber;
+        values[index] = account;
+        if (++size > threshold)
+            resize(keys.length * 2);
+        return null;
+    }
+
+    @Override
+    public Account remove(int accNumber) {
+        int mask = keys.length - 1;
+        int index = hash(accNumber) & mask;
+        while (keys[index] != accNumber) {
+            if (keys[index] == EMPTY)
+                return null;
+            index = (index + 1) & mask;
+        }
+        Account removed = values[index];
+
+        /* shift back every following entry that would no longer be found past the gap */
+        int gap = index;
+        index = (index + 1) & mask;
+        while (keys[index] != EMPTY) {
+            int home = hash(keys[index]) & mask;
+            if (((index - home) & mask) >= ((index - gap) & mask)) {
+                keys[gap] = keys[index];
+                values[gap] = values[index];
+                gap = index;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+        size--;
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        for (Account account : values) {
+            if (account != null)
+                action.accept(account);
+        }
+    }
+
+    /**
+     * Move every entry into tables of a new size
+     *
+     * @param capacity the new number of slots, a power of two
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Account[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int index = hash(oldKeys[i]) & mask;
+            while (keys[index] != EMPTY)
+                index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Account[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @param slots the number of slots needed
+     * @return the smallest power of two holding that many slots
+     */
+    private static int tableSizeFor(int slots) {
+        return Math.max(2, Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+    }
+}
@@ -0,0 +1,54 @@
+package objects;
+
+import java.util.function.Consumer;
+
+/**
+ * The accounts held by the server, looked up by account number
+ * These are the only operations ServerInterface performs on the accounts, so any implementation can be plugged in,
+ * whether it keeps the Account objects (AccountMap, ConcurrentAccountMap) or only their data (MappedAccountTable)
+ */
+public interface AccountStore {
+    /**
+     * @param accNumber the account number
+     * @return the account, or null if there is no account with this number
+     */
+    Account get(int accNumber);
+
+    /**
+     * Add an account unless its account number is already taken
+     *
+     * @param accNumber the account number
+     * @param account the account
+     * @return the account already holding this number, or null if the account was added
+     */
+    Account putIfAbsent(int accNumber, Account account);
+
+    /**
+     * Write back the changes made to an account returned by get, e.g. its balance after a deposit
+     * Stores holding the Account objects themselves have nothing to do
+     * Called by ServerInterface while it holds the lock on the account
+     *
+     * @param account the account
+     */
+    default void update(Account account) {
+    }
+
+    /**
+     * @param accNumber the account number
+     * @return the account removed, or null if there was no account with this number
+     */
+    Account remove(int accNumber);
+
+    /**
+     * @return the number of accounts
+     */
+    int size();
+
+    /**
+     * Run an action on every account, e.g. to write a snapshot
+     * Safe to call while other threads change the accounts; an account added or removed meanwhile may or may not be seen
+     *
+     * @param action the action
+     */
+    void forEach(Consumer<Account> action);
+}
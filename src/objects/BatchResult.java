@@ -0,0 +1,69 @@
+package objects;
+
+import static utils.Constants.OK;
+
+/**
+ * The result of one operation in a batch: its status code, and the account number, currency and balance of the
+ * account if it succeeded
+ */
+public class BatchResult {
+    private final String statusCode;
+    private final int accNumber;
+    private final Currency currency;
+    private final long accBalance;
+
+    /**
+     * Constructor for an operation that succeeded
+     *
+     * @param accNumber the account number
+     * @param currency the currency of the account
+     * @param accBalance the balance of the account after the operation, in cents
+     */
+    public BatchResult(int accNumber, Currency currency, long accBalance) {
+        this.statusCode = OK;
+        this.accNumber = accNumber;
+        this.currency = currency;
+        this.accBalance = accBalance;
+    }
+
+    /**
+     * Constructor for an operation that failed
+     *
+     * @param statusCode the status code of the failure
+     */
+    public BatchResult(String statusCode) {
+        this.statusCode = statusCode;
+        this.accNumber = 0;
+        this.currency = null;
+        this.accBalance = 0;
+    }
+
+    public boolean isOk() {
+        return statusCode.equals(OK);
+    }
+
+    public String getStatusCode() {
+        return statusCode;
+    }
+
+    public String getAccNumber() {
+        return String.valueOf(accNumber);
+    }
+
+    public int getAccNumberValue() {
+        return accNumber;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public long getAccBalance() {
+        return accBalance;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? String.format("%s %d %s %d", statusCode, accNumber, currency, accBalance) : statusCode;
+    }
+}
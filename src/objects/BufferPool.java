@@ -0,0 +1,47 @@
+package objects;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of ByteBuffers for receiving requests and marshalling replies on the server
+ * Buffers are handed out and returned for every request, so once the pool is warm no buffer is allocated per request
+ * The queue is array based, taking and returning a buffer allocates nothing
+ */
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+
+    /**
+     * Constructor to create the pool, with all of its buffers allocated up front
+     *
+     * @param capacity the maximum number of idle buffers kept in the pool
+     * @param bufferSize the size of each buffer in bytes
+     */
+    public BufferPool(int capacity, int bufferSize) {
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < capacity; i++)
+            buffers.offer(ByteBuffer.allocate(bufferSize));
+    }
+
+    /**
+     * Take a buffer from the pool, allocating a new one if all buffers are in use
+     *
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Return a buffer to the pool, the buffer is dropped if the pool is already full
+     *
+     * @param buffer the buffer, it must not be used by the caller afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+}
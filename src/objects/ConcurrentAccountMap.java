@@ -0,0 +1,125 @@
+package objects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * A thread safe account map, split into segments that are each an AccountMap guarded by its own StampedLock
+ * Lookups first read the segment without locking and only take the read lock if a writer got in the way, so the
+ * balance queries, deposits and withdrawals that make up most requests never write to shared memory here
+ * Account creations and closures lock only the segment they change
+ */
+public class ConcurrentAccountMap implements AccountStore {
+    private final AccountMap[] segments;
+    private final StampedLock[] locks;
+    private final int shift;
+
+    /**
+     * Constructor to create the map
+     *
+     * @param segments the number of segments, rounded up to a power of two
+     * @param expectedAccounts the number of accounts the map should hold without growing
+     */
+    public ConcurrentAccountMap(int segments, int expectedAccounts) {
+        int size = Integer.highestOneBit(Math.max(1, segments - 1)) << 1;
+        this.segments = new AccountMap[size];
+        this.locks = new StampedLock[size];
+        for (int i = 0; i < size; i++) {
+            this.segments[i] = new AccountMap(expectedAccounts / size);
+            this.locks[i] = new StampedLock();
+        }
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+    }
+
+    /**
+     * Find the segment holding an account
+     * Uses the high bits of the hash, the segments index their tables with the low bits
+     *
+     * @param accNumber the account number
+     * @return index of the segment
+     */
+    private int segmentOf(int accNumber) {
+        return shift == 32 ? 0 : AccountMap.hash(accNumber) >>> shift;
+    }
+
+    @Override
+    public Account get(int accNumber) {
+        int i = segmentOf(accNumber);
+        StampedLock lock = locks[i];
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Account account = segments[i].get(accNumber);
+                if (lock.validate(stamp))
+                    return account;
+            } catch (RuntimeException ignored) {
+                // the segment was read halfway through a resize, read it again under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return segments[i].get(accNumber);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Account putIfAbsent(int accNumber, Account account) {
+        int i = segmentOf(accNumber);
+        long stamp = locks[i].writeLock();
+        try {
+            return segments[i].putIfAbsent(accNumber, account);
+        } finally {
+            locks[i].unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Account remove(int accNumber) {
+        int i = segmentOf(accNumber);
+        long stamp = locks[i].writeLock();
+        try {
+            return segments[i].remove(accNumber);
+        } finally {
+            locks[i].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of accounts, not exact while accounts are being added or removed
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (AccountMap segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    /**
+     * Run an action on every account, one segment at a time
+     * The accounts of a segment are collected under its read lock and the action runs after it is released, so a slow
+     * action never holds up the requests
+     *
+     * @param action the action
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < segments.length; i++) {
+            long stamp = locks[i].readLock();
+            try {
+                segments[i].forEach(accounts::add);
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+            accounts.forEach(action);
+            accounts.clear();
+        }
+    }
+}
@@ -1,23 +1,66 @@
 package objects;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
 
+import static utils.Constants.OBSERVER_QUEUE_SIZE;
 import static utils.SocketFunctions.sendMonitorReply;
 
 /**
- * The Observer object that represents a client monitoring the server
+ * The Observer object that represents a client monitoring the server, with the updates it subscribed to
+ * Holds the updates waiting to be sent to the client, at most OBSERVER_QUEUE_SIZE of them; only the thread of the
+ * ObserverDispatcher queues and sends them
  */
 public class Observer {
 
-    private final InetAddress ip;
-    private final int port;
+    private final InetSocketAddress address;      // built once, not for every update
+    private final Subscription subscription;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
 
+    public Observer(InetAddress ip, int port, Subscription subscription) {
+        this.address = new InetSocketAddress(ip, port);
+        this.subscription = subscription;
+    }
+
+    /**
+     * Simplified constructor for a client subscribed to every update
+     */
     public Observer(InetAddress ip, int port) {
-        this.ip = ip;
-        this.port = port;
+        this(ip, port, Subscription.ALL);
+    }
+
+    public Subscription subscription() {
+        return subscription;
+    }
+
+    /**
+     * Queue an update for the client this Observer represents, dropping the oldest update waiting if the queue is full
+     *
+     * @param update the update, shared by every Observer and never changed
+     * @return true if an older update was dropped
+     */
+    boolean offer(byte[] update) {
+        boolean full = pending.size() == OBSERVER_QUEUE_SIZE;
+        if (full)
+            pending.poll();
+        pending.add(update);
+        return full;
     }
 
-    public void notify(byte[] reply) {
-        sendMonitorReply(reply, ip, port);
+    /**
+     * Sends the oldest update waiting to the client this Observer represents
+     *
+     * @param channel the DatagramChannel the update is sent through
+     * @return true if more updates are waiting
+     */
+    boolean sendNext(DatagramChannel channel) {
+        byte[] update = pending.poll();
+        if (update == null)
+            return false;
+        sendMonitorReply(channel, ByteBuffer.wrap(update), address);
+        return !pending.isEmpty();
     }
 }
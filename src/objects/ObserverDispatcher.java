@@ -0,0 +1,193 @@
+package objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static utils.BinaryMarshallFunctions.isBinaryReply;
+import static utils.Constants.ACTIONS;
+import static utils.MarshallFunctions.unmarshallAccountReply;
+import static utils.SocketFunctions.openMulticastChannel;
+import static utils.SocketFunctions.sendMonitorReply;
+
+/**
+ * Sends the updates of the server to the monitoring clients on a thread of its own, so handling a request never waits
+ * on them however many clients are monitoring
+ * A request only copies its update into a bounded backlog; the dispatcher thread reads the account number and action
+ * of each update and hands it to the queue of every Observer subscribed to it, found through the Subscribers index,
+ * then sends the queued updates one per Observer in turn, all through one DatagramChannel. An update
+ * that finds the backlog full is dropped, as is the oldest update of a client that falls too far behind, UDP gives no
+ * guarantee of delivery to the monitoring clients anyway.
+ *
+ * Given a multicast group, the dispatcher instead sends every update once to the group, which the monitoring clients
+ * join and filter the updates of themselves, so sending costs the same however many clients are monitoring.
+ */
+public class ObserverDispatcher implements Closeable {
+    private final Subscribers observers;
+    private final ArrayBlockingQueue<byte[]> backlog;
+    private final DatagramChannel channel;
+    private final InetSocketAddress group;              // null to send to each Observer
+    private final Thread thread;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Constructor to start the dispatcher thread
+     *
+     * @param observers the monitoring clients, read afresh for every update so clients may come and go
+     * @param backlog the most updates waiting to be handed to the Observers
+     * @throws IOException if the DatagramChannel cannot be opened
+     */
+    public ObserverDispatcher(Subscribers observers, int backlog) throws IOException {
+        this(observers, backlog, null);
+    }
+
+    /**
+     * Constructor to start the dispatcher thread, sending to a multicast group if given one
+     *
+     * @param observers the monitoring clients, read afresh for every update so clients may come and go
+     * @param backlog the most updates waiting to be handed to the Observers
+     * @param group the multicast group to send every update to, or null to send to the Observers
+     * @throws IOException if the DatagramChannel cannot be opened
+     */
+    public ObserverDispatcher(Subscribers observers, int backlog, InetSocketAddress group) throws IOException {
+        this.observers = observers;
+        this.backlog = new ArrayBlockingQueue<>(backlog);
+        this.group = group;
+        this.channel = group != null ? openMulticastChannel() : DatagramChannel.open();
+        this.thread = new Thread(this::dispatch, "observer-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an update for the monitoring clients subscribed to it, without waiting for it to be sent
+     * Safe to call from several threads at once
+     *
+     * @param update ByteBuffer holding the update, an account reply in either wire format, from its position to its
+     *               limit, which are left unchanged
+     */
+    public void publish(ByteBuffer update) {
+        byte[] copy = new byte[update.remaining()];
+        update.duplicate().get(copy);
+        publish(copy);
+    }
+
+    /**
+     * Queues an update for the monitoring clients subscribed to it, without waiting for it to be sent
+     * Safe to call from several threads at once
+     *
+     * @param update the update, an account reply in either wire format, which must not be changed afterwards
+     */
+    public void publish(byte[] update) {
+        published.increment();
+        if (!backlog.offer(update))
+            dropped.increment();
+    }
+
+    /**
+     * Queues the updates of a batch of operations, in order, for the monitoring clients subscribed to them
+     *
+     * @param updates the updates, account replies in the binary format, which must not be changed afterwards
+     */
+    public void publish(List<byte[]> updates) {
+        for (byte[] update : updates)
+            publish(update);
+    }
+
+    /**
+     * Runs on the dispatcher thread until the dispatcher is closed
+     * Waits for an update only once every queue is empty, otherwise picks up the updates published meanwhile and
+     * carries on sending
+     */
+    private void dispatch() {
+        boolean pending = false;
+        while (!closed) {
+            try {
+                byte[] update = pending ? backlog.poll() : backlog.poll(100, TimeUnit.MILLISECONDS);
+                for (; update != null; update = backlog.poll()) {
+                    if (group != null) {
+                        queued.increment();
+                        sendMonitorReply(channel, ByteBuffer.wrap(update), group);
+                    } else
+                        route(update);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            pending = false;
+            for (Observer observer : observers.all())
+                pending |= observer.sendNext(channel);
+        }
+    }
+
+    /**
+     * Queues an update for every Observer subscribed to it
+     *
+     * @param update the update
+     */
+    private void route(byte[] update) {
+        int accNumber, action;
+        try {
+            if (isBinaryReply(update)) {
+                accNumber = ByteBuffer.wrap(update).getInt(2);          // after the version and the status code
+                action = update[update.length - 1];
+            } else {
+                Account account = unmarshallAccountReply(update);
+                accNumber = account.getAccNumberValue();
+                action = Arrays.asList(ACTIONS).indexOf(account.getAction());
+            }
+        } catch (RuntimeException e) {
+            return;         // not an account reply
+        }
+
+        observers.forEachMatching(accNumber, action, observer -> {
+            queued.increment();
+            if (observer.offer(update))
+                dropped.increment();
+        });
+    }
+
+    /**
+     * @return the number of updates published
+     */
+    public long published() {
+        return published.sum();
+    }
+
+    /**
+     * @return the number of updates queued for a client, one per client subscribed to each update, or the number
+     *         sent to the multicast group
+     */
+    public long queued() {
+        return queued.sum();
+    }
+
+    /**
+     * @return the number of updates dropped, for a full backlog or for a client too far behind
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;          // not interrupted, which would close the channel in the middle of a send
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,268 @@
+package objects;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The replies sent to the clients, kept for at-most-once semantics so a retransmitted request gets the same reply
+ * instead of being run again
+ * Every client has a window of its last few sequence numbers, a ReplyWindow, holding their replies. A reply is dropped
+ * as soon as the client acknowledges its request, and a request from before the window is never run again, so each
+ * request of a client whose window is kept runs exactly once. The window of a client is dropped once it goes quiet for
+ * the time to live, or when the cache needs the room for the windows of more active clients.
+ *
+ * The cache is split into segments, each a LinkedHashMap from client id to window in access order guarded by its own
+ * lock, so requests from different clients mostly never wait on each other. The least recently active clients of a
+ * segment are always at its head, their windows are dropped from there.
+ */
+public class ReplyCache {
+    public static final int NEW = 0;                // the request is to be run, it is marked as running until its reply is kept
+    public static final int DUPLICATE = 1;          // the request was run, its reply is to be sent again
+    public static final int IN_PROGRESS = 2;        // the request is still being run, the retransmission is dropped
+    public static final int TOO_OLD = 3;            // the client is done with the request, the retransmission is dropped
+
+    static final int REPLY_OVERHEAD = 16;           // estimated bytes taken by a reply besides its bytes: array header
+    private static final int WINDOW_OVERHEAD = 96;  // estimated bytes taken by a window besides its slots: key, window, map entry, array header
+
+    private final Segment[] segments;
+    private final int shift;
+    private final long segmentBytes;
+    private final long ttlNanos;
+    private final int windowSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Constructor to create the cache
+     *
+     * @param segments the number of segments, rounded up to a power of two
+     * @param maxBytes the most bytes the windows and their replies may take, split evenly between the segments
+     * @param ttlMillis how long the window of a client is kept after its last request, in milliseconds
+     * @param windowSize the number of sequence numbers in the window of a client, rounded up to a power of two
+     */
+    public ReplyCache(int segments, long maxBytes, long ttlMillis, int windowSize) {
+        int size = Integer.highestOneBit(Math.max(1, segments - 1)) << 1;
+        this.segments = new Segment[size];
+        for (int i = 0; i < size; i++)
+            this.segments[i] = new Segment();
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+        segmentBytes = maxBytes / size;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.windowSize = Integer.highestOneBit(Math.max(1, windowSize - 1)) << 1;
+    }
+
+    /**
+     * Find the segment holding the window of a client
+     * Uses the high bits of the hash, the map of the segment indexes its table with the low bits
+     *
+     * @param clientID id of the client
+     * @return the segment
+     */
+    private Segment segmentOf(long clientID) {
+        int hash = (int) (clientID * 0x9E3779B97F4A7C15L >>> 32);
+        return segments[shift == 32 ? 0 : hash >>> shift];
+    }
+
+    /**
+     * Decides what to do with a request, after dropping the replies of the requests the client is done with
+     * A new request is marked as running, its reply must then be kept with putReply or the request abandoned
+     *
+     * @param clientID id of the client
+     * @param sequence sequence number of the request
+     * @param acknowledged the sequence number up to which the client is done with every request, 0 if it does not say
+     * @return NEW, DUPLICATE, IN_PROGRESS or TOO_OLD
+     */
+    public int admit(long clientID, long sequence, long acknowledged) {
+        Segment segment = segmentOf(clientID);
+        long now = System.nanoTime();
+
+        int admission;
+        segment.lock.lock();
+        try {
+            ReplyWindow window = segment.windows.get(clientID);
+            if (window == null) {
+                window = new ReplyWindow(Math.max(acknowledged, sequence - windowSize), windowSize);
+                segment.windows.put(clientID, window);
+                segment.bytes += WINDOW_OVERHEAD + 8L * windowSize;
+            }
+            window.lastUsed = now;
+            long bytes = window.bytes;
+            window.acknowledge(acknowledged);
+            admission = window.admit(sequence);
+            segment.bytes += window.bytes - bytes;
+            trim(segment, now, window);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        (admission == NEW ? misses : admission == DUPLICATE ? hits : dropped).increment();
+        return admission;
+    }
+
+    /**
+     * Retrieves the reply sent to a client for a request
+     *
+     * @param clientID id of the client
+     * @param sequence sequence number of the request
+     * @return the reply, or empty if none was sent or it is no longer kept
+     */
+    public Optional<byte[]> getReply(long clientID, long sequence) {
+        Segment segment = segmentOf(clientID);
+        segment.lock.lock();
+        try {
+            ReplyWindow window = segment.windows.get(clientID);
+            return Optional.ofNullable(window == null ? null : window.reply(sequence));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the reply sent to a client for a request admitted as new, then drops the windows of clients gone quiet
+     * and, if the segment is full, those of the least recently active clients
+     *
+     * @param clientID id of the client
+     * @param sequence sequence number of the request
+     * @param reply the reply, which must not be changed afterwards
+     */
+    public void putReply(long clientID, long sequence, byte[] reply) {
+        Segment segment = segmentOf(clientID);
+        segment.lock.lock();
+        try {
+            ReplyWindow window = segment.windows.get(clientID);
+            if (window == null)
+                return;             // dropped while the request was run
+            long bytes = window.bytes;
+            window.complete(sequence, reply);
+            segment.bytes += window.bytes - bytes;
+            trim(segment, System.nanoTime(), window);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a request admitted as new that ended without a reply, so it is run again if the client resends it
+     *
+     * @param clientID id of the client
+     * @param sequence sequence number of the request
+     */
+    public void abandon(long clientID, long sequence) {
+        Segment segment = segmentOf(clientID);
+        segment.lock.lock();
+        try {
+            ReplyWindow window = segment.windows.get(clientID);
+            if (window != null)
+                window.abandon(sequence);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the windows of a segment from its head while they have expired or the segment holds too many bytes
+     * Must be called holding the lock of the segment
+     *
+     * @param segment the segment
+     * @param now System.nanoTime()
+     * @param keep the window just used, which is never dropped
+     */
+    private void trim(Segment segment, long now, ReplyWindow keep) {
+        Iterator<ReplyWindow> oldest = segment.windows.values().iterator();
+        while (oldest.hasNext()) {
+            ReplyWindow eldest = oldest.next();
+            boolean expired = now - eldest.lastUsed >= ttlNanos;
+            if (eldest == keep || !expired && segment.bytes <= segmentBytes)
+                break;
+            oldest.remove();
+            segment.bytes -= WINDOW_OVERHEAD + 8L * windowSize + eldest.bytes;
+            (expired ? expirations : evictions).increment();
+        }
+    }
+
+    /**
+     * @return the number of clients whose window is kept
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.windows.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated bytes taken by the windows and their replies
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                bytes += segment.bytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of retransmitted requests answered with the reply kept
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests admitted as new
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of retransmitted requests dropped, still being run or from before the window of the client
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of windows dropped before their time to live was up, to make room for those of other clients
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of windows dropped because their client went quiet for the time to live
+     */
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "reply cache: " + size() + " clients in " + bytes() / 1024 + " KB, " + hits() + " hits, " + misses()
+                + " misses, " + dropped() + " dropped, " + evictions() + " evictions, " + expirations() + " expirations";
+    }
+
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Long, ReplyWindow> windows = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+    }
+}
@@ -0,0 +1,113 @@
+package objects;
+
+import static objects.ReplyCache.*;
+
+/**
+ * The replies kept for the requests of one client, for its last few sequence numbers, much like a TCP receive window
+ * The window holds the sequence numbers after base up to base + size. Every request up to base is done with: the
+ * client has acknowledged it, or sent one so much later that it can no longer be waiting on it. A retransmitted
+ * request from before the window is therefore never run again, and is told apart by comparing its sequence number
+ * with base alone.
+ *
+ * Not thread safe, the reply cache only uses a window while holding the lock of its segment
+ */
+final class ReplyWindow {
+    private static final byte[] RUNNING = new byte[0];     // in the slot of a request being run, until its reply is kept
+
+    private final byte[][] slots;                           // the reply of sequence number s is in slot s & mask
+    private final int mask;
+    private long base;
+    long lastUsed;                                          // System.nanoTime() of the last request of the client
+    long bytes;                                             // estimated bytes taken by the replies kept
+
+    /**
+     * Constructor to create the window of a client
+     *
+     * @param base the sequence number up to which the client is done with every request
+     * @param size the number of sequence numbers in the window, a power of two
+     */
+    ReplyWindow(long base, int size) {
+        this.slots = new byte[size][];
+        this.mask = size - 1;
+        this.base = base;
+    }
+
+    /**
+     * Slide the window past the requests the client is done with, dropping their replies
+     *
+     * @param acknowledged the sequence number up to which the client is done with every request
+     */
+    void acknowledge(long acknowledged) {
+        if (acknowledged <= base)
+            return;
+        long end = Math.min(acknowledged, base + slots.length);
+        for (long sequence = base + 1; sequence <= end; sequence++) {
+            int slot = (int) sequence & mask;
+            if (slots[slot] != null && slots[slot] != RUNNING)
+                bytes -= slots[slot].length + REPLY_OVERHEAD;
+            slots[slot] = null;
+        }
+        base = acknowledged;
+    }
+
+    /**
+     * Decide what to do with a request, marking it as running if it is new
+     * A request past the end of the window slides it forward, the client cannot be waiting on the requests dropped
+     *
+     * @param sequence sequence number of the request
+     * @return NEW, DUPLICATE, RUNNING or TOO_OLD
+     */
+    int admit(long sequence) {
+        if (sequence <= base)
+            return TOO_OLD;
+        if (sequence > base + slots.length)
+            acknowledge(sequence - slots.length);
+
+        int slot = (int) sequence & mask;
+        if (slots[slot] == null) {
+            slots[slot] = RUNNING;
+            return NEW;
+        }
+        return slots[slot] == RUNNING ? IN_PROGRESS : DUPLICATE;
+    }
+
+    /**
+     * @param sequence sequence number of the request
+     * @return the reply kept for the request, or null if there is none
+     */
+    byte[] reply(long sequence) {
+        if (!inWindow(sequence))
+            return null;
+        byte[] reply = slots[(int) sequence & mask];
+        return reply == RUNNING ? null : reply;
+    }
+
+    /**
+     * Keep the reply of a request being run, unless the window has slid past it in the meantime
+     *
+     * @param sequence sequence number of the request
+     * @param reply the reply
+     */
+    void complete(long sequence, byte[] reply) {
+        int slot = (int) sequence & mask;
+        if (inWindow(sequence) && slots[slot] == RUNNING) {
+            slots[slot] = reply;
+            bytes += reply.length + REPLY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Forget a request being run that ended without a reply, so it is run again if the client resends it
+     *
+     * @param sequence sequence number of the request
+     */
+    void abandon(long sequence) {
+        int slot = (int) sequence & mask;
+        if (inWindow(sequence) && slots[slot] == RUNNING)
+            slots[slot] = null;
+    }
+
+    private boolean inWindow(long sequence) {
+        return sequence > base && sequence <= base + slots.length;
+    }
+}
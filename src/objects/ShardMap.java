@@ -0,0 +1,118 @@
+package objects;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static utils.Constants.FIRST_ACCOUNT_NUMBER;
+
+/**
+ * Partitions the account numbers into contiguous ranges, each held by one server, the shard
+ * Shard i holds the account numbers from first(i) up to, but not including, end(i); the first shard starts at
+ * FIRST_ACCOUNT_NUMBER and the last one runs up to Integer.MAX_VALUE, the range random account numbers are drawn from
+ *
+ * A shard map file has a line per shard, in increasing order of account numbers, holding the first account number of
+ * the shard followed by the host and port of its server, for e.g.
+ *
+ * # first account number, host, port
+ * 1000000000 localhost 6789
+ * 1600000000 localhost 6889
+ *
+ * A ShardMap is never changed once made, a client refreshing its map replaces it as a whole
+ */
+public class ShardMap {
+    private final int[] firsts;
+    private final InetSocketAddress[] addresses;
+
+    /**
+     * Constructor to create a shard map
+     *
+     * @param firsts the first account number of each shard, in increasing order starting at FIRST_ACCOUNT_NUMBER
+     * @param addresses the address of the server of each shard
+     */
+    public ShardMap(int[] firsts, InetSocketAddress[] addresses) {
+        if (firsts.length == 0 || firsts.length != addresses.length || firsts[0] != FIRST_ACCOUNT_NUMBER)
+            throw new IllegalArgumentException("A shard map needs an address for every shard and must start at " + FIRST_ACCOUNT_NUMBER);
+        for (int i = 1; i < firsts.length; i++) {
+            if (firsts[i] <= firsts[i - 1])
+                throw new IllegalArgumentException("The shards of a shard map must be in increasing order");
+        }
+        this.firsts = firsts.clone();
+        this.addresses = addresses.clone();
+    }
+
+    /**
+     * @param address address of the only server
+     * @return a shard map with one shard holding every account number
+     */
+    public static ShardMap single(InetSocketAddress address) {
+        return new ShardMap(new int[]{FIRST_ACCOUNT_NUMBER}, new InetSocketAddress[]{address});
+    }
+
+    /**
+     * Read a shard map file
+     *
+     * @param path path of the file
+     * @return the shard map
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a valid shard map
+     */
+    public static ShardMap load(Path path) throws IOException {
+        List<Integer> firsts = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String line : Files.readAllLines(path)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3)
+                throw new IllegalArgumentException("Expected a first account number, host and port in " + path + ": " + line);
+            firsts.add(Integer.parseInt(fields[0]));
+            addresses.add(new InetSocketAddress(fields[1], Integer.parseInt(fields[2])));
+        }
+        return new ShardMap(firsts.stream().mapToInt(Integer::intValue).toArray(), addresses.toArray(new InetSocketAddress[0]));
+    }
+
+    public int shards() {
+        return firsts.length;
+    }
+
+    /**
+     * Find the shard holding an account
+     *
+     * @param accNumber the account number
+     * @return index of the shard
+     */
+    public int shardOf(int accNumber) {
+        int i = Arrays.binarySearch(firsts, accNumber);
+        return i >= 0 ? i : Math.max(0, -i - 2);       // the last shard starting at or before the account number
+    }
+
+    /**
+     * @param shard index of the shard
+     * @return the first account number held by the shard
+     */
+    public int first(int shard) {
+        return firsts[shard];
+    }
+
+    /**
+     * @param shard index of the shard
+     * @return the account number after the last one held by the shard
+     */
+    public int end(int shard) {
+        return shard + 1 < firsts.length ? firsts[shard + 1] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param shard index of the shard
+     * @return the address of the server of the shard
+     */
+    public InetSocketAddress address(int shard) {
+        return addresses[shard];
+    }
+}
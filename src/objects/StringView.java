@@ -0,0 +1,62 @@
+package objects;
+
+import utils.UtilityFunctions;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A String field of a request, read in place from the buffer the request was received into
+ * Names and passwords only have to be compared against the account they are for, so no String is created for them
+ * unless it is really needed, e.g. when a new account is opened
+ */
+public class StringView {
+    private final byte[] array;
+    private final int offset;
+    private final int length;
+
+    public StringView(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Compare the field against a String without decoding the field
+     * ASCII text is compared byte by byte, anything else is decoded first
+     *
+     * @param text the String to compare against
+     * @return true if the field holds the same text
+     */
+    public boolean contentEquals(String text) {
+        if (text == null || text.length() > length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            byte b = array[offset + i];
+            if (b < 0)
+                return toString().equals(text);     // not ASCII
+            if (i >= text.length() || text.charAt(i) != b)
+                return false;
+        }
+        return text.length() == length;
+    }
+
+    /**
+     * Hash the field as a password, without decoding it
+     *
+     * @param accNumber the account number the password is for
+     * @return the same hash as UtilityFunctions.credentialHash gives for the password as a String
+     */
+    public long credentialHash(int accNumber) {
+        return UtilityFunctions.credentialHash(accNumber, array, offset, length);
+    }
+
+    /**
+     * Decode the field into a String
+     *
+     * @return the field as a String
+     */
+    @Override
+    public String toString() {
+        return new String(array, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package objects;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by all accounts on the server
+ * Each account number always maps to the same lock, so operations on different accounts mostly run in parallel
+ * while operations on the same account are serialised, without keeping a lock object for every account
+ */
+public class StripedLocks {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * Constructor to create the locks
+     *
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++)
+            locks[i] = new ReentrantLock();
+        mask = size - 1;
+    }
+
+    /**
+     * Find the index of the lock guarding an account
+     * The account number is mixed first as account numbers are not spread evenly over the low bits
+     *
+     * @param accNumber the account number
+     * @return index into the array of locks
+     */
+    private int stripeOf(int accNumber) {
+        int h = accNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public void lock(int accNumber) {
+        locks[stripeOf(accNumber)].lock();
+    }
+
+    public void unlock(int accNumber) {
+        locks[stripeOf(accNumber)].unlock();
+    }
+
+    /**
+     * Lock the two accounts taking part in a transfer
+     * Locks are always taken in the order of their index so two opposite transfers cannot deadlock
+     *
+     * @param accNumber the first account number
+     * @param otherAccNumber the second account number
+     */
+    public void lockBoth(int accNumber, int otherAccNumber) {
+        int first = stripeOf(accNumber);
+        int second = stripeOf(otherAccNumber);
+        locks[Math.min(first, second)].lock();
+        if (first != second)
+            locks[Math.max(first, second)].lock();
+    }
+
+    /**
+     * Unlock the two accounts locked by lockBoth
+     *
+     * @param accNumber the first account number
+     * @param otherAccNumber the second account number
+     */
+    public void unlockBoth(int accNumber, int otherAccNumber) {
+        int first = stripeOf(accNumber);
+        int second = stripeOf(otherAccNumber);
+        if (first != second)
+            locks[Math.max(first, second)].unlock();
+        locks[Math.min(first, second)].unlock();
+    }
+}
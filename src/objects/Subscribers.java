@@ -0,0 +1,101 @@
+package objects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The clients monitoring the server, by client identifier, indexed by the account numbers they subscribed to
+ * An update on an account is only matched against the clients watching every account and those watching that account,
+ * not against every client.
+ *
+ * Clients come and go rarely next to the updates, so every change rebuilds the index, which is then published as a
+ * whole; looking up the clients of an update takes no lock.
+ */
+public class Subscribers {
+    private final Map<String, Observer> observers = new HashMap<>();       // guarded by this
+    private volatile Index index = new Index(new ArrayList<>());
+
+    /**
+     * Adds a monitoring client, replacing its earlier subscription if it has one
+     *
+     * @param clientIdentifier the string identifying the client
+     * @param observer the Observer representing the client, with its subscription
+     */
+    public synchronized void add(String clientIdentifier, Observer observer) {
+        observers.put(clientIdentifier, observer);
+        index = new Index(observers.values());
+    }
+
+    /**
+     * Removes a monitoring client
+     *
+     * @param clientIdentifier the string identifying the client
+     */
+    public synchronized void remove(String clientIdentifier) {
+        if (observers.remove(clientIdentifier) != null)
+            index = new Index(observers.values());
+    }
+
+    public boolean isEmpty() {
+        return index.all.length == 0;
+    }
+
+    public int size() {
+        return index.all.length;
+    }
+
+    /**
+     * @return every monitoring client, as of now
+     */
+    public List<Observer> all() {
+        return Collections.unmodifiableList(Arrays.asList(index.all));
+    }
+
+    /**
+     * Runs an action for every monitoring client subscribed to an update
+     *
+     * @param accNumber the account number of the update
+     * @param accAction index of the action of the update in ACTIONS
+     * @param action the action
+     */
+    public void forEachMatching(int accNumber, int accAction, Consumer<Observer> action) {
+        Index index = this.index;
+        for (Observer observer : index.everyAccount) {
+            if (observer.subscription().matches(accNumber, accAction))
+                action.accept(observer);
+        }
+        for (Observer observer : index.byAccount.getOrDefault(accNumber, Index.NONE)) {
+            if (observer.subscription().matches(accNumber, accAction))
+                action.accept(observer);
+        }
+    }
+
+    private static final class Index {
+        static final Observer[] NONE = new Observer[0];
+
+        final Observer[] all;
+        final Observer[] everyAccount;                  // subscribed to every account
+        final Map<Integer, Observer[]> byAccount;       // subscribed to some accounts, by each of those account numbers
+
+        Index(Collection<Observer> observers) {
+            all = observers.toArray(NONE);
+            List<Observer> everyAccount = new ArrayList<>();
+            Map<Integer, List<Observer>> byAccount = new HashMap<>();
+            for (Observer observer : all) {
+                if (observer.subscription().allAccounts())
+                    everyAccount.add(observer);
+                for (int accNumber : observer.subscription().accNumbers())
+                    byAccount.computeIfAbsent(accNumber, k -> new ArrayList<>()).add(observer);
+            }
+            this.everyAccount = everyAccount.toArray(NONE);
+            this.byAccount = new HashMap<>();
+            byAccount.forEach((accNumber, subscribers) -> this.byAccount.put(accNumber, subscribers.toArray(NONE)));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package objects;
+
+import java.util.Arrays;
+
+import static utils.Constants.ACTIONS;
+
+/**
+ * The updates a monitoring client asks for: those on some account numbers, or on every account, and of some actions
+ * A Subscription is never changed once made
+ */
+public class Subscription {
+    public static final int ALL_ACTIONS = (1 << ACTIONS.length) - 1;
+    public static final Subscription ALL = new Subscription(new int[0], ALL_ACTIONS);
+
+    private final int[] accNumbers;         // sorted without repeats, empty for every account
+    private final int actions;              // bit i set for ACTIONS[i]
+
+    /**
+     * Constructor to create a subscription
+     *
+     * @param accNumbers the account numbers, empty for every account; an account number given twice counts once, so the
+     *                   client is indexed under it, and sent its updates, only once
+     * @param actions the actions as a bit mask, bit i for ACTIONS[i]
+     */
+    public Subscription(int[] accNumbers, int actions) {
+        this.accNumbers = Arrays.stream(accNumbers).sorted().distinct().toArray();
+        this.actions = actions & ALL_ACTIONS;
+    }
+
+    /**
+     * @param action index of the action in ACTIONS
+     * @return the bit of the action in the mask of a subscription
+     */
+    public static int actionBit(int action) {
+        return 1 << action;
+    }
+
+    /**
+     * @return true if the subscription covers every account
+     */
+    public boolean allAccounts() {
+        return accNumbers.length == 0;
+    }
+
+    /**
+     * @return the account numbers, in increasing order without repeats, empty for every account
+     */
+    public int[] accNumbers() {
+        return accNumbers.clone();
+    }
+
+    /**
+     * @return the actions as a bit mask, bit i for ACTIONS[i]
+     */
+    public int actions() {
+        return actions;
+    }
+
+    /**
+     * Check whether an update is one the client asked for
+     *
+     * @param accNumber the account number of the update
+     * @param action index of the action of the update in ACTIONS
+     * @return true if the update is to be sent to the client
+     */
+    public boolean matches(int accNumber, int action) {
+        return (actions & actionBit(action)) != 0 && (allAccounts() || Arrays.binarySearch(accNumbers, accNumber) >= 0);
+    }
+}
@@ -0,0 +1,422 @@
+package persistence;
+
+import objects.Account;
+import objects.AccountStore;
+import objects.Currency;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static utils.Constants.STORE_FULL;
+
+/**
+ * An account store keeping its accounts off the Java heap, in a memory-mapped file
+ * The file is an open addressing hash table of fixed size records, probed linearly like AccountMap, so an existing
+ * table is used as it is when the server starts again, nothing is rebuilt
+ *
+ * Table file: a 64 byte header (magic number, version, number of slots, number of accounts, end of the names file)
+ * followed by one 32 byte record per slot:
+ *
+ *   0  int   account number, 0 for an empty slot
+ *   4  byte  currency ordinal
+ *   8  long  balance in minor units
+ *   16 long  credential hash, the password itself is not kept
+ *   24 long  offset of the name in the names file
+ *
+ * Names file (table file name + ".names"): every name as a 4 byte length followed by its UTF-8 bytes, appended when
+ * the account is opened; the space of closed accounts is not reused
+ *
+ * get returns a new Account built from the record, changes to it are written back by update. Lookups, updates and
+ * forEach share a read lock, adding or removing an account takes the write lock. Each mapping is limited to 2GB, so a
+ * table holds up to 2^25 slots, about 23M accounts, and names up to 2GB; an account that does not fit is refused with
+ * STORE_FULL.
+ *
+ * The credential hashes are fast to compute and so can be brute-forced offline by anyone who can read the table file,
+ * see UtilityFunctions.credentialHash.
+ */
+public class MappedAccountTable implements AccountStore, Closeable {
+    private static final int MAGIC = 0x41434354;       // "ACCT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int NAMES_END_OFFSET = 16;
+
+    private static final int RECORD_SIZE = 32;
+    private static final int ACC_NUMBER = 0;
+    private static final int CURRENCY = 4;
+    private static final int BALANCE = 8;
+    private static final int CREDENTIAL_HASH = 16;
+    private static final int NAME_OFFSET = 24;
+
+    private static final int MAX_CAPACITY = 1 << 25;           // the most slots whose records fit in one mapping
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;  // the largest size of a mapping, indexed by int
+
+    private static final int EMPTY = 0;
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    private final Path path;
+    private final Path namesPath;
+    private final StampedLock lock = new StampedLock();
+    private FileChannel channel;
+    private FileChannel namesChannel;
+    private MappedByteBuffer records;
+    private MappedByteBuffer names;
+    private int capacity;
+    private int size;
+    private long namesEnd;
+
+    private MappedAccountTable(Path path) {
+        this.path = path;
+        this.namesPath = Paths.get(path + ".names");
+    }
+
+    /**
+     * Open the account table in a file, creating it if the file does not exist
+     *
+     * @param path the table file
+     * @param expectedAccounts the number of accounts a new table should hold without growing
+     * @return the account table
+     * @throws IOException if the files cannot be opened or do not hold an account table
+     */
+    public static MappedAccountTable open(Path path, int expectedAccounts) throws IOException {
+        MappedAccountTable table = new MappedAccountTable(path);
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER_SIZE;
+
+        table.channel = FileChannel.open(path, CREATE, READ, WRITE);
+        table.namesChannel = FileChannel.open(table.namesPath, CREATE, READ, WRITE);
+        if (exists) {
+            MappedByteBuffer header = table.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION)
+                throw new IOException(path + " is not an account table");
+            table.capacity = header.getInt(CAPACITY_OFFSET);
+            if (table.capacity <= 0 || table.capacity > MAX_CAPACITY)
+                throw new IOException(path + " has " + table.capacity + " slots, more than one mapping holds");
+            table.records = table.channel.map(FileChannel.MapMode.READ_WRITE, 0, recordsFileSize(table.capacity));
+            table.size = table.records.getInt(SIZE_OFFSET);
+            table.namesEnd = table.records.getLong(NAMES_END_OFFSET);
+        } else {
+            table.capacity = tableSizeFor((int) Math.min(Math.ceil(Math.max(expectedAccounts, 1) / LOAD_FACTOR), MAX_CAPACITY));
+            table.records = table.channel.map(FileChannel.MapMode.READ_WRITE, 0, recordsFileSize(table.capacity));
+            writeHeader(table.records, table.capacity, 0, 0);
+        }
+        table.names = table.namesChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(table.namesEnd, 1 << 20));
+        return table;
+    }
+
+    @Override
+    public Account get(int accNumber) {
+        long stamp = lock.readLock();
+        try {
+            int slot = find(accNumber);
+            return slot < 0 ? null : read(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Account putIfAbsent(int accNumber, Account account) {
+        if (accNumber == EMPTY)
+            throw new IllegalArgumentException("Account number " + EMPTY + " cannot be stored");
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(accNumber);
+            if (slot >= 0)
+                return read(slot);
+            if (size + 1 > capacity * LOAD_FACTOR) {
+                if (capacity >= MAX_CAPACITY)
+                    throw new IllegalArgumentException(STORE_FULL);
+                resize(capacity * 2);
+            }
+
+            long nameOffset = appendName(account.getName());
+            slot = emptySlotFor(records, capacity, accNumber);
+            int position = position(slot);
+            records.put(position + CURRENCY, (byte) account.getCurrency().ordinal());
+            records.putLong(position + BALANCE, account.getAccBalance());
+            records.putLong(position + CREDENTIAL_HASH, account.getCredentialHash());
+            records.putLong(position + NAME_OFFSET, nameOffset);
+            records.putInt(position + ACC_NUMBER, accNumber);       // written last, the slot is in use from here on
+            records.putInt(SIZE_OFFSET, ++size);
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow account table " + path, e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void update(Account account) {
+        long stamp = lock.readLock();
+        try {
+            int slot = find(account.getAccNumberValue());
+            if (slot >= 0)
+                records.putLong(position(slot) + BALANCE, account.getAccBalance());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Account remove(int accNumber) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(accNumber);
+            if (slot < 0)
+                return null;
+            Account removed = read(slot);
+
+            /* shift back every following record that would no longer be found past the gap, as in AccountMap */
+            int mask = capacity - 1;
+            int gap = slot;
+            int index = (slot + 1) & mask;
+            while (accNumberAt(index) != EMPTY) {
+                int home = hash(accNumberAt(index)) & mask;
+                if (((index - home) & mask) >= ((index - gap) & mask)) {
+                    copyRecord(records, index, records, gap);
+                    gap = index;
+                }
+                index = (index + 1) & mask;
+            }
+            records.putInt(position(gap) + ACC_NUMBER, EMPTY);
+            records.putInt(SIZE_OFFSET, --size);
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Run an action on every account, built from its record as get does
+     * The records in use are copied under the read lock and the action runs after it is released, so a slow action
+     * (e.g. writing a snapshot) never holds up the requests. The copy takes 32 bytes per account on the heap; the names
+     * are read from the names file afterwards, which is safe as a name is never overwritten.
+     *
+     * @param action the action
+     */
+    @Override
+    public void forEach(Consumer<Account> action) {
+        ByteBuffer copy;
+        MappedByteBuffer names;
+        long stamp = lock.readLock();
+        try {
+            copy = ByteBuffer.allocate(size * RECORD_SIZE);
+            for (int slot = 0; slot < capacity; slot++) {
+                if (accNumberAt(slot) == EMPTY)
+                    continue;
+                int position = position(slot);
+                for (int i = 0; i < RECORD_SIZE; i += Long.BYTES)
+                    copy.putLong(records.getLong(position + i));
+            }
+            names = this.names;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        for (int position = 0; position < copy.capacity(); position += RECORD_SIZE)
+            action.accept(read(copy, position, names));
+    }
+
+    /**
+     * Write the accounts to disk and close the files
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            records.force();
+            names.force();
+            channel.close();
+            namesChannel.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param accNumber the account number
+     * @return the slot holding the account, or -1 if there is no account with this number
+     */
+    private int find(int accNumber) {
+        if (accNumber == EMPTY)
+            return -1;
+        int mask = capacity - 1;
+        int index = hash(accNumber) & mask;
+        while (true) {
+            int key = accNumberAt(index);
+            if (key == accNumber)
+                return index;
+            if (key == EMPTY)
+                return -1;
+            index = (index + 1) & mask;
+        }
+    }
+
+    private int accNumberAt(int slot) {
+        return records.getInt(position(slot) + ACC_NUMBER);
+    }
+
+    /**
+     * Build an Account from the record in a slot
+     *
+     * @param slot the slot
+     * @return the account
+     */
+    private Account read(int slot) {
+        return read(records, position(slot), names);
+    }
+
+    /**
+     * Build an Account from a record
+     *
+     * @param records the buffer holding the record, the table or a copy of its records
+     * @param position position of the record in the buffer
+     * @param names the names file
+     * @return the account
+     */
+    private static Account read(ByteBuffer records, int position, MappedByteBuffer names) {
+        int nameOffset = Math.toIntExact(records.getLong(position + NAME_OFFSET));
+        byte[] name = new byte[names.getInt(nameOffset)];
+        for (int i = 0; i < name.length; i++)
+            name[i] = names.get(nameOffset + Integer.BYTES + i);
+
+        return new Account(new String(name, StandardCharsets.UTF_8), CURRENCIES[records.get(position + CURRENCY)],
+                records.getLong(position + CREDENTIAL_HASH), records.getLong(position + BALANCE), records.getInt(position + ACC_NUMBER));
+    }
+
+    /**
+     * Append a name to the names file, mapping a larger part of the file if needed
+     *
+     * @param name the name
+     * @return offset of the name in the names file
+     * @throws IOException if the names file cannot grow
+     * @throws IllegalArgumentException with the STORE_FULL status code if the names file would grow past MAX_MAPPING
+     */
+    private long appendName(String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long offset = namesEnd;
+        long end = offset + Integer.BYTES + bytes.length;
+        if (end > MAX_MAPPING)
+            throw new IllegalArgumentException(STORE_FULL);
+        if (end > names.capacity())
+            names = namesChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MAX_MAPPING, Math.max(end, names.capacity() * 2L)));
+
+        int position = (int) offset;        // below MAX_MAPPING, checked above
+        names.putInt(position, bytes.length);
+        for (int i = 0; i < bytes.length; i++)
+            names.put(position + Integer.BYTES + i, bytes[i]);
+        namesEnd = end;
+        records.putLong(NAMES_END_OFFSET, namesEnd);
+        return offset;
+    }
+
+    /**
+     * Move every record into a new table file with more slots, which then replaces the old one
+     *
+     * @param newCapacity the new number of slots, a power of two
+     * @throws IOException if the new table file cannot be written
+     */
+    private void resize(int newCapacity) throws IOException {
+        Path resized = Paths.get(path + ".resize");
+        FileChannel newChannel = FileChannel.open(resized, CREATE, READ, WRITE);
+        MappedByteBuffer newRecords = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, recordsFileSize(newCapacity));
+        writeHeader(newRecords, newCapacity, size, namesEnd);
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int accNumber = accNumberAt(slot);
+            if (accNumber != EMPTY)
+                copyRecord(records, slot, newRecords, emptySlotFor(newRecords, newCapacity, accNumber));
+        }
+        newRecords.force();
+
+        channel.close();
+        Files.move(resized, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = newChannel;
+        records = newRecords;
+        capacity = newCapacity;
+    }
+
+    private static int emptySlotFor(MappedByteBuffer records, int capacity, int accNumber) {
+        int mask = capacity - 1;
+        int index = hash(accNumber) & mask;
+        while (records.getInt(position(index) + ACC_NUMBER) != EMPTY)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    private static void copyRecord(MappedByteBuffer from, int fromSlot, MappedByteBuffer to, int toSlot) {
+        int fromPosition = position(fromSlot);
+        int toPosition = position(toSlot);
+        for (int i = 0; i < RECORD_SIZE; i += Long.BYTES)
+            to.putLong(toPosition + i, from.getLong(fromPosition + i));
+    }
+
+    private static void writeHeader(MappedByteBuffer records, int capacity, int size, long namesEnd) {
+        records.putInt(MAGIC_OFFSET, MAGIC);
+        records.putInt(VERSION_OFFSET, VERSION);
+        records.putInt(CAPACITY_OFFSET, capacity);
+        records.putInt(SIZE_OFFSET, size);
+        records.putLong(NAMES_END_OFFSET, namesEnd);
+    }
+
+    /**
+     * @param slot the slot
+     * @return the position of the record of the slot in the table file, worked out in long so a slot past the end of
+     *         a mapping fails instead of wrapping around
+     */
+    private static int position(int slot) {
+        return Math.toIntExact(HEADER_SIZE + (long) slot * RECORD_SIZE);
+    }
+
+    private static long recordsFileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    }
+
+    /**
+     * Same mixing as AccountMap, so account numbers close to each other are spread over the table
+     * Kept here as the layout of existing table files depends on it
+     */
+    private static int hash(int accNumber) {
+        int h = accNumber * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param slots the number of slots needed
+     * @return the smallest power of two holding that many slots
+     */
+    private static int tableSizeFor(int slots) {
+        return Math.max(2, Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+    }
+}
@@ -0,0 +1,73 @@
+package persistence;
+
+import objects.Account;
+
+/**
+ * Where ServerInterface records every change it makes to the accounts, and what the server waits on before it replies
+ * The changes are recorded with the state they leave the accounts in, not as the operation, so applying a record
+ * twice gives the same result
+ * All methods do nothing by default, which is the log used when the server keeps no log (NONE)
+ */
+public interface MutationLog {
+    MutationLog NONE = new MutationLog() {
+    };
+
+    /**
+     * Record a newly opened account, called while the account is locked
+     *
+     * @param account the account
+     */
+    default void logOpen(Account account) {
+    }
+
+    /**
+     * Record the new balance of an account after a deposit or withdrawal, called while the account is locked
+     *
+     * @param account the account
+     */
+    default void logBalance(Account account) {
+    }
+
+    /**
+     * Record the new balances of both accounts of a transfer as one change, called while both accounts are locked
+     *
+     * @param from the account the funds were transferred from
+     * @param to the account the funds were transferred to
+     */
+    default void logTransfer(Account from, Account to) {
+    }
+
+    /**
+     * Record a closed account, called while the account is locked
+     *
+     * @param accNumber the account number
+     */
+    default void logClose(int accNumber) {
+    }
+
+    /**
+     * @return the position in the log after the last change recorded so far
+     */
+    default long appendedPosition() {
+        return 0;
+    }
+
+    /**
+     * @param position a position in the log
+     * @return true if every change up to the position has been made durable
+     */
+    default boolean isDurable(long position) {
+        return true;
+    }
+
+    /**
+     * Run an action once every change up to a position in the log has been made durable, e.g. send a reply
+     * The action is run at once if the position is already durable, otherwise later on the thread writing the log
+     *
+     * @param position a position in the log
+     * @param action the action
+     */
+    default void whenDurable(long position, Runnable action) {
+        action.run();
+    }
+}
@@ -0,0 +1,174 @@
+package persistence;
+
+import objects.AccountStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static persistence.ReplicationPrimary.*;
+
+/**
+ * The backup side of primary-backup replication: follows a primary, see ReplicationPrimary, keeping its own snapshot
+ * and write-ahead log with the same records at the same positions, so it can take over as primary when it is lost
+ *
+ * The primary is taken to be lost when the connection fails or nothing, not even a heartbeat, arrives for the timeout.
+ * There is nobody to ask whether the primary is really gone, so a primary that is only cut off from its backup keeps
+ * serving as well; the clients are expected to move to the backup once the primary stops answering them.
+ */
+public class ReplicationBackup {
+    private final InetSocketAddress primary;
+    private final AccountStore accounts;
+    private final Path snapshotPath;
+    private final Path logDirectory;
+    private final long windowMicros;
+    private final long timeoutMillis;
+    private WriteAheadLog log;
+    private long snapshotPosition;
+
+    /**
+     * Constructor to create a backup, the accounts are replaced by those of the primary
+     *
+     * @param primary address the primary accepts backups on
+     * @param accounts the accounts, empty
+     * @param snapshotPath path of the snapshot file of this backup
+     * @param logDirectory the directory holding the write-ahead log of this backup
+     * @param windowMicros the group commit window of the write-ahead log, in microseconds
+     * @param timeoutMillis how long to go without hearing from the primary before it is taken to be lost
+     */
+    public ReplicationBackup(InetSocketAddress primary, AccountStore accounts, Path snapshotPath, Path logDirectory,
+                             long windowMicros, long timeoutMillis) {
+        this.primary = primary;
+        this.accounts = accounts;
+        this.snapshotPath = snapshotPath;
+        this.logDirectory = logDirectory;
+        this.windowMicros = windowMicros;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Follow the primary until it is lost
+     *
+     * @return the write-ahead log holding every change received from the primary, to be continued when taking over
+     * @throws IOException if the primary cannot be reached at all, or the snapshot it sent cannot be stored
+     */
+    public WriteAheadLog follow() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(primary);
+        socket.setTcpNoDelay(true);
+        System.out.println("Following primary " + primary);
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readByte() != SNAPSHOT)
+                throw new IOException("Expected a snapshot from the primary");
+            receiveSnapshot(in, in.readLong());
+            socket.setSoTimeout((int) timeoutMillis);       // from here on the primary sends at least a heartbeat in time
+
+            ByteBuffer records = ByteBuffer.allocate(1 << 16);
+            while (true) {
+                byte frame = in.readByte();
+                if (frame == HEARTBEAT)
+                    continue;
+                if (frame != BATCH)
+                    throw new IOException("Unknown frame " + frame + " from the primary");
+
+                long start = in.readLong();
+                int length = in.readInt();
+                if (records.capacity() < length)
+                    records = ByteBuffer.allocate(Math.max(length, records.capacity() * 2));
+                in.readFully(records.array(), 0, length);
+                records.clear().limit(length);
+                if (start + length <= snapshotPosition)
+                    continue;           // already in the snapshot, if the primary sent a newer one than it asked for
+
+                WriteAheadLog.applyRecords(records.duplicate(), accounts);
+                long end = log.appendReplicated(start, records);
+                acknowledge(out, ACK_RECEIVED, end);
+                log.whenDurable(end, () -> acknowledge(out, ACK_DURABLE, end));
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Primary " + primary + " sent nothing for " + timeoutMillis + " ms");
+        } catch (IOException e) {
+            if (log == null)
+                throw e;
+            System.out.println("Lost primary " + primary + ": " + e);
+        } finally {
+            socket.close();
+        }
+        return log;
+    }
+
+    /**
+     * Store the snapshot sent by the primary as the snapshot of this backup, load it and start a new log from its position
+     *
+     * @param in the connection to the primary
+     * @param length length of the snapshot
+     * @throws IOException if the snapshot cannot be received or stored
+     */
+    private void receiveSnapshot(InputStream in, long length) throws IOException {
+        Path temporary = Paths.get(snapshotPath + ".received");
+        try (FileChannel file = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[1 << 16];
+            for (long remaining = length; remaining > 0; ) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new IOException("Snapshot from the primary is cut short");
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining())
+                    file.write(chunk);
+                remaining -= read;
+            }
+            file.force(true);
+        }
+        Files.move(temporary, snapshotPath, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        WriteAheadLog.discard(logDirectory);         // the log of an earlier run does not follow on from this snapshot
+        snapshotPosition = Snapshot.load(snapshotPath, accounts);
+        log = WriteAheadLog.open(logDirectory, snapshotPosition, windowMicros, accounts);
+        System.out.println("Loaded " + accounts.size() + " accounts from the primary's snapshot at log position " + snapshotPosition);
+    }
+
+    /**
+     * @return the log position of the snapshot received from the primary, the changes before it are not in the log
+     */
+    public long snapshotPosition() {
+        return snapshotPosition;
+    }
+
+    /**
+     * Tell the primary how far the log of this backup has got, called on the receiving and the flusher threads
+     *
+     * @param out the connection to the primary
+     * @param level ACK_RECEIVED or ACK_DURABLE
+     * @param position the log position
+     */
+    private static void acknowledge(DataOutputStream out, byte level, long position) {
+        synchronized (out) {
+            try {
+                out.writeByte(level);
+                out.writeLong(position);
+                out.flush();
+            } catch (IOException ignored) {
+                // the connection is gone, which the receiving thread finds out as well
+            }
+        }
+    }
+}
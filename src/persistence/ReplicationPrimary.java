@@ -0,0 +1,413 @@
+package persistence;
+
+import objects.Account;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static utils.Constants.REPLICATION_ACK_DURABLE;
+import static utils.Constants.REPLICATION_ACK_NONE;
+import static utils.Constants.REPLICATION_ACK_RECEIVED;
+
+/**
+ * The primary side of primary-backup replication: streams every batch of the write-ahead log to the backups over TCP
+ * once it is on the local disk
+ *
+ * A backup connecting is first sent a fresh snapshot, then every batch from the position of the snapshot onwards.
+ * Backups acknowledge each batch twice, once it is received and once it is on their disk. The acknowledgement level
+ * decides which of these a reply to a client waits for:
+ *
+ *   REPLICATION_ACK_NONE      the reply only waits for the local disk, the backups may be behind (asynchronous)
+ *   REPLICATION_ACK_RECEIVED  the reply also waits until every backup has received the change
+ *   REPLICATION_ACK_DURABLE   the reply also waits until the change is on the disk of every backup
+ *
+ * Only backups that have caught up with their snapshot are waited for, and a backup that disconnects or falls more
+ * than a queue of batches behind is dropped, so the primary keeps serving without backups.
+ *
+ * Frames sent to the backup: SNAPSHOT (long length, the snapshot file), BATCH (long log position, int length, records)
+ * and HEARTBEAT when there is nothing to send. Frames sent back: ACK (byte level, long log position).
+ */
+public class ReplicationPrimary implements MutationLog, Closeable {
+    static final byte SNAPSHOT = 1;
+    static final byte BATCH = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte ACK_RECEIVED = REPLICATION_ACK_RECEIVED;
+    static final byte ACK_DURABLE = REPLICATION_ACK_DURABLE;
+
+    private static final int LAG_SAMPLES = 1 << 16;
+
+    private final WriteAheadLog log;
+    private final Snapshotter snapshotter;
+    private final Path snapshotPath;
+    private final int ackLevel;
+    private final long heartbeatMillis;
+    private final int queueBatches;
+    private final ServerSocket serverSocket;
+    private final List<Backup> backups = new CopyOnWriteArrayList<>();
+    private final List<Waiter> waiters = new ArrayList<>();        // guarded by this
+    private final long[] lagSamples = new long[LAG_SAMPLES];       // guarded by this
+    private int lagCount;
+    private volatile boolean closed;
+
+    private static final class Waiter {
+        final long position;
+        final Runnable action;
+
+        Waiter(long position, Runnable action) {
+            this.position = position;
+            this.action = action;
+        }
+    }
+
+    private static final class Batch {
+        final long start;
+        final long end;
+        final byte[] records;
+        final long durableNanos;        // when the batch was on the local disk
+
+        Batch(long start, byte[] records, long durableNanos) {
+            this.start = start;
+            this.end = start + records.length;
+            this.records = records;
+            this.durableNanos = durableNanos;
+        }
+    }
+
+    /**
+     * A connected backup, with a thread sending it batches and a thread reading its acknowledgements
+     */
+    private final class Backup {
+        final Socket socket;
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueBatches);
+        final ArrayDeque<Batch> unacknowledged = new ArrayDeque<>();      // guarded by this, sent but not on the backup's disk yet
+        volatile long receivedPosition = -1;
+        volatile long durablePosition = -1;
+        volatile boolean synced;        // caught up with the snapshot it was sent
+
+        Backup(Socket socket) {
+            this.socket = socket;
+        }
+
+        void send() {
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                long position = snapshotter.snapshot();         // batches after this position are already queued
+                out.writeByte(SNAPSHOT);
+                out.writeLong(Files.size(snapshotPath));
+                Files.copy(snapshotPath, out);
+                out.flush();
+
+                while (!closed) {
+                    Batch batch = queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        out.writeByte(HEARTBEAT);
+                    } else if (batch.end > position) {
+                        synchronized (this) {
+                            unacknowledged.add(batch);
+                        }
+                        out.writeByte(BATCH);
+                        out.writeLong(batch.start);
+                        out.writeInt(batch.records.length);
+                        out.write(batch.records);
+                        if (!queue.isEmpty())
+                            continue;           // flush once the queue is drained
+                    }
+                    out.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed)
+                    System.out.println("Lost backup " + socket.getRemoteSocketAddress() + ": " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                remove(this);
+            }
+        }
+
+        void receiveAcks() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (!closed) {
+                    byte level = in.readByte();
+                    long position = in.readLong();
+                    if (level == ACK_RECEIVED) {
+                        receivedPosition = position;
+                    } else {
+                        durablePosition = position;
+                        recordLag(this, position);
+                    }
+                    synced = true;
+                    acknowledged();
+                }
+            } catch (IOException e) {
+                // the sending thread finds out as well and removes the backup
+            } finally {
+                close(this);
+            }
+        }
+    }
+
+    /**
+     * Constructor to start accepting backups
+     *
+     * @param log the write-ahead log to replicate
+     * @param snapshotter takes the snapshots sent to backups when they connect
+     * @param snapshotPath path of the snapshot file the snapshotter writes
+     * @param port the TCP port backups connect to
+     * @param ackLevel what a reply waits for, REPLICATION_ACK_NONE, REPLICATION_ACK_RECEIVED or REPLICATION_ACK_DURABLE
+     * @param heartbeatMillis how often a heartbeat is sent to a backup there is nothing else to send to
+     * @param queueBatches how many batches a backup may fall behind before it is dropped
+     * @throws IOException if the port cannot be bound
+     */
+    public ReplicationPrimary(WriteAheadLog log, Snapshotter snapshotter, Path snapshotPath, int port, int ackLevel,
+                              long heartbeatMillis, int queueBatches) throws IOException {
+        this.log = log;
+        this.snapshotter = snapshotter;
+        this.snapshotPath = snapshotPath;
+        this.ackLevel = ackLevel;
+        this.heartbeatMillis = heartbeatMillis;
+        this.queueBatches = queueBatches;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        log.setBatchListener(this::batchDurable);
+
+        Thread acceptor = new Thread(this::accept, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Backup backup = new Backup(socket);
+                backups.add(backup);            // from here on every batch is queued for it
+                System.out.println("Backup " + socket.getRemoteSocketAddress() + " connected");
+
+                Thread sender = new Thread(backup::send, "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+                Thread receiver = new Thread(backup::receiveAcks, "replication-acks");
+                receiver.setDaemon(true);
+                receiver.start();
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queue a batch that is on the local disk for every backup, called on the flusher thread of the log
+     *
+     * @param records the records of the batch
+     * @param start log position of the first record
+     */
+    private void batchDurable(ByteBuffer records, long start) {
+        if (backups.isEmpty())
+            return;
+        byte[] copy = new byte[records.remaining()];
+        records.get(copy);
+        Batch batch = new Batch(start, copy, System.nanoTime());
+        for (Backup backup : backups) {
+            if (!backup.queue.offer(batch)) {
+                System.out.println("Backup " + backup.socket.getRemoteSocketAddress() + " fell too far behind");
+                close(backup);
+            }
+        }
+    }
+
+    private void remove(Backup backup) {
+        close(backup);
+        backups.remove(backup);
+        acknowledged();         // replies waiting on this backup can go
+    }
+
+    private static void close(Backup backup) {
+        try {
+            backup.socket.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * @param position a log position
+     * @return true if every backup being waited for has acknowledged the position at the acknowledgement level
+     */
+    private boolean replicated(long position) {
+        for (Backup backup : backups) {
+            if (!backup.synced)
+                continue;
+            long acknowledged = ackLevel == REPLICATION_ACK_RECEIVED ? backup.receivedPosition : backup.durablePosition;
+            if (acknowledged < position)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run the actions whose position every backup has now acknowledged
+     */
+    private void acknowledged() {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < waiters.size(); ) {
+                Waiter waiter = waiters.get(i);
+                if (replicated(waiter.position)) {
+                    ready.add(waiter);
+                    waiters.set(i, waiters.get(waiters.size() - 1));
+                    waiters.remove(waiters.size() - 1);
+                } else {
+                    i++;
+                }
+            }
+        }
+        for (Waiter waiter : ready) {
+            try {
+                waiter.action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Record how long the batches a backup has now made durable took to get there after they were on the local disk
+     *
+     * @param backup the backup
+     * @param position the position the backup acknowledged as durable
+     */
+    private void recordLag(Backup backup, long position) {
+        long now = System.nanoTime();
+        synchronized (backup) {
+            while (!backup.unacknowledged.isEmpty() && backup.unacknowledged.peek().end <= position) {
+                long lag = now - backup.unacknowledged.poll().durableNanos;
+                synchronized (this) {
+                    lagSamples[lagCount++ & (LAG_SAMPLES - 1)] = lag;
+                }
+            }
+        }
+    }
+
+    /**
+     * The replication lag is the time from a batch being on the local disk to it being on the disk of a backup,
+     * kept for the most recent batches
+     *
+     * @param percentile the percentile, e.g. 99
+     * @return the replication lag at the percentile in nanoseconds, or 0 if no batch has been replicated yet
+     */
+    public synchronized long lagNanos(double percentile) {
+        int count = Math.min(lagCount, LAG_SAMPLES);
+        if (count == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(lagSamples, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1)];
+    }
+
+    /**
+     * Forget the replication lag recorded so far
+     */
+    public synchronized void resetLag() {
+        lagCount = 0;
+    }
+
+    /**
+     * @return the number of backups connected
+     */
+    public int backups() {
+        return backups.size();
+    }
+
+    /**
+     * @return the number of backups that have caught up with the snapshot they were sent
+     */
+    public int syncedBackups() {
+        int synced = 0;
+        for (Backup backup : backups) {
+            if (backup.synced)
+                synced++;
+        }
+        return synced;
+    }
+
+    @Override
+    public void logOpen(Account account) {
+        log.logOpen(account);
+    }
+
+    @Override
+    public void logBalance(Account account) {
+        log.logBalance(account);
+    }
+
+    @Override
+    public void logTransfer(Account from, Account to) {
+        log.logTransfer(from, to);
+    }
+
+    @Override
+    public void logClose(int accNumber) {
+        log.logClose(accNumber);
+    }
+
+    @Override
+    public long appendedPosition() {
+        return log.appendedPosition();
+    }
+
+    @Override
+    public boolean isDurable(long position) {
+        return log.isDurable(position) && (ackLevel == REPLICATION_ACK_NONE || replicated(position));
+    }
+
+    @Override
+    public void whenDurable(long position, Runnable action) {
+        if (ackLevel == REPLICATION_ACK_NONE) {
+            log.whenDurable(position, action);
+            return;
+        }
+        log.whenDurable(position, () -> {
+            synchronized (this) {
+                if (!replicated(position)) {
+                    waiters.add(new Waiter(position, action));
+                    return;
+                }
+            }
+            action.run();
+        });
+    }
+
+    /**
+     * Stop replicating and disconnect the backups
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        log.setBatchListener(null);
+        serverSocket.close();
+        for (Backup backup : backups)
+            close(backup);
+    }
+}
@@ -0,0 +1,219 @@
+package persistence;
+
+import objects.Account;
+import objects.AccountStore;
+import objects.Currency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A compact binary copy of every account, together with the position in the write-ahead log it was taken at
+ * Recovering loads the snapshot and only replays the log from that position, and the log before it can be deleted
+ *
+ * A snapshot is taken while requests keep changing the accounts, so an account may be saved in a state newer than the
+ * position. Log records hold absolute state, so replaying them from the position still ends in the right state.
+ *
+ * File: a 32 byte header (magic number, version, log position, number of accounts) followed by one record per account,
+ * then the CRC32 of the records:
+ *
+ *   int   account number
+ *   byte  currency ordinal
+ *   long  balance in minor units
+ *   long  credential hash
+ *   short name length, followed by the name (UTF-8)
+ *
+ * The credential hashes let the passwords be recovered offline (see UtilityFunctions.credentialHash), so a snapshot is
+ * as sensitive as the passwords themselves, as are the copies sent to backups.
+ *
+ * A snapshot is written to a temporary file which replaces the previous snapshot once it is on disk, so a crash while
+ * writing leaves the previous one in place.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x534E4150;       // "SNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAX_RECORD_SIZE = 4 + 1 + 8 + 8 + 2 + 0xFFFF;
+    private static final int BUFFER_SIZE = 1 << 22;
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    private Snapshot() {
+    }
+
+    /**
+     * Write a snapshot of the accounts, replacing the previous snapshot
+     *
+     * @param path path of the snapshot file
+     * @param accounts the accounts
+     * @param logPosition the log position the snapshot is taken at, every change before it must already be applied to
+     *                    the accounts
+     * @return the number of accounts written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static long write(Path path, AccountStore accounts, long logPosition) throws IOException {
+        Path temporary = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+            long[] count = new long[1];
+            channel.position(HEADER_SIZE);
+
+            try {
+                accounts.forEach(account -> {
+                    byte[] name = account.getName().getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < MAX_RECORD_SIZE)
+                        drain(channel, buffer, checksum);
+                    buffer.putInt(account.getAccNumberValue())
+                            .put((byte) account.getCurrency().ordinal())
+                            .putLong(account.getAccBalance())
+                            .putLong(account.getCredentialHash())
+                            .putShort((short) name.length)
+                            .put(name);
+                    count[0]++;
+                });
+            } catch (IllegalStateException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw e;
+            }
+            drain(channel, buffer, checksum);
+
+            buffer.putInt((int) checksum.getValue()).flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(logPosition).putLong(count[0]).putLong(0).flip();
+            channel.write(buffer, 0);
+            channel.force(true);
+
+            Files.move(temporary, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            return count[0];
+        }
+    }
+
+    /**
+     * Write out the records in the buffer and add them to the checksum
+     *
+     * @param channel the snapshot file
+     * @param buffer the buffer
+     * @param checksum the checksum of the records
+     * @throws IllegalStateException wrapping the IOException if the records cannot be written, as it is called from
+     *                               within AccountStore.forEach
+     */
+    private static void drain(FileChannel channel, ByteBuffer buffer, CRC32 checksum) {
+        buffer.flip();
+        checksum.update(buffer.duplicate());
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Read the number of accounts in a snapshot, so the account store can be sized for them before they are loaded
+     *
+     * @param path path of the snapshot file
+     * @return the number of accounts, or 0 if there is no snapshot
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static long accounts(Path path) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            fill(channel, header);
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a snapshot: " + path);
+            return header.getLong(16);
+        }
+    }
+
+    /**
+     * Load the accounts of a snapshot, replacing any account already held under the same number
+     *
+     * @param path path of the snapshot file
+     * @param accounts the accounts to load the snapshot into
+     * @return the log position the snapshot was taken at, or 0 if there is no snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public static long load(Path path, AccountStore accounts) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+            boolean endOfFile = fill(channel, buffer);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException("Not a snapshot: " + path);
+            long logPosition = buffer.getLong();
+            long count = buffer.getLong();
+            buffer.position(HEADER_SIZE);
+            int unchecked = HEADER_SIZE;        // start of the records in the buffer not yet added to the checksum
+
+            for (long i = 0; i < count; i++) {
+                if (!endOfFile && buffer.remaining() < MAX_RECORD_SIZE) {
+                    checksum.update(buffer.array(), unchecked, buffer.position() - unchecked);
+                    unchecked = 0;
+                    buffer.compact();
+                    endOfFile = fill(channel, buffer);
+                }
+                if (buffer.remaining() < 4 + 1 + 8 + 8 + 2)
+                    throw new IOException("Snapshot " + path + " is cut short");
+
+                int accNumber = buffer.getInt();
+                Currency currency = CURRENCIES[buffer.get()];
+                long balance = buffer.getLong();
+                long credentialHash = buffer.getLong();
+                int nameLength = buffer.getShort() & 0xFFFF;
+                String name = new String(buffer.array(), buffer.position(), nameLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + nameLength);
+
+                Account account = new Account(name, currency, credentialHash, balance, accNumber);
+                if (accounts.putIfAbsent(accNumber, account) != null) {
+                    accounts.remove(accNumber);
+                    accounts.putIfAbsent(accNumber, account);
+                }
+            }
+
+            checksum.update(buffer.array(), unchecked, buffer.position() - unchecked);
+            if (buffer.remaining() < 4 || buffer.getInt() != (int) checksum.getValue())
+                throw new IOException("Snapshot " + path + " is corrupt");
+            return logPosition;
+        }
+    }
+
+    /**
+     * Read from the file until the buffer is full or the file ends, then flip the buffer
+     *
+     * @param channel the file
+     * @param buffer the buffer, positioned where the data read should go
+     * @return true if the end of the file was reached
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        boolean endOfFile = false;
+        while (buffer.hasRemaining() && !endOfFile)
+            endOfFile = channel.read(buffer) < 0;
+        buffer.flip();
+        return endOfFile;
+    }
+}
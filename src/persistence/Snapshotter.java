@@ -0,0 +1,90 @@
+package persistence;
+
+import objects.AccountStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes snapshots of the accounts in the background whenever the write-ahead log has grown by a given number of bytes
+ * since the last one, then deletes the log segments the snapshot makes unnecessary
+ * Requests carry on while a snapshot is written, see Snapshot, so recovery time stays bounded by the size of the
+ * snapshot plus at most that many bytes of log
+ */
+public class Snapshotter implements Closeable {
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final Path path;
+    private final AccountStore accounts;
+    private final WriteAheadLog log;
+    private final long logBytes;
+    private final Thread thread;
+    private long lastPosition;
+    private volatile boolean closed;
+
+    /**
+     * Constructor to start taking snapshots
+     *
+     * @param path path of the snapshot file
+     * @param accounts the accounts
+     * @param log the write-ahead log the accounts are recovered from
+     * @param lastPosition the log position of the snapshot the accounts were loaded from
+     * @param logBytes how many bytes the log grows by before the next snapshot is taken
+     */
+    public Snapshotter(Path path, AccountStore accounts, WriteAheadLog log, long lastPosition, long logBytes) {
+        this.path = path;
+        this.accounts = accounts;
+        this.log = log;
+        this.lastPosition = lastPosition;
+        this.logBytes = logBytes;
+        thread = new Thread(this::run, "snapshotter");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL_MILLIS);
+                if (log.appendedPosition() - lastPosition >= logBytes)
+                    snapshot();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();        // the previous snapshot and the log are still complete, try again later
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot now and delete the log before it
+     *
+     * @return the log position of the snapshot
+     * @throws IOException if the snapshot cannot be written
+     * @throws InterruptedException if interrupted while waiting for the log
+     */
+    public synchronized long snapshot() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long position = log.rollOver();
+        long count = Snapshot.write(path, accounts, position);
+        log.deleteSegmentsBefore(position);
+        lastPosition = position;
+        System.out.println("Snapshot of " + count + " accounts taken at log position " + position + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,653 @@
+package persistence;
+
+import objects.Account;
+import objects.AccountStore;
+import objects.Currency;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only log of every change made to the accounts, made durable in batches (group commit)
+ * Changes are appended to a buffer in memory; a single flusher thread writes the buffer to the file and forces it to
+ * disk, then runs the actions waiting on the batch, e.g. sending the replies. While one batch is being forced the next
+ * one fills up, so one fsync covers every change that arrived in the meantime.
+ * The flusher waits for a configurable window after the first change of a batch to let more changes join it, trading
+ * latency for fewer fsyncs.
+ *
+ * Every record holds the state a change left the accounts in rather than the operation, so records can be applied
+ * again on top of a state that already includes them:
+ *
+ *   int   length of the type and data
+ *   byte  type
+ *   ...   data
+ *   int   CRC32 of the type and data
+ *
+ *   OPEN     int account number, byte currency ordinal, long balance, long credential hash, short name length, name (UTF-8)
+ *   BALANCE  byte number of accounts, then for each: int account number, long balance
+ *   CLOSE    int account number
+ *
+ * A transfer is a single BALANCE record for both accounts, so it is either recovered whole or not at all.
+ * OPEN records carry the credential hash of the account, which can be brute-forced offline, see
+ * UtilityFunctions.credentialHash; the segments are to be protected like a password file.
+ * Replaying stops at the first record that is cut short or fails its checksum, i.e. the batch being written when the
+ * server stopped, and the log is truncated there.
+ *
+ * The log is a directory of segment files, each named after the log position of its first record in hexadecimal.
+ * A new segment is started when a snapshot is taken (rollOver), so the segments before the snapshot can be deleted
+ * once it is on disk and recovery only replays the segments after it.
+ */
+public class WriteAheadLog implements MutationLog, Closeable {
+    static final byte OPEN = 1;
+    static final byte BALANCE = 2;
+    static final byte CLOSE = 3;
+
+    private static final int HEADER_SIZE = 5;          // length and type
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int MAX_RECORD_SIZE = 1 << 17;
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long windowNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition rolled = lock.newCondition();
+    private final CRC32 checksum = new CRC32();         // only used while holding the lock
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final Thread flusher;
+
+    private ByteBuffer active = ByteBuffer.allocate(1 << 16);       // changes appended since the last batch
+    private ByteBuffer flushing = ByteBuffer.allocate(1 << 16);     // the batch being written
+    private volatile long appendedPosition;         // only written while holding the lock
+    private volatile long durablePosition;
+    private volatile long batches;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private FileChannel channel;                    // the segment being written, only used by the flusher
+    private boolean rollRequested;
+    private volatile BatchListener batchListener;
+    private long segmentStart;
+
+    /**
+     * Told about every batch once it is on disk, e.g. to send it on to the backups
+     */
+    public interface BatchListener {
+        /**
+         * Called on the flusher thread, the batch must be copied if it is kept
+         *
+         * @param records the records of the batch, from its position up to its limit
+         * @param start log position of the first record of the batch
+         */
+        void batchDurable(ByteBuffer records, long start);
+    }
+
+    private static final class Waiter {
+        final long position;
+        final Runnable action;
+
+        Waiter(long position, Runnable action) {
+            this.position = position;
+            this.action = action;
+        }
+    }
+
+    private WriteAheadLog(Path directory, FileChannel channel, long segmentStart, long position, long windowMicros) {
+        this.directory = directory;
+        this.channel = channel;
+        this.segmentStart = segmentStart;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.appendedPosition = position;
+        this.durablePosition = position;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Open a log, creating it if needed, and apply the changes in it from a position onwards to the accounts
+     *
+     * @param directory the directory holding the segments of the log
+     * @param from the position to replay the log from, e.g. the position of the snapshot the accounts were loaded from
+     * @param windowMicros how long to wait for more changes to join a batch before forcing it to disk, in microseconds
+     * @param accounts the accounts to recover the changes into
+     * @return the log, ready for new changes to be appended
+     * @throws IOException if the log cannot be read or written, or records after the position are missing
+     */
+    public static WriteAheadLog open(Path directory, long from, long windowMicros, AccountStore accounts) throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> segments = segments(directory);
+        Long first = segments.floorKey(from);
+        if (first == null) {
+            if (!segments.isEmpty())
+                throw new IOException("Log " + directory + " has no records from position " + from);
+            first = from;
+        }
+
+        long position = first;
+        FileChannel channel = null;
+        try {
+            for (Long start : segments.tailMap(first).keySet()) {
+                if (start != position)
+                    throw new IOException("Log " + directory + " is missing records from position " + position);
+                if (channel != null)
+                    channel.close();
+                channel = FileChannel.open(segments.get(start), READ, WRITE);
+                long end = replay(channel, Math.max(from - start, 0), accounts);
+                if (end < channel.size() && segments.higherKey(start) != null)
+                    throw new IOException("Log segment " + segments.get(start) + " is corrupt at offset " + end);
+                position = start + end;
+            }
+
+            long segmentStart = channel == null ? position : segments.floorKey(position);
+            if (channel == null)
+                channel = FileChannel.open(segmentPath(directory, position), CREATE, READ, WRITE);
+            channel.truncate(position - segmentStart);          // drop a batch that was only partly written
+            channel.position(position - segmentStart);
+            return new WriteAheadLog(directory, channel, segmentStart, position, windowMicros);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null)
+                channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param directory the directory holding the segments of a log
+     * @return the segment files by the log position of their first record
+     * @throws IOException if the directory cannot be read
+     */
+    private static TreeMap<Long, Path> segments(Path directory) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseUnsignedLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16), file);
+                } catch (NumberFormatException ignored) {
+                    // not a segment
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static Path segmentPath(Path directory, long start) {
+        return directory.resolve(String.format("%016x", start) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Apply the records of a log to the accounts, from a position up to the first incomplete or corrupt record
+     *
+     * @param channel the log file
+     * @param from position of the first record to apply
+     * @param accounts the accounts to apply the records to
+     * @return the position after the last record applied
+     * @throws IOException if the log cannot be read
+     */
+    static long replay(FileChannel channel, long from, AccountStore accounts) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        CRC32 crc = new CRC32();
+        long end = from;            // end of the last record applied
+        boolean endOfFile = false;
+        channel.position(from);
+        buffer.flip();
+
+        while (true) {
+            if (!endOfFile && buffer.remaining() < 4 + MAX_RECORD_SIZE + CHECKSUM_SIZE) {
+                buffer.compact();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        endOfFile = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+            }
+
+            int start = buffer.position();
+            if (buffer.remaining() < HEADER_SIZE)
+                return end;
+            int length = buffer.getInt(start);
+            if (length <= 0 || length > MAX_RECORD_SIZE || buffer.remaining() < 4 + length + CHECKSUM_SIZE)
+                return end;
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(start + 4).limit(start + 4 + length);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(start + 4 + length))
+                return end;
+
+            buffer.position(start + 4);
+            apply(buffer, accounts);
+            buffer.position(start + 4 + length + CHECKSUM_SIZE);
+            end += 4 + length + CHECKSUM_SIZE;
+        }
+    }
+
+    /**
+     * Apply one record to the accounts
+     *
+     * @param record ByteBuffer positioned at the type of the record
+     * @param accounts the accounts
+     */
+    private static void apply(ByteBuffer record, AccountStore accounts) {
+        byte type = record.get();
+        switch (type) {
+            case OPEN: {
+                int accNumber = record.getInt();
+                Currency currency = CURRENCIES[record.get()];
+                long balance = record.getLong();
+                long credentialHash = record.getLong();
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                accounts.remove(accNumber);         // the record holds the whole account, replace whatever is there
+                accounts.putIfAbsent(accNumber, new Account(new String(name, StandardCharsets.UTF_8), currency, credentialHash, balance, accNumber));
+                break;
+            }
+            case BALANCE: {
+                int count = record.get();
+                for (int i = 0; i < count; i++) {
+                    int accNumber = record.getInt();
+                    long balance = record.getLong();
+                    Account account = accounts.get(accNumber);
+                    if (account != null) {
+                        account.setAccBalance(balance);
+                        accounts.update(account);
+                    }
+                }
+                break;
+            }
+            case CLOSE:
+                accounts.remove(record.getInt());
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+    }
+
+    /**
+     * Apply a batch of records received from the primary to the accounts
+     *
+     * @param records the records, from the position up to the limit of the buffer
+     * @param accounts the accounts
+     */
+    public static void applyRecords(ByteBuffer records, AccountStore accounts) {
+        while (records.hasRemaining()) {
+            int start = records.position();
+            int length = records.getInt();
+            apply(records, accounts);
+            records.position(start + 4 + length + CHECKSUM_SIZE);
+        }
+    }
+
+    /**
+     * Delete every segment of a log, e.g. before a backup starts over from the snapshot of its primary
+     *
+     * @param directory the directory holding the segments of the log
+     * @throws IOException if a segment cannot be deleted
+     */
+    public static void discard(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            for (Path segment : segments(directory).values())
+                Files.delete(segment);
+        }
+    }
+
+    @Override
+    public void logOpen(Account account) {
+        byte[] name = account.getName().getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            int start = begin(OPEN, 4 + 1 + 8 + 8 + 2 + name.length);
+            active.putInt(account.getAccNumberValue())
+                    .put((byte) account.getCurrency().ordinal())
+                    .putLong(account.getAccBalance())
+                    .putLong(account.getCredentialHash())
+                    .putShort((short) name.length)
+                    .put(name);
+            end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void logBalance(Account account) {
+        lock.lock();
+        try {
+            int start = begin(BALANCE, 1 + 12);
+            active.put((byte) 1)
+                    .putInt(account.getAccNumberValue())
+                    .putLong(account.getAccBalance());
+            end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void logTransfer(Account from, Account to) {
+        lock.lock();
+        try {
+            int start = begin(BALANCE, 1 + 12 + 12);
+            active.put((byte) 2)
+                    .putInt(from.getAccNumberValue())
+                    .putLong(from.getAccBalance())
+                    .putInt(to.getAccNumberValue())
+                    .putLong(to.getAccBalance());
+            end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void logClose(int accNumber) {
+        lock.lock();
+        try {
+            int start = begin(CLOSE, 4);
+            active.putInt(accNumber);
+            end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a record in the active buffer, growing the buffer if needed
+     *
+     * @param type type of the record
+     * @param dataLength length of the data following the type
+     * @return position of the record in the active buffer
+     */
+    private int begin(byte type, int dataLength) {
+        if (closed)
+            throw new IllegalStateException("Write-ahead log is closed");
+        int recordLength = HEADER_SIZE + dataLength + CHECKSUM_SIZE;
+        if (active.remaining() < recordLength) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + recordLength));
+            active.flip();
+            larger.put(active);
+            active = larger;
+        }
+        int start = active.position();
+        active.putInt(1 + dataLength).put(type);
+        return start;
+    }
+
+    /**
+     * Finish a record started by begin with its checksum and wake up the flusher
+     *
+     * @param start position of the record in the active buffer
+     */
+    private void end(int start) {
+        int length = active.position() - start - 4;
+        checksum.reset();
+        checksum.update(active.array(), active.arrayOffset() + start + 4, length);
+        active.putInt((int) checksum.getValue());
+        appendedPosition += active.position() - start;
+        appended.signal();
+    }
+
+    /**
+     * Append records as they were logged by the primary, so the log of a backup holds them at the same positions
+     *
+     * @param start log position of the first record on the primary
+     * @param records the records, from the position up to the limit of the buffer
+     * @return the position after the records
+     * @throws IllegalStateException if the records do not follow on from the end of this log
+     */
+    public long appendReplicated(long start, ByteBuffer records) {
+        lock.lock();
+        try {
+            if (start != appendedPosition)
+                throw new IllegalStateException("Replicated records start at " + start + ", the log ends at " + appendedPosition);
+            if (active.remaining() < records.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + records.remaining()));
+                active.flip();
+                larger.put(active);
+                active = larger;
+            }
+            appendedPosition += records.remaining();
+            active.put(records);
+            appended.signal();
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long appendedPosition() {
+        return appendedPosition;
+    }
+
+    @Override
+    public boolean isDurable(long position) {
+        return durablePosition >= position;
+    }
+
+    @Override
+    public void whenDurable(long position, Runnable action) {
+        if (durablePosition < position) {
+            lock.lock();
+            try {
+                if (durablePosition < position) {       // checked again, the batch may have been forced in the meantime
+                    waiters.add(new Waiter(position, action));
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Start a new segment after the changes appended so far, e.g. when a snapshot is taken
+     * Every change before the returned position is on disk and was applied to the accounts before it was logged, so a
+     * snapshot of the accounts taken from now on only needs the log from this position
+     *
+     * @return the log position the new segment starts at
+     * @throws IOException if the new segment cannot be created
+     * @throws InterruptedException if interrupted while waiting for the flusher
+     */
+    public long rollOver() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            rollRequested = true;
+            appended.signal();
+            while (rollRequested && failure == null && flusher.isAlive())
+                rolled.await(100, TimeUnit.MILLISECONDS);
+            if (failure != null)
+                throw failure;
+            if (rollRequested)
+                throw new IllegalStateException("Write-ahead log is closed");
+            return segmentStart;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the segments holding only changes before a position, once a snapshot taken at that position is on disk
+     *
+     * @param position a position returned by rollOver
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void deleteSegmentsBefore(long position) throws IOException {
+        for (Path segment : segments(directory).headMap(position).values())
+            Files.deleteIfExists(segment);
+    }
+
+    /**
+     * @param listener told about every batch once it is on disk, or null
+     */
+    public void setBatchListener(BatchListener listener) {
+        batchListener = listener;
+    }
+
+    /**
+     * @return the number of batches forced to disk so far
+     */
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * Write batches to the file and force them to disk until the log is closed
+     */
+    private void flushLoop() {
+        List<Waiter> ready = new ArrayList<>();
+        try {
+            while (true) {
+                boolean flush, roll;
+                lock.lock();
+                try {
+                    while (active.position() == 0 && !rollRequested && !closed)
+                        appended.await();
+                    flush = active.position() > 0;
+                    roll = rollRequested;
+                    if (!flush && !roll)
+                        return;         // closed and nothing left to write
+                } finally {
+                    lock.unlock();
+                }
+
+                if (flush) {
+                    if (windowNanos > 0 && !roll && !closed)
+                        LockSupport.parkNanos(windowNanos);     // let more changes join the batch
+                    flushBatch(ready);
+                }
+                if (roll)
+                    startSegment();
+            }
+        } catch (IOException e) {
+            // nothing more can be made durable, so nothing waiting on the log is released
+            failure = e;
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the changes appended so far to the current segment, force them to disk and run the actions waiting on them
+     *
+     * @param ready list to collect the actions to run in, empty
+     * @throws IOException if the batch cannot be written
+     */
+    private void flushBatch(List<Waiter> ready) throws IOException {
+        long end;
+        lock.lock();
+        try {
+            ByteBuffer batch = active;
+            active = flushing;
+            flushing = batch;
+            end = appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+
+        flushing.flip();
+        while (flushing.hasRemaining())
+            channel.write(flushing);
+        channel.force(false);
+        BatchListener listener = batchListener;
+        if (listener != null)
+            listener.batchDurable(flushing.flip(), end - flushing.limit());
+        flushing.clear();
+
+        lock.lock();
+        try {
+            durablePosition = end;
+            batches++;
+            for (int i = 0; i < waiters.size(); ) {
+                Waiter waiter = waiters.get(i);
+                if (waiter.position <= end) {
+                    ready.add(waiter);
+                    waiters.set(i, waiters.get(waiters.size() - 1));
+                    waiters.remove(waiters.size() - 1);
+                } else {
+                    i++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Waiter waiter : ready) {
+            try {
+                waiter.action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        ready.clear();
+    }
+
+    /**
+     * Continue the log in a new segment starting after the last batch written
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    private void startSegment() throws IOException {
+        long start = durablePosition;
+        FileChannel next = FileChannel.open(segmentPath(directory, start), CREATE, READ, WRITE);
+        channel.close();
+        channel = next;
+
+        lock.lock();
+        try {
+            segmentStart = start;
+            rollRequested = false;
+            rolled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force the changes appended so far to disk and close the log
+     *
+     * @throws IOException if the last batch could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,368 @@
+package utils;
+
+import objects.Account;
+import objects.BatchResult;
+import objects.Currency;
+import objects.Pointer;
+import objects.ShardMap;
+import objects.StringView;
+import objects.Subscription;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static utils.Constants.*;
+import static utils.UtilityFunctions.*;
+
+/**
+ * Marshalling for the binary wire format (version 2)
+ * Account numbers are sent as 4 byte ints, amounts as 8 byte longs in cents, and the action code, currency, status
+ * code and account action as single bytes. Only names and passwords are sent as strings, each as a 2 byte length
+ * followed by its UTF-8 bytes without padding.
+ *
+ * For e.g. a deposit of 10.50 NZD into account 1234567890 by "John Smith" with password "P@ssword" is sent as:
+ *
+ * [8 byte client id] [8 byte sequence number] 02 02 [8 byte sequence number acknowledged] 00 0A 4A 6F 68 6E 20 53 6D 69 74 68 49 96 02 D2 00 08 50 40 73 73 77 6F 72 64 00 00 00 00 00 00 00 00 04 1A
+ *
+ * 02 = binary wire format, 02 = deposit, 00 0A + "John Smith", 49 96 02 D2 = 1234567890, 00 08 + "P@ssword",
+ * 00 = NZD, 00 00 00 00 00 00 04 1A = 1050 cents
+ */
+public class BinaryMarshallFunctions {
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    /**
+     * Check whether a request from a client uses the binary wire format
+     *
+     * @param request the request from the client, starting with its message id
+     * @return true for a binary request, false for a v1 request
+     */
+    public static boolean isBinaryRequest(ByteBuffer request) {
+        return request.limit() > PROTOCOL_VERSION_INDEX && request.get(PROTOCOL_VERSION_INDEX) == PROTOCOL_V2;
+    }
+
+    /**
+     * Check whether a reply from the server uses the binary wire format
+     *
+     * @param reply the reply from the server
+     * @return true for a binary reply, false for a v1 reply
+     */
+    public static boolean isBinaryReply(byte[] reply) {
+        return reply.length > 0 && reply[0] == PROTOCOL_V2;
+    }
+
+    /**
+     * Function to start a binary request on the client side
+     *
+     * @param ids the generator of the message ids of the client, which gives the request the next one along with the
+     *            sequence number up to which the client is done with its requests
+     * @param code the code of the action to be taken by the server
+     * @return a ByteBuffer holding the header of the request, ready for the fields to be added
+     */
+    public static ByteBuffer newBinaryRequest(MessageIDGenerator ids, int code) {
+        ByteBuffer request = ByteBuffer.allocate(BUFFER_SIZE);
+        ids.putNext(request);
+        request.put(PROTOCOL_V2);
+        request.put((byte) code);
+        request.putLong(ids.acknowledged());
+        return request;
+    }
+
+    /**
+     * Function to get the bytes written into a ByteBuffer so far
+     *
+     * @param buffer the ByteBuffer
+     * @return a byte array holding the bytes from the start of the buffer to its position
+     */
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Function to marshall a String as its length followed by its UTF-8 bytes
+     *
+     * @param buffer the ByteBuffer to write into
+     * @param val the string to be marshalled
+     */
+    public static void putString(ByteBuffer buffer, String val) {
+        if (isAscii(val)) {
+            buffer.putShort((short) val.length());
+            putAscii(buffer, val);
+        } else {
+            byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Function to unmarshall a String written by putString
+     *
+     * @param buffer the ByteBuffer, positioned at the length of the string
+     * @return the unmarshalled string
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        String val = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return val;
+    }
+
+    public static void putCurrency(ByteBuffer buffer, Currency currency) {
+        buffer.put((byte) currency.ordinal());
+    }
+
+    public static Currency getCurrency(ByteBuffer buffer) {
+        return CURRENCIES[buffer.get()];
+    }
+
+    /*
+        Functions reading the fields of a binary request in place on the server side
+        The Pointer holds the index of the next field in the ByteBuffer the request was received into
+     */
+
+    public static int getInt(Pointer point, ByteBuffer request) {
+        int val = request.getInt(point.val);
+        point.val += Integer.BYTES;
+        return val;
+    }
+
+    public static long getLong(Pointer point, ByteBuffer request) {
+        long val = request.getLong(point.val);
+        point.val += Long.BYTES;
+        return val;
+    }
+
+    public static Currency getCurrency(Pointer point, ByteBuffer request) {
+        return CURRENCIES[request.get(point.val++)];
+    }
+
+    /**
+     * Function to read a String field in place, without copying it out of the request
+     *
+     * @param point Pointer to the length of the string in the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return a view of the field in the request
+     */
+    public static StringView getStringView(Pointer point, ByteBuffer request) {
+        int length = Short.toUnsignedInt(request.getShort(point.val));
+        int start = point.val + Short.BYTES;
+        checkField(request, start, length);
+        point.val = start + length;
+        return new StringView(request.array(), request.arrayOffset() + start, length);
+    }
+
+    /**
+     * Function to read a String field from the request
+     *
+     * @param point Pointer to the length of the string in the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return the unmarshalled string
+     */
+    public static String getString(Pointer point, ByteBuffer request) {
+        int length = Short.toUnsignedInt(request.getShort(point.val));
+        int start = point.val + Short.BYTES;
+        checkField(request, start, length);
+        point.val = start + length;
+        return new String(request.array(), request.arrayOffset() + start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Function to marshall a status code into a binary reply
+     *
+     * @param statusCode one of the status codes in STATUS_CODES
+     * @return the binary reply holding only the status code
+     */
+    public static byte[] marshallStatusBinary(String statusCode) {
+        return new byte[]{PROTOCOL_V2, indexOf(STATUS_CODES, statusCode)};
+    }
+
+    /**
+     * Function to unmarshall the status code at the start of a binary reply
+     *
+     * @param reply the ByteBuffer wrapping the reply, positioned at its start
+     * @return the status code
+     */
+    public static String unmarshallStatusBinary(ByteBuffer reply) {
+        reply.get();        // version
+        return STATUS_CODES[reply.get()];
+    }
+
+    /**
+     * Function to marshall account details into a binary reply on the server side
+     * The reply is written straight into the reply buffer, one field after the other
+     *
+     * @param account the Account object containing the account details
+     * @param reply the ByteBuffer the OK status code followed by the account details is written into
+     */
+    public static void marshallAccountBinary(Account account, ByteBuffer reply) {
+        reply.put(PROTOCOL_V2);
+        reply.put(indexOf(STATUS_CODES, OK));
+        reply.putInt(account.getAccNumberValue());
+        putString(reply, account.getName());
+        putCurrency(reply, account.getCurrency());
+        reply.putLong(account.getAccBalance());
+        reply.put(indexOf(ACTIONS, account.getAction()));
+    }
+
+    /**
+     * Find the index sent in place of a status code or an account action
+     *
+     * @param values STATUS_CODES or ACTIONS
+     * @param value the status code or account action
+     * @return its index in values
+     */
+    private static byte indexOf(String[] values, String value) {
+        for (byte i = 0; i < values.length; i++) {
+            if (values[i].equals(value))
+                return i;
+        }
+        throw new IllegalArgumentException(value);
+    }
+
+    /**
+     * Function to unmarshall account details from a binary reply on the client side
+     *
+     * @param reply the ByteBuffer wrapping the reply, positioned after the status code
+     * @return Account object containing details from the server
+     */
+    public static Account unmarshallAccountBinary(ByteBuffer reply) {
+        int accNumber = reply.getInt();
+        String name = getString(reply);
+        Currency currency = getCurrency(reply);
+        long accBalance = reply.getLong();
+        String accAction = ACTIONS[reply.get()];
+        return new Account(name, currency, accBalance, accNumber, accAction);
+    }
+
+    /**
+     * Function to marshall account details into a binary reply of their own, as sent to the monitoring clients
+     *
+     * @param account the Account object containing the account details
+     * @return the reply
+     */
+    public static byte[] marshallAccountUpdateBinary(Account account) {
+        ByteBuffer update = ByteBuffer.allocate(BUFFER_SIZE);
+        marshallAccountBinary(account, update);
+        return toByteArray(update);
+    }
+
+    /**
+     * Function to marshall the result of an operation in a batch that succeeded on the server side
+     * The OK status code is followed by the account number, currency and balance of the account, the name and action of
+     * the account are left out so every result of a batch fits in one reply
+     *
+     * @param account the Account object containing the account details
+     * @param reply the ByteBuffer the result is written into, after the results of the operations before
+     */
+    public static void marshallResultBinary(Account account, ByteBuffer reply) {
+        reply.put(indexOf(STATUS_CODES, OK));
+        reply.putInt(account.getAccNumberValue());
+        putCurrency(reply, account.getCurrency());
+        reply.putLong(account.getAccBalance());
+    }
+
+    /**
+     * Function to marshall the result of an operation in a batch that failed on the server side, only its status code
+     *
+     * @param statusCode one of the status codes in STATUS_CODES
+     * @param reply the ByteBuffer the result is written into, after the results of the operations before
+     */
+    public static void marshallResultBinary(String statusCode, ByteBuffer reply) {
+        reply.put(indexOf(STATUS_CODES, statusCode));
+    }
+
+    /**
+     * Function to unmarshall the result of an operation in a batch on the client side
+     *
+     * @param reply the ByteBuffer wrapping the reply, positioned at the result
+     * @return the result
+     */
+    public static BatchResult unmarshallResultBinary(ByteBuffer reply) {
+        String statusCode = STATUS_CODES[reply.get()];
+        if (!statusCode.equals(OK))
+            return new BatchResult(statusCode);
+        int accNumber = reply.getInt();
+        Currency currency = getCurrency(reply);
+        return new BatchResult(accNumber, currency, reply.getLong());
+    }
+
+    /**
+     * Check whether the message of an exception is a status code, to be sent to the client
+     *
+     * @param value the message
+     * @return true if it is one of STATUS_CODES
+     */
+    public static boolean isStatusCode(String value) {
+        return Arrays.asList(STATUS_CODES).contains(value);
+    }
+
+    /**
+     * Function to marshall a shard map into a binary reply on the server side
+     * The OK status code is followed by the number of shards, then the first account number, host and port of each shard
+     *
+     * @param shardMap the shard map
+     * @param reply the ByteBuffer the reply is written into
+     */
+    public static void marshallShardMapBinary(ShardMap shardMap, ByteBuffer reply) {
+        reply.put(PROTOCOL_V2);
+        reply.put(indexOf(STATUS_CODES, OK));
+        reply.putShort((short) shardMap.shards());
+        for (int i = 0; i < shardMap.shards(); i++) {
+            reply.putInt(shardMap.first(i));
+            putString(reply, shardMap.address(i).getHostString());
+            reply.putShort((short) shardMap.address(i).getPort());
+        }
+    }
+
+    /**
+     * Function to unmarshall a shard map from a binary reply on the client side
+     *
+     * @param reply the ByteBuffer wrapping the reply, positioned after the status code
+     * @return the shard map
+     */
+    public static ShardMap unmarshallShardMapBinary(ByteBuffer reply) {
+        int shards = Short.toUnsignedInt(reply.getShort());
+        int[] firsts = new int[shards];
+        InetSocketAddress[] addresses = new InetSocketAddress[shards];
+        for (int i = 0; i < shards; i++) {
+            firsts[i] = reply.getInt();
+            String host = getString(reply);
+            addresses[i] = new InetSocketAddress(host, Short.toUnsignedInt(reply.getShort()));
+        }
+        return new ShardMap(firsts, addresses);
+    }
+
+    /**
+     * Function to marshall the subscription of a monitoring request on the client side
+     * The number of account numbers is followed by the account numbers, none for every account, then the actions as a
+     * bit mask, bit i for ACTIONS[i]
+     *
+     * @param request the ByteBuffer the subscription is written into, after the header of the request
+     * @param subscription the subscription
+     */
+    public static void putSubscription(ByteBuffer request, Subscription subscription) {
+        int[] accNumbers = subscription.accNumbers();
+        request.putShort((short) accNumbers.length);
+        for (int accNumber : accNumbers)
+            request.putInt(accNumber);
+        request.put((byte) subscription.actions());
+    }
+
+    /**
+     * Function to unmarshall the subscription of a monitoring request on the server side
+     * A request without a subscription, as sent before subscriptions were added, subscribes to every update
+     *
+     * @param request ByteBuffer holding the request as received, positioned after its header
+     * @return the subscription
+     */
+    public static Subscription getSubscription(ByteBuffer request) {
+        if (!request.hasRemaining())
+            return Subscription.ALL;
+        int[] accNumbers = new int[Short.toUnsignedInt(request.getShort())];
+        for (int i = 0; i < accNumbers.length; i++)
+            accNumbers[i] = request.getInt();
+        return new Subscription(accNumbers, Byte.toUnsignedInt(request.get()));
+    }
+}
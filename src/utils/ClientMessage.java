@@ -2,6 +2,8 @@ package utils;
 
 import objects.Currency;
 
+import static utils.UtilityFunctions.formatMinorUnits;
+
 public class ClientMessage {
     /**
      * A function to print to the console the account number, account holder, currency and account balance of an account
@@ -9,13 +11,13 @@ public class ClientMessage {
      * @param accNumber the account number
      * @param name the name of the account holder
      * @param currency the currency of the account
-     * @param balance the current balance in the account
+     * @param balance the current balance in the account, in cents
      */
-    public static void DisplayAccountDetails(String accNumber, String name, Currency currency, double balance) {
+    public static void DisplayAccountDetails(String accNumber, String name, Currency currency, long balance) {
         System.out.println("Account number: " + accNumber);
         System.out.println("Account holder: " + name);
         System.out.println("Currency: " + currency.toString());
-        System.out.printf("Account balance: $%.2f\n", balance);
+        System.out.println("Account balance: $" + formatMinorUnits(balance));
     }
 
     /**
@@ -26,21 +28,21 @@ public class ClientMessage {
      * @param accNumber the account number
      * @param name the name of the account holder
      * @param currency the currency of the account
-     * @param balance the current balance in the account
+     * @param balance the current balance in the account, in cents
      */
-    public static void DisplayAccountDetailsMonitoring(String accNumber, String name, Currency currency, double balance, String action) {
+    public static void DisplayAccountDetailsMonitoring(String accNumber, String name, Currency currency, long balance, String action) {
         System.out.println("Action taken: " + action);
         System.out.println("Account number: " + accNumber);
         System.out.println("Account holder: " + name);
         System.out.println("Currency: " + currency.toString());
-        System.out.printf("Account balance: $%.2f\n", balance);
+        System.out.println("Account balance: $" + formatMinorUnits(balance));
     }
 
     /**
      * A function to print to the screen the current account balance
-     * @param balance the current account balance
+     * @param balance the current account balance, in cents
      */
-    public static void DisplayBalance(double balance) {
-        System.out.printf("Account balance: $%.2f\n", balance);
+    public static void DisplayBalance(long balance) {
+        System.out.println("Account balance: $" + formatMinorUnits(balance));
     }
 }
@@ -0,0 +1,141 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static utils.Constants.BUFFER_SIZE;
+import static utils.Constants.REPLY_SEQUENCE_LENGTH;
+import static utils.Constants.SEQUENCE_INDEX;
+import static utils.Constants.TIMED_OUT;
+import static utils.UtilityFunctions.failMessage;
+
+/**
+ * The socket a client sends its requests and receives their replies through, bound once and kept for the life of the
+ * client rather than opened for every attempt
+ * The server sends the sequence number of the request after every reply. A reply is matched to the request by it, so
+ * a reply to an earlier attempt at the same request that arrives late is still accepted, and a reply left over from a
+ * request the client already has the reply of is dropped instead of being taken for the reply to the next one.
+ *
+ * A request is sent again each time its retransmission timeout passes, up to a number of attempts; the timeout is
+ * estimated from the round trip times of the earlier requests to the same server by a RetransmissionTimer.
+ */
+public class ClientTransport implements Closeable {
+    private final DatagramSocket socket;
+    private final byte[] buffer = new byte[BUFFER_SIZE];         // a buffer for receive, guarded by this
+    private final Map<InetSocketAddress, RetransmissionTimer> timers = new HashMap<>();      // by server, guarded by this
+    private long requests, retransmissions, givenUp;            // guarded by this
+    private RequestStats lastStats;                             // guarded by this
+
+    /**
+     * Constructor to bind the socket of the client to any free port
+     *
+     * @throws SocketException if the socket cannot be bound
+     */
+    public ClientTransport() throws SocketException {
+        this.socket = new DatagramSocket();
+    }
+
+    /**
+     * Sends a request until its reply arrives, waiting the retransmission timeout of the server after each attempt
+     * Only one request is outstanding at a time, callers on other threads wait their turn
+     *
+     * @param marshall the request, with its message id at the start
+     * @param server address of the server, e.g. that of the shard holding the account
+     * @param maxAttempts the most times the request is sent
+     * @return the reply without the sequence number after it
+     * @throws IllegalArgumentException with the TIMED_OUT status code if no attempt got a reply
+     */
+    public synchronized byte[] send(byte[] marshall, InetSocketAddress server, int maxAttempts) throws IllegalArgumentException {
+        RetransmissionTimer timer = timers.computeIfAbsent(server, s -> new RetransmissionTimer());
+        requests++;
+        long start = System.nanoTime();
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                retransmissions++;
+                System.out.println("Resending Message");
+            }
+            long sent = System.nanoTime();
+            byte[] reply = request(marshall, server, timer.timeout());
+            if (reply != null && !failMessage("client")) {
+                long replied = System.nanoTime();
+                if (attempt == 1)
+                    timer.sample(replied - sent);
+                lastStats = new RequestStats(attempt, replied - sent, replied - start, true);
+                return reply;
+            }
+            timer.timedOut();
+        }
+        givenUp++;
+        lastStats = new RequestStats(maxAttempts, 0, System.nanoTime() - start, false);
+        throw new IllegalArgumentException(TIMED_OUT);
+    }
+
+    /**
+     * Sends a request once and waits for its reply
+     *
+     * @param marshall the request, with its message id at the start
+     * @param server address of the server, e.g. that of the shard holding the account
+     * @param timeout time in milliseconds to wait for the reply
+     * @return the reply without the sequence number after it, or null if none arrived in time so the caller can send
+     *         the request again
+     */
+    private byte[] request(byte[] marshall, InetSocketAddress server, int timeout) {
+        long sequence = ByteBuffer.wrap(marshall).getLong(SEQUENCE_INDEX);
+        try {
+            socket.send(new DatagramPacket(marshall, marshall.length, server));
+
+            long deadline = System.currentTimeMillis() + timeout;
+            for (long remaining = timeout; remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                socket.setSoTimeout((int) remaining);
+                socket.receive(reply);
+
+                int length = reply.getLength() - REPLY_SEQUENCE_LENGTH;
+                if (length >= 0 && ByteBuffer.wrap(buffer).getLong(length) == sequence)
+                    return Arrays.copyOf(buffer, length);
+            }
+        } catch (SocketTimeoutException e) {
+            // so that the parent function can resend this request
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return how the last request fared, or null before the first request
+     */
+    public synchronized RequestStats lastStats() {
+        return lastStats;
+    }
+
+    /**
+     * @return the DatagramSocket the requests are sent through, which also receives the updates of a monitoring client
+     */
+    public DatagramSocket socket() {
+        return socket;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(String.format("client transport: %d requests, %d retransmissions, %d given up",
+                requests, retransmissions, givenUp));
+        timers.forEach((server, timer) -> builder.append(String.format(", %s srtt %.3f ms rttvar %.3f ms rto %d ms",
+                server, timer.srtt(), timer.rttvar(), timer.rto())));
+        return builder.toString();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -5,14 +5,62 @@ public class Constants {
     public static final String HOST_NAME = "localhost"; // IP address to be changed based on which PC is acting as the server
     public static final int SERVER_PORT_NUMBER = 6789;
     public static final int BUFFER_SIZE = 1000;
-    public static final int LRU_CACHE_SIZE = 10;
+    public static final long REPLY_CACHE_BYTES = 64L << 20;         // most memory taken by the replies kept for retransmitted requests
+    public static final long REPLY_CACHE_TTL_MILLIS = 60000;        // how long the replies of a client are kept after its last request, well past the time it keeps resending one
+    public static final int REPLY_CACHE_SEGMENTS = 64;              // number of independently locked parts of the reply cache
+    public static final int REPLY_WINDOW = 64;                      // most requests of a client the server keeps the replies of, a power of two
+    public static final boolean SERVER_LOGGING = true;          // print a line for every request handled, turn off when measuring throughput
+
+    /* Server modes, selected with the first argument given to the server */
+    public static final String SINGLE_THREADED_MODE = "single";     // receive and handle one request at a time
+    public static final String WORKER_POOL_MODE = "pool";           // one receiver thread hands requests to a pool of worker threads
+    public static final String VIRTUAL_THREAD_MODE = "virtual";     // one receiver thread starts a new virtual thread for every request
+    public static final String SHARDED_MODE = "sharded";            // several receive loops, each with its own socket bound to the server port
+    public static final String BACKUP_MODE = "backup";              // follow a primary server and take over from it when it is lost
+    public static final String ACCOUNT_SHARD_MODE = "shard";         // serve one range of account numbers, as set out in a shard map file
+    public static final String SERVER_MODE = SINGLE_THREADED_MODE;
+    public static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();     // default size of the worker pool
+    public static final int RECEIVE_LOOPS = Runtime.getRuntime().availableProcessors();      // default number of receive loops in sharded mode
+    public static final int ACCOUNT_LOCK_STRIPES = 256;             // number of locks guarding the accounts
+    public static final int BUFFER_POOL_SIZE = 256;                 // number of receive and reply buffers kept for reuse
+    public static final int OBSERVER_BACKLOG = 4096;                // most updates waiting to be handed to the monitoring clients, newer ones are dropped
+    public static final int OBSERVER_QUEUE_SIZE = 256;              // most updates waiting to be sent to one monitoring client, the oldest are dropped
+    public static final boolean MONITOR_MULTICAST = false;          // send every monitoring update once to a multicast group, which the clients join, instead of to each client
+    public static final String MONITOR_MULTICAST_GROUP = "239.255.42.99";   // in the administratively scoped range, kept within the site
+    public static final int MONITOR_MULTICAST_PORT = 6800;
+    public static final String MONITOR_MULTICAST_INTERFACE = null;  // name of the network interface the group is used on, null for the loopback interface; to be changed along with HOST_NAME
+    public static final int ACCOUNT_MAP_SEGMENTS = 64;              // number of independently locked parts of the account map
+    public static final int INITIAL_ACCOUNT_CAPACITY = 1 << 16;     // number of accounts the account map holds before it first grows
+    public static final boolean MAPPED_ACCOUNT_TABLE = false;       // keep the accounts off-heap in a memory-mapped file, kept across restarts
+    public static final String ACCOUNT_TABLE_PATH = "accounts.table";
+    public static final boolean WRITE_AHEAD_LOG = false;            // log every change to the accounts and only reply once it is on disk, needed for backups to follow this server
+    public static final String WRITE_AHEAD_LOG_PATH = "accounts.wal";     // directory holding the segments of the log
+    public static final long GROUP_COMMIT_WINDOW_MICROS = 200;      // how long a batch of logged changes waits for more changes before it is forced to disk
+    public static final String SNAPSHOT_PATH = "accounts.snapshot";
+    public static final long SNAPSHOT_LOG_BYTES = 64L << 20;         // how much the log grows before the next snapshot is taken in the background
+    public static final int REPLICATION_PORT = SERVER_PORT_NUMBER + 1;      // TCP port backups connect to, every server accepts backups on its own server port + 1
+    public static final int REPLICATION_ACK_NONE = 0;               // replies do not wait for the backups
+    public static final int REPLICATION_ACK_RECEIVED = 1;           // replies wait until every backup has received the change
+    public static final int REPLICATION_ACK_DURABLE = 2;            // replies wait until the change is on the disk of every backup
+    public static final int REPLICATION_ACK_LEVEL = REPLICATION_ACK_NONE;
+    public static final long REPLICATION_HEARTBEAT_MILLIS = 50;     // how often the primary sends a heartbeat to an idle backup
+    public static final long REPLICATION_TIMEOUT_MILLIS = 500;      // how long a backup goes without hearing from the primary before taking over
+    public static final int REPLICATION_QUEUE_BATCHES = 1 << 16;    // how many batches a backup may fall behind before the primary drops it
+    public static final int FIRST_ACCOUNT_NUMBER = 1000000000;      // account numbers are drawn from here up to Integer.MAX_VALUE
 
     public static final boolean AT_LEAST_ONCE = false; //if at least once is false, use at most once
-    public static final int atLeastOnceTimeout = 2000;
+    public static final int atLeastOnceTimeout = 2000;                  // timeout of the first request to a server, before its round trip time is measured
+    public static final int MIN_RTO = 20;                   // bounds of the retransmission timeout in milliseconds, estimated from the round trip times
+    public static final int MAX_RTO = 16000;
+    public static final double RTO_JITTER = 0.25;           // the most random time added to a timeout, as a fraction of it
+    public static final int MAX_ATTEMPTS = 8;               // the most times the client sends a request before giving up on it
     public static final float SERVER_FAILURE_PROB = 0;
     public static final float CLIENT_FAILURE_PROB = 0;
 
-    public static final int MESSAGE_ID_LENGTH = 16;             // number of alphanumeric characters in each message id
+    public static final int MESSAGE_ID_LENGTH = 16;             // number of bytes in each message id: the client id and the sequence number
+    public static final int CLIENT_ID_INDEX = 0;                // 64 bit id of the client, drawn at random when it starts
+    public static final int SEQUENCE_INDEX = 8;                 // 64 bit sequence number of the request, one up from the previous request of the client
+    public static final int REPLY_SEQUENCE_LENGTH = 8;          // the sequence number of the request is sent after every reply, so the client can match the reply to it
     public static final int BYTE_BLOCK_SIZE = 4;                // number of bytes in each block of bytes
     public static final int BYTE_BLOCK_SIZE_FOR_INT = 4;        // Number of bytes for an int value
     public static final int ASCII_CODE_FOR_PADDING = 95;        // ASCII Code for '_'
@@ -23,8 +71,25 @@ public class Constants {
     */
     public static final int MESSAGE_INFO_START_INDEX = 20;
 
+    /*
+      Binary wire format (version 2)
+      A v2 request carries the version byte right after the message id, where a v1 request has the first byte of its
+      4 byte action code, which is always 0. The action code then follows as a single byte, and then the sequence number
+      up to which the client is done with its requests, so the server can drop their replies.
+      A v2 reply starts with the version byte, where a v1 reply has the first byte of the length of its status code.
+    */
+    public static final int WIRE_FORMAT_VERSION = 2;            // format used by the client for its requests, 1 or 2
+    public static final byte PROTOCOL_V2 = 2;
+    public static final int PROTOCOL_VERSION_INDEX = 16;
+    public static final int BINARY_ACTION_INDEX = 17;
+    public static final int BINARY_ACKNOWLEDGED_INDEX = 18;
+    public static final int BINARY_INFO_START_INDEX = 26;
+    public static final int MINOR_UNITS = 100;                  // amounts are kept and sent in the binary format in cents
+    public static final int MINOR_UNIT_DIGITS = 2;              // number of decimal places in an amount
+
     /* Option codes for each action to be taken at the server */
     public static final int CACHED_REPLY = 0;
+    public static final int ERROR_REPLY = -1;                           // not a request code, the reply is an error status, sent but never published
     public static final int ACC_CREATION_CODE = 1;                      // integer code for opening an account
     public static final int DEPOSIT_MONEY_CODE = 2;                     // integer code for opening an account
     public static final int WITHDRAW_MONEY_CODE = 3;                    // integer code for opening an account
@@ -33,6 +98,10 @@ public class Constants {
     public static final int ADD_OBSERVERS_FOR_MONITORING_CODE = 6;      // integer code for account to monitor updates
     public static final int ACC_BALANCE_CODE = 7;                       // integer code for account balance query
     public static final int REMOVE_OBSERVERS_FROM_MONITORING_CODE = 8;  // integer code for account to removed from monitoring updates
+    public static final int SHARD_MAP_CODE = 9;                         // integer code for the shard map of a sharded server, binary format only
+    public static final int BATCH_CODE = 10;                            // integer code for a batch of account operations run in order, binary format only
+    public static final int BATCH_MAX_OPERATIONS = 64;                  // the most operations in one batch, so the results fit in one reply
+    public static final int BATCH_OPERATION_HEADER = 3;                 // the code and the length of the fields of each operation in a batch
 
     /* Constants for reading in inputs */
     public static final char NEW = 'n';
@@ -43,6 +112,11 @@ public class Constants {
     public static final String UNAUTHORIZED = "401";
     public static final String INSUFFICIENT = "402";
     public static final String NOT_FOUND = "404";
+    public static final String MISDIRECTED = "421";             // the account is held by another shard
+    public static final String BAD_REQUEST = "400";             // an operation in a batch that could not be run
+    public static final String STORE_FULL = "507";              // the account store cannot hold another account
+    public static final String TIMED_OUT = "408";               // never sent by a server, the client gave up on the request after MAX_ATTEMPTS
+    public static final String[] STATUS_CODES = {OK, UNAUTHORIZED, INSUFFICIENT, NOT_FOUND, MISDIRECTED, BAD_REQUEST, STORE_FULL};       // the binary format sends the index of the status code
 
     /* Constants for actions taken on the accounts */
     public static final String AccountCreation = "Account Creation";
@@ -52,9 +126,15 @@ public class Constants {
     public static final String DepositFunds = "Deposit of Funds";
     public static final String TransferFundsIn = "Transfer of Funds In";
     public static final String TransferFundsOut = "Transfer of Funds Out";
+    public static final String[] ACTIONS = {AccountCreation, AccountClosure, CheckBalance, WithdrawFunds,
+            DepositFunds, TransferFundsIn, TransferFundsOut};                                       // the binary format sends the index of the action
 
-    /* EXCHANGE RATE, taking SGD as 1.0 */
-    public static final double sgdExchangeRate = 1.00;
-    public static final double nzdExchangeRate = 1.07;
-    public static final double usdExchangeRate = 0.73;
+    /*
+      EXCHANGE RATE, taking SGD as 1.0
+      Kept as fixed point numbers scaled by EXCHANGE_RATE_SCALE, e.g. 10700 for 1.07, so conversions use integer arithmetic
+    */
+    public static final long EXCHANGE_RATE_SCALE = 10000;
+    public static final long sgdExchangeRate = 10000;
+    public static final long nzdExchangeRate = 10700;
+    public static final long usdExchangeRate = 7300;
 }
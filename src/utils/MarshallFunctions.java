@@ -3,16 +3,20 @@ package utils;
 import objects.Account;
 import objects.Currency;
 import objects.Pointer;
+import objects.StringView;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+import static utils.BinaryMarshallFunctions.*;
 import static utils.Constants.*;
 import static utils.Constants.BYTE_BLOCK_SIZE;
 import static utils.UtilityFunctions.*;
 
 public class MarshallFunctions {
+    private static final Currency[] CURRENCIES = Currency.values();
+
     /**
      * Function to marshall a piece of String data
      *
@@ -26,6 +30,86 @@ public class MarshallFunctions {
         return concatWithCopy(lengthByteArray, valByteArray);
     }
 
+    /**
+     * Function to marshall a piece of String data directly into a ByteBuffer, used for replies on the server side
+     * Gives the same bytes as marshall(String), ASCII text is written without being copied into an array first
+     *
+     * @param val the string to be marshalled
+     * @param buffer the ByteBuffer to write into
+     */
+    public static void marshall(String val, ByteBuffer buffer) {
+        if (isAscii(val)) {
+            buffer.putInt(val.length());
+            putAscii(buffer, val);
+            pad(buffer, val.length());
+        } else {
+            byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            pad(buffer, bytes.length);
+        }
+    }
+
+    /**
+     * Function to marshall a whole number (e.g. an account number) as a string directly into a ByteBuffer
+     *
+     * @param val the number, not negative
+     * @param buffer the ByteBuffer to write into
+     */
+    public static void marshallNumber(long val, ByteBuffer buffer) {
+        int digits = 1;
+        for (long rest = val / 10; rest > 0; rest /= 10)
+            digits++;
+        buffer.putInt(digits);
+        putDigits(buffer, val, digits);
+        pad(buffer, digits);
+    }
+
+    /**
+     * Function to marshall a monetary amount as a string with 2 decimal places (e.g. "1000.50") directly into a ByteBuffer
+     *
+     * @param cents the amount in cents, not negative
+     * @param buffer the ByteBuffer to write into
+     */
+    public static void marshallAmount(long cents, ByteBuffer buffer) {
+        long whole = cents / MINOR_UNITS;
+        int digits = 1;
+        for (long rest = whole / 10; rest > 0; rest /= 10)
+            digits++;
+        buffer.putInt(digits + 3);
+        putDigits(buffer, whole, digits);
+        buffer.put((byte) '.');
+        putDigits(buffer, cents % MINOR_UNITS, 2);
+        pad(buffer, digits + 3);
+    }
+
+    /**
+     * Write the last digits of a number as ASCII characters, with leading zeros if needed
+     *
+     * @param buffer the ByteBuffer to write into
+     * @param val the number
+     * @param digits number of digits to write
+     */
+    private static void putDigits(ByteBuffer buffer, long val, int digits) {
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            buffer.put(i, (byte) ('0' + val % 10));
+            val /= 10;
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Add the '_' padding that makes the length of a field a multiple of 4
+     *
+     * @param buffer the ByteBuffer to write into
+     * @param dataLength length of the field
+     */
+    private static void pad(ByteBuffer buffer, int dataLength) {
+        for (int i = dataLength % BYTE_BLOCK_SIZE; i != 0 && i < BYTE_BLOCK_SIZE; i++)
+            buffer.put((byte) ASCII_CODE_FOR_PADDING);
+    }
+
     /**
      * Function to unmarshall data
      *
@@ -49,6 +133,150 @@ public class MarshallFunctions {
         return data;
     }
 
+    /**
+     * Function to unmarshall a String field in place, without copying it out of the request
+     *
+     * @param point   Pointer class to keep track of pointer value, an index into the ByteBuffer holding the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return a view of the field in the request
+     */
+    public static StringView unmarshallView(Pointer point, ByteBuffer request) {
+        int dataLength = request.getInt(point.val);
+        int start = point.val + BYTE_BLOCK_SIZE;
+        checkField(request, start, dataLength);
+        StringView data = new StringView(request.array(), request.arrayOffset() + start, dataLength);
+        point.val = fieldEnd(start, dataLength);
+        return data;
+    }
+
+    /**
+     * Function to unmarshall a String field read in place from the request
+     *
+     * @param point   Pointer class to keep track of pointer value, an index into the ByteBuffer holding the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return unmarshalled data in the form of a string
+     */
+    public static String unmarshall(Pointer point, ByteBuffer request) {
+        int dataLength = request.getInt(point.val);
+        int start = point.val + BYTE_BLOCK_SIZE;
+        checkField(request, start, dataLength);
+        String data = new String(request.array(), request.arrayOffset() + start, dataLength, StandardCharsets.UTF_8);
+        point.val = fieldEnd(start, dataLength);
+        return data;
+    }
+
+    /**
+     * Function to unmarshall a whole number (e.g. an account number) sent as a string, parsing the digits in place
+     *
+     * @param point   Pointer class to keep track of pointer value, an index into the ByteBuffer holding the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return the number
+     * @exception NumberFormatException if the field is not a whole number
+     */
+    public static int unmarshallInt(Pointer point, ByteBuffer request) {
+        int dataLength = request.getInt(point.val);
+        int start = point.val + BYTE_BLOCK_SIZE;
+        if (dataLength == 0 || dataLength > 10)
+            throw new NumberFormatException();
+        checkField(request, start, dataLength);
+
+        long value = 0;
+        for (int i = start; i < start + dataLength; i++) {
+            int digit = request.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException();
+            value = value * 10 + digit;
+        }
+        if (value > Integer.MAX_VALUE)
+            throw new NumberFormatException();
+        point.val = fieldEnd(start, dataLength);
+        return (int) value;
+    }
+
+    /**
+     * Function to unmarshall a monetary amount sent as a string, parsing the digits in place
+     * The amount is rounded half up to 2 decimal places, amounts of more than 16 characters or not written as plain
+     * decimals (e.g. "1.0E7") are parsed as a String instead, so that the cents cannot overflow
+     *
+     * @param point   Pointer class to keep track of pointer value, an index into the ByteBuffer holding the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return the amount in cents
+     * @exception NumberFormatException if the field is not an amount
+     * @exception IllegalArgumentException with BAD_REQUEST if the amount is negative
+     */
+    public static long unmarshallAmount(Pointer point, ByteBuffer request) {
+        long cents = parseAmount(point, request);
+        if (cents < 0)
+            throw new IllegalArgumentException(BAD_REQUEST);
+        return cents;
+    }
+
+    private static long parseAmount(Pointer point, ByteBuffer request) {
+        int dataLength = request.getInt(point.val);
+        int start = point.val + BYTE_BLOCK_SIZE;
+        if (dataLength == 0 || dataLength > 16)
+            return parseMinorUnits(unmarshall(point, request));
+        checkField(request, start, dataLength);
+
+        long cents = 0;
+        int decimals = -1;          // number of digits read after the decimal point, -1 before the decimal point
+        boolean roundUp = false;
+        for (int i = start; i < start + dataLength; i++) {
+            byte b = request.get(i);
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                if (decimals < 2) {
+                    cents = cents * 10 + (b - '0');
+                    if (decimals >= 0)
+                        decimals++;
+                } else if (decimals == 2) {
+                    roundUp = b >= '5';
+                    decimals++;
+                }
+            } else {
+                return parseMinorUnits(unmarshall(point, request));
+            }
+        }
+        for (int i = Math.max(decimals, 0); i < 2; i++)
+            cents *= 10;
+        if (roundUp)
+            cents++;
+        point.val = fieldEnd(start, dataLength);
+        return cents;
+    }
+
+    /**
+     * Function to unmarshall a currency code sent as a string, comparing it in place against the currencies available
+     *
+     * @param point   Pointer class to keep track of pointer value, an index into the ByteBuffer holding the request
+     * @param request ByteBuffer holding the request as it was received
+     * @return the currency
+     * @exception IllegalArgumentException if the currency is not available
+     */
+    public static Currency unmarshallCurrency(Pointer point, ByteBuffer request) {
+        StringView code = unmarshallView(point, request);
+        for (Currency currency : CURRENCIES) {
+            if (code.contentEquals(currency.name()))
+                return currency;
+        }
+        throw new IllegalArgumentException("Unknown currency " + code);
+    }
+
+    /**
+     * Find the end of a field, after the padding that makes its length a multiple of 4
+     *
+     * @param start index of the first byte of the field after its length
+     * @param dataLength length of the field
+     * @return index of the next field
+     */
+    private static int fieldEnd(int start, int dataLength) {
+        int end = start + dataLength;
+        if (dataLength % BYTE_BLOCK_SIZE != 0)
+            end += (BYTE_BLOCK_SIZE - (dataLength % BYTE_BLOCK_SIZE));
+        return end;
+    }
+
     /**
      * Function to unmarshall account details on the client side
      *
@@ -60,25 +288,59 @@ public class MarshallFunctions {
         int accNumber = Integer.parseInt(unmarshall(pointer, reply));
         String name = unmarshall(pointer, reply);
         Currency currency = Currency.valueOf(unmarshall(pointer, reply));
-        double accBalance = Double.parseDouble(unmarshall(pointer, reply));
+        long accBalance = parseMinorUnits(unmarshall(pointer, reply));
         String accAction = unmarshall(pointer, reply);
         return new Account(name, currency, accBalance, accNumber, accAction);
     }
 
     /**
      * Function to marshall account details on the server side
+     * The reply is written straight into the reply buffer, one field after the other
      *
      * @param account the Account object containing the account details
-     * @return byte[] array of the account details
+     * @param reply the ByteBuffer the reply is written into
      */
-    public static byte[] marshallAccount(Account account) {
-        byte[] statusCodeByteArray = marshall(OK);
-        byte[] accountNumberByteArray = marshall(String.valueOf(account.getAccNumber()));
-        byte[] nameByteArray = marshall(account.getName());
-        byte[] currencyByteArray = marshall(account.getCurrency().name());
-        byte[] accBalanceByteArray = marshall(String.valueOf(account.getAccBalance()));
-        byte[] accActionTakenArray = marshall(account.getAction());
+    public static void marshallAccount(Account account, ByteBuffer reply) {
+        marshall(OK, reply);
+        marshallNumber(account.getAccNumberValue(), reply);
+        marshall(account.getName(), reply);
+        marshall(account.getCurrency().name(), reply);
+        marshallAmount(account.getAccBalance(), reply);
+        marshall(account.getAction(), reply);
+    }
 
-        return concatWithCopy(statusCodeByteArray, accountNumberByteArray, nameByteArray, currencyByteArray, accBalanceByteArray, accActionTakenArray);
+    /**
+     * Function to unmarshall a reply holding account details on the client side, in either wire format
+     *
+     * @param reply the byte[] array containing the reply from the server
+     * @return Account object containing details from the server
+     * @exception IllegalArgumentException carrying the status code if the server did not reply OK
+     */
+    public static Account unmarshallAccountReply(byte[] reply) {
+        String statusCode;
+        if (isBinaryReply(reply)) {
+            ByteBuffer buffer = ByteBuffer.wrap(reply);
+            statusCode = unmarshallStatusBinary(buffer);
+            if (statusCode.equals(OK))
+                return unmarshallAccountBinary(buffer);
+        } else {
+            Pointer pointer = new Pointer(0);
+            statusCode = unmarshall(pointer, reply);
+            if (statusCode.equals(OK))
+                return unmarshallAccount(pointer, reply);
+        }
+        throw new IllegalArgumentException(statusCode);
+    }
+
+    /**
+     * Function to unmarshall the status code of a reply on the client side, in either wire format
+     *
+     * @param reply the byte[] array containing the reply from the server
+     * @return the status code
+     */
+    public static String unmarshallStatusReply(byte[] reply) {
+        if (isBinaryReply(reply))
+            return unmarshallStatusBinary(ByteBuffer.wrap(reply));
+        return unmarshall(new Pointer(0), reply);
     }
 }
@@ -1,62 +1,101 @@
 package utils;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Locale;
-import java.util.Objects;
-import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static utils.Constants.MESSAGE_ID_LENGTH;
+import static utils.Constants.REPLY_WINDOW;
 
 /**
- * A utility class to generate a random alphanumeric string of length n, where n >= 1
- * Adapted from https://stackoverflow.com/questions/41107/how-to-generate-a-random-alpha-numeric-string
+ * Generates the message ids of the requests of one client
+ * A message id is MESSAGE_ID_LENGTH bytes: the 64 bit id of the client, drawn at random once, followed by a 64 bit
+ * sequence number that goes up by one with every request. The server tells requests apart by the two numbers alone.
+ *
+ * The generator also tracks the requests the client is done with, having their reply or having given up on them; the
+ * sequence number up to which it is done with every request is sent along with each binary request, so the server can
+ * drop their replies right away.
  */
 public class MessageIDGenerator {
-    /* Declaration of constants and character arrays */
-    public static final String upper = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-    public static final String lower = upper.toLowerCase(Locale.ROOT);
-    public static final String digits = "0123456789";
-    public static final String alphanumeric = upper + lower + digits;
+    private static final SecureRandom random = new SecureRandom();
 
-    /* Declaration of variables */
-    private final Random random;
-    private final char[] symbols;
-    private final char[] buf;
+    private final long clientID;
+    private final AtomicLong sequence = new AtomicLong();
+    private final TreeSet<Long> doneAhead = new TreeSet<>();        // requests done with after the first one still outstanding
+    private long acknowledged;                                      // the client is done with every request up to this sequence number
 
     /**
-     * Main Constructor to initialize the Random object and the character arrays
+     * Constructor to set up the generator of a client
      *
-     * @param length  the length of the random alphanumeric string to be generated
-     * @param random  the Java Random object
-     * @param symbols the String containing the symbols that will be used to form the random String
+     * @param clientID the id of the client
+     */
+    public MessageIDGenerator(long clientID) {
+        this.clientID = clientID;
+    }
+
+    /**
+     * Simplified constructor to set up the generator of a new client, with a random client id
      */
-    public MessageIDGenerator(int length, Random random, String symbols) {
-        if (length < 1)
-            throw new IllegalArgumentException();
-        if (symbols.length() < 2)
-            throw new IllegalArgumentException();
+    public MessageIDGenerator() {
+        this(random.nextLong());
+    }
 
-        this.random = Objects.requireNonNull(random);
-        this.symbols = symbols.toCharArray();
-        this.buf = new char[length];
+    /**
+     * @return the id of the client
+     */
+    public long clientID() {
+        return clientID;
     }
 
     /**
-     * Simplified constructor to set up the random string generator
+     * @return the sequence number of the next request, starting at 1
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Mark a request as done with, after which it is never sent again
+     * Requests more than REPLY_WINDOW before it count as done with too, the server no longer answers them anyway
      *
-     * @param length an integer value containing the length of the random string to be generated
+     * @param sequence sequence number of the request
      */
-    public MessageIDGenerator(int length) {
-        this(length, new SecureRandom(), alphanumeric);
+    public synchronized void acknowledge(long sequence) {
+        long floor = sequence - REPLY_WINDOW;
+        if (floor > acknowledged) {
+            acknowledged = floor;
+            doneAhead.headSet(floor, true).clear();
+        }
+        if (sequence > acknowledged)
+            doneAhead.add(sequence);
+        while (doneAhead.remove(acknowledged + 1))
+            acknowledged++;
     }
 
+    /**
+     * @return the sequence number up to which the client is done with every request
+     */
+    public synchronized long acknowledged() {
+        return acknowledged;
+    }
 
     /**
-     * The method to actually generate a random string
+     * Write the message id of the next request
      *
-     * @return the randomly generated alphanumeric String
+     * @param buffer the ByteBuffer to write into, at its position
+     */
+    public void putNext(ByteBuffer buffer) {
+        buffer.putLong(clientID);
+        buffer.putLong(nextSequence());
+    }
+
+    /**
+     * @return the message id of the next request
      */
-    public String nextString() {
-        for (int idx = 0; idx < buf.length; ++idx)
-            buf[idx] = symbols[random.nextInt(symbols.length)];
-        return new String(buf);
+    public byte[] next() {
+        ByteBuffer id = ByteBuffer.allocate(MESSAGE_ID_LENGTH);
+        putNext(id);
+        return id.array();
     }
 }
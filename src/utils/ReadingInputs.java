@@ -1,9 +1,11 @@
 package utils;
 
 import objects.Currency;
+import objects.Subscription;
 
 import java.util.Scanner;
 
+import static utils.Constants.ACTIONS;
 import static utils.Constants.EXISTING;
 import static utils.ErrorHandling.*;
 
@@ -187,4 +189,52 @@ public class ReadingInputs {
             }
         }
     }
+
+    /**
+     * A function to read in the accounts and actions to monitor
+     * @return the subscription, to every update if both are left blank
+     */
+    public static Subscription readMonitorSubscription() {
+        int[] accNumbers;
+        while (true) {
+            System.out.println("Enter the account numbers to monitor, separated by spaces (leave blank for all accounts): ");
+            String[] fields = scanner.nextLine().trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                accNumbers = new int[0];
+                break;
+            }
+            try {
+                accNumbers = new int[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    if (!verifyAccNumber(fields[i]))
+                        throw new NumberFormatException(fields[i]);
+                    accNumbers[i] = Integer.parseInt(fields[i]);
+                }
+                break;
+            } catch (NumberFormatException invalidFormat) {
+                System.out.println("Invalid account number entered");
+            }
+        }
+
+        while (true) {
+            System.out.println("Select the actions to monitor, separated by spaces (leave blank for all actions): ");
+            for (int i = 0; i < ACTIONS.length; i++)
+                System.out.printf("%d. %s\n", i + 1, ACTIONS[i]);
+            String[] fields = scanner.nextLine().trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty())
+                return new Subscription(accNumbers, Subscription.ALL_ACTIONS);
+            try {
+                int actions = 0;
+                for (String field : fields) {
+                    int option = Integer.parseInt(field);
+                    if (option < 1 || option > ACTIONS.length)
+                        throw new NumberFormatException(field);
+                    actions |= Subscription.actionBit(option - 1);
+                }
+                return new Subscription(accNumbers, actions);
+            } catch (NumberFormatException invalidFormat) {
+                System.out.println("Invalid input entered");
+            }
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package utils;
+
+/**
+ * How one request fared: the number of times it was sent, and how long its reply took
+ */
+public class RequestStats {
+    private final int attempts;
+    private final long rttNanos;
+    private final long latencyNanos;
+    private final boolean replied;
+
+    /**
+     * Constructor to record a request
+     *
+     * @param attempts the number of times the request was sent
+     * @param rttNanos time from the last attempt to the reply, in nanoseconds
+     * @param latencyNanos time from the first attempt to the reply, or to giving up, in nanoseconds
+     * @param replied whether a reply arrived before the client gave up
+     */
+    public RequestStats(int attempts, long rttNanos, long latencyNanos, boolean replied) {
+        this.attempts = attempts;
+        this.rttNanos = rttNanos;
+        this.latencyNanos = latencyNanos;
+        this.replied = replied;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the number of times the request was sent again
+     */
+    public int getRetries() {
+        return attempts - 1;
+    }
+
+    public long getRttNanos() {
+        return rttNanos;
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public boolean isReplied() {
+        return replied;
+    }
+
+    @Override
+    public String toString() {
+        return replied ? String.format("%d attempts, rtt %.3f ms, latency %.3f ms", attempts, rttNanos / 1e6, latencyNanos / 1e6)
+                : String.format("%d attempts, no reply after %.3f ms", attempts, latencyNanos / 1e6);
+    }
+}
@@ -0,0 +1,81 @@
+package utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static utils.Constants.MAX_RTO;
+import static utils.Constants.MIN_RTO;
+import static utils.Constants.RTO_JITTER;
+import static utils.Constants.atLeastOnceTimeout;
+
+/**
+ * The retransmission timeout of the requests a client sends to one server, estimated from their round trip times as
+ * TCP does (Jacobson and Karels): a smoothed round trip time SRTT and its mean deviation RTTVAR are updated with every
+ * sample, and the timeout is SRTT + 4 RTTVAR, kept between MIN_RTO and MAX_RTO
+ * Each time a request times out, the timeout doubles until the next sample. Only requests replied to on their first
+ * attempt give a sample, the reply to a request sent again may answer any of its attempts (Karn's algorithm).
+ * A random jitter of up to RTO_JITTER of the timeout is added, so clients that lost their requests together do not
+ * send them again together.
+ */
+public class RetransmissionTimer {
+    private double srtt;            // in milliseconds
+    private double rttvar;          // in milliseconds
+    private boolean measured;       // whether there has been a sample yet
+    private int rto = atLeastOnceTimeout;
+    private int backoff;            // requests timed out since the last sample
+
+    /**
+     * @return the time in milliseconds to wait for the reply to the next attempt, backed off and with jitter
+     */
+    public int timeout() {
+        int timeout = (int) Math.min(MAX_RTO, (long) rto << backoff);
+        return timeout + ThreadLocalRandom.current().nextInt((int) (timeout * RTO_JITTER) + 1);
+    }
+
+    /**
+     * Doubles the timeout, up to MAX_RTO, after an attempt got no reply
+     */
+    public void timedOut() {
+        if ((long) rto << backoff < MAX_RTO)
+            backoff++;
+    }
+
+    /**
+     * Updates the estimate with the round trip time of a request replied to on its first attempt
+     *
+     * @param rttNanos the round trip time in nanoseconds
+     */
+    public void sample(long rttNanos) {
+        double rtt = rttNanos / 1e6;
+        if (!measured) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        rto = (int) Math.max(MIN_RTO, Math.min(MAX_RTO, Math.ceil(srtt + Math.max(1, 4 * rttvar))));     // at least the 1 ms granularity of the socket timeout
+        backoff = 0;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, 0 before the first sample
+     */
+    public double srtt() {
+        return srtt;
+    }
+
+    /**
+     * @return the mean deviation of the round trip time in milliseconds, 0 before the first sample
+     */
+    public double rttvar() {
+        return rttvar;
+    }
+
+    /**
+     * @return the retransmission timeout in milliseconds, before backoff and jitter
+     */
+    public int rto() {
+        return rto;
+    }
+}
@@ -1,80 +1,20 @@
 package utils;
 
 import objects.Account;
-import objects.Pointer;
+import objects.Subscription;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 
 import static utils.ClientMessage.DisplayAccountDetailsMonitoring;
 import static utils.Constants.*;
-import static utils.MarshallFunctions.unmarshall;
-import static utils.MarshallFunctions.unmarshallAccount;
+import static utils.MarshallFunctions.unmarshallAccountReply;
 
 public class SocketFunctions {
-    /**
-     * Function to send data in the form of a byte array to the server for processing
-     *
-     * @param marshall the byte array to be sent over
-     * @return the reply message from the server
-     */
-    public static byte[] sendRequest(byte[] marshall) {
-        try (DatagramSocket aSocket = new DatagramSocket()) {
-            InetAddress aHost = InetAddress.getByName(HOST_NAME);     // translate user-specified hostname to Internet address
-
-            DatagramPacket request = new DatagramPacket(marshall, marshall.length, aHost, SERVER_PORT_NUMBER);
-            aSocket.send(request);
-
-            byte[] buffer = new byte[BUFFER_SIZE];     // a buffer for receive
-            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-
-            //If exceed timeout period, exception will be raised
-            aSocket.setSoTimeout(atLeastOnceTimeout); //2000s set inside constants.java
-            aSocket.receive(reply);
-            return reply.getData();
-        }
-        catch(SocketTimeoutException e) {
-            return null;    // so that the parent function can resend this request
-        }
-        catch (Exception e) {
-            System.out.println();
-        }
-
-        return null;
-    }
-
-    /**
-     * Function to send a request to the server for the client to added into the monitoring list
-     *
-     * @param marshall the byte array to be sent over
-     * @param aSocket the DatagramSocket opened
-     * @return the reply message from the server
-     */
-    public static byte[] sendRequestForMonitoring(byte[] marshall, DatagramSocket aSocket) {
-        try {
-            InetAddress aHost = InetAddress.getByName(HOST_NAME);     // translate user-specified hostname to Internet address
-
-            DatagramPacket request = new DatagramPacket(marshall, marshall.length, aHost, SERVER_PORT_NUMBER);
-            aSocket.send(request);
-
-            byte[] buffer = new byte[BUFFER_SIZE];     // a buffer for receive
-            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-
-            //If exceed timeout period, exception will be raised
-            aSocket.setSoTimeout(atLeastOnceTimeout); //2000s set inside constants.java
-            aSocket.receive(reply);
-            return reply.getData();
-        }
-        catch(SocketTimeoutException e) {
-            return null;    // so that parent function can resend this request
-        }
-        catch (Exception e) {
-            System.out.println();
-        }
-        return null;
-    }
-
     /**
      * Function for client to monitor updates from the server
      * Timekeeping will be done on the client side where we calculate the future time by which the monitoring should be stopped
@@ -87,6 +27,20 @@ public class SocketFunctions {
      * @exception IOException for unknown exceptions thrown
      */
     public static void monitorServer(int duration, DatagramSocket aSocket) throws IOException {
+        monitorServer(duration, aSocket, Subscription.ALL);
+    }
+
+    /**
+     * Function for client to monitor the updates from the server it subscribed to
+     * The server only sends the updates of a subscription to a client registered for them, but every update to the
+     * multicast group and every update to a client sending v1 requests, so the client checks them as well
+     *
+     * @param duration amount in seconds to monitor server
+     * @param aSocket the DatagramSocket opened to receive data from the server, or a MulticastSocket joined to the group
+     * @param subscription the accounts and actions to display the updates of
+     * @exception IOException for unknown exceptions thrown
+     */
+    public static void monitorServer(int duration, DatagramSocket aSocket, Subscription subscription) throws IOException {
         LocalDateTime endTime = LocalDateTime.now().plusSeconds(duration);
         while (LocalDateTime.now().isBefore(endTime)) {
             try {
@@ -95,24 +49,12 @@ public class SocketFunctions {
                 aSocket.setSoTimeout(1);
                 aSocket.receive(update);
 
-                Pointer pointer = new Pointer(0);
-                String statusCode = unmarshall(pointer, update.getData());
-                switch (statusCode) {
-                    case OK: {
-                        Account acc = unmarshallAccount(pointer, update.getData());
-                        DisplayAccountDetailsMonitoring(acc.getAccNumber(), acc.getName(), acc.getCurrency(), acc.getAccBalance(), acc.getAction());
-                        System.out.println("Monitoring updates...");
-                        System.out.println();
-                        break;
-                    }
-                    /* the below cases will not happen */
-                    case NOT_FOUND:
-                        throw new IllegalArgumentException(NOT_FOUND);
-                    case UNAUTHORIZED:
-                        throw new IllegalArgumentException(UNAUTHORIZED);
-                    default:
-                        throw new Exception();
-                }
+                Account acc = unmarshallAccountReply(update.getData());      // updates are only sent for successful actions
+                if (!subscription.matches(acc.getAccNumberValue(), Arrays.asList(ACTIONS).indexOf(acc.getAction())))
+                    continue;
+                DisplayAccountDetailsMonitoring(acc.getAccNumber(), acc.getName(), acc.getCurrency(), acc.getAccBalance(), acc.getAction());
+                System.out.println("Monitoring updates...");
+                System.out.println();
             } catch (SocketTimeoutException ignored) {
                 // to exit checking for replies from the server
             } catch (Exception e) {
@@ -121,17 +63,86 @@ public class SocketFunctions {
         }
     }
 
+    /**
+     * Function to find the network interface the monitoring multicast group is used on
+     *
+     * @return the interface named MONITOR_MULTICAST_INTERFACE, or the loopback interface
+     * @exception IOException if there is no such interface
+     */
+    public static NetworkInterface monitorInterface() throws IOException {
+        NetworkInterface networkInterface = MONITOR_MULTICAST_INTERFACE != null ? NetworkInterface.getByName(MONITOR_MULTICAST_INTERFACE)
+                : NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        if (networkInterface == null)
+            throw new SocketException("No network interface " + MONITOR_MULTICAST_INTERFACE);
+        return networkInterface;
+    }
+
+    /**
+     * Function to open the DatagramChannel the server sends the monitoring updates to the multicast group through
+     *
+     * @return the DatagramChannel, sending on the monitoring interface
+     * @exception IOException if the channel cannot be opened
+     */
+    public static DatagramChannel openMulticastChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, monitorInterface());
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);        // so clients on the server's own host get the updates
+        return channel;
+    }
+
+    /**
+     * Function for client to join the monitoring multicast group, in place of registering with the servers
+     *
+     * @return a MulticastSocket receiving the updates sent to the group
+     * @exception IOException if the group cannot be joined
+     */
+    public static MulticastSocket joinMonitorGroup() throws IOException {
+        MulticastSocket socket = new MulticastSocket(MONITOR_MULTICAST_PORT);
+        socket.joinGroup(new InetSocketAddress(InetAddress.getByName(MONITOR_MULTICAST_GROUP), 0), monitorInterface());
+        return socket;
+    }
+
+    /**
+     * Function to open the server's DatagramChannel
+     * The channel is bound once when the server starts and is then used for every receive and reply,
+     * so no datagram is dropped between a close and a re-bind of the server port
+     *
+     * @param port the port the server listens on
+     * @return the bound DatagramChannel
+     * @exception IOException if the port cannot be bound
+     */
+    public static DatagramChannel openServerChannel(int port) throws IOException {
+        return openServerChannel(port, false);
+    }
+
+    /**
+     * Function to open one of several DatagramChannels bound to the same port
+     * With SO_REUSEPORT set on every channel, the kernel spreads the clients over the channels, always delivering the
+     * datagrams of one client to the same channel (only supported on Linux)
+     *
+     * @param port the port the server listens on
+     * @param reusePort whether other channels may bind the same port
+     * @return the bound DatagramChannel
+     * @exception IOException if the port cannot be bound
+     */
+    public static DatagramChannel openServerChannel(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
     /**
      * Function to receive requests from the clients
      *
-     * @param buffer byte array to be used in the DatagramPacket
-     * @return DatagramPacket with data from client
+     * @param channel the server's DatagramChannel
+     * @param buffer ByteBuffer the datagram is written into, its position is set to the length of the datagram
+     * @return address of the client that sent the datagram
      */
-    public static DatagramPacket receiveRequest(byte[] buffer) {
-        try (DatagramSocket aSocket = new DatagramSocket(SERVER_PORT_NUMBER)) {
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
-            aSocket.receive(request);
-            return request;
+    public static SocketAddress receiveRequest(DatagramChannel channel, ByteBuffer buffer) {
+        try {
+            return channel.receive(buffer);
         } catch (IOException ioException) {
             ioException.printStackTrace();
         }
@@ -141,45 +152,64 @@ public class SocketFunctions {
     /**
      * Function to send reply from server to client
      *
-     * @param request Original DatagramPacket from client
-     * @param reply   byte array to for the reply DatagramPacket
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the original request
+     * @param reply byte array containing the reply message
      */
-    public static void sendReply(DatagramPacket request, byte[] reply, float failureProb) {
-        try (DatagramSocket aSocket = new DatagramSocket(SERVER_PORT_NUMBER)) {
-            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length,
-                    request.getAddress(), request.getPort());
-            aSocket.send(replyPacket);
+    public static void sendReply(DatagramChannel channel, SocketAddress clientAddress, byte[] reply) {
+        try {
+            channel.send(ByteBuffer.wrap(reply), clientAddress);
         } catch (IOException ioException) {
             ioException.printStackTrace();
         }
     }
 
     /**
-     * Function for the Observer objects to notify the clients they represent of the updates taking place in the server
-     * @param reply the byte array containing the update to be sent to the client
-     * @param ip ip address of client
-     * @param port port the client is listening on
+     * Function to send a reply marshalled into a ByteBuffer from server to client, without copying it out of the buffer
+     *
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the original request
+     * @param reply ByteBuffer holding the reply message from its position to its limit, its position is left unchanged
      */
-    public static void sendMonitorReply(byte[] reply, InetAddress ip, int port) {
-        try (DatagramSocket aSocket = new DatagramSocket(SERVER_PORT_NUMBER)) {
-            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length,
-                    ip, port);
-            aSocket.send(replyPacket);
+    public static void sendReply(DatagramChannel channel, SocketAddress clientAddress, ByteBuffer reply) {
+        int position = reply.position();
+        try {
+            channel.send(reply, clientAddress);
         } catch (IOException ioException) {
             ioException.printStackTrace();
+        } finally {
+            reply.position(position);
         }
     }
 
     /**
-     * Function to send reply form server to client
+     * Function to send a reply from server to client followed by the sequence number of the request, by which the client
+     * matches the reply to the request
      *
-     * @param reply Reply in the form of a datagram packet
+     * @param channel the server's DatagramChannel
+     * @param clientAddress address of the client that sent the original request
+     * @param reply ByteBuffer holding the reply message from its position to its limit, with room for the sequence number
+     *              after its limit; its position and limit are left unchanged
+     * @param sequence sequence number of the request
      */
-    public static void sendReply(DatagramPacket reply){
-        try (DatagramSocket aSocket = new DatagramSocket(6789)) {
-            aSocket.send(reply);
-        } catch (IOException ioException){
-            ioException.printStackTrace();
+    public static void sendReply(DatagramChannel channel, SocketAddress clientAddress, ByteBuffer reply, long sequence) {
+        int limit = reply.limit();
+        reply.limit(limit + REPLY_SEQUENCE_LENGTH).putLong(limit, sequence);
+        try {
+            sendReply(channel, clientAddress, reply);
+        } finally {
+            reply.limit(limit);
         }
     }
+
+    /**
+     * Function for the Observer objects to notify the clients they represent of the updates taking place in the server
+     *
+     * @param channel the DatagramChannel of the ObserverDispatcher, shared by every Observer
+     * @param reply ByteBuffer holding the update to be sent to the client
+     * @param clientAddress address the client is listening on
+     */
+    public static void sendMonitorReply(DatagramChannel channel, ByteBuffer reply, SocketAddress clientAddress) {
+        sendReply(channel, clientAddress, reply);
+    }
 }
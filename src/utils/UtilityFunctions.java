@@ -1,9 +1,11 @@
 package utils;
 
-import java.lang.reflect.Array;
+import objects.Currency;
+
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import static utils.Constants.*;
@@ -43,15 +45,10 @@ public class UtilityFunctions {
      * @return the concatenated byte array
      */
     public static byte[] concatWithCopy(byte[]... arrays) {
-
-        Class<?> compType1 = arrays[0].getClass().getComponentType();
         int totalLength = 0;
-
-        for (byte[] array : arrays) {
-            for (int j = 0; j < array.length; j++)
-                totalLength++;
-        }
-        byte[] result = (byte[]) Array.newInstance(compType1, totalLength);
+        for (byte[] array : arrays)
+            totalLength += array.length;
+        byte[] result = new byte[totalLength];
 
         int startingPosition = 0;
         for (byte[] array : arrays) {
@@ -62,6 +59,44 @@ public class UtilityFunctions {
         return result;
     }
 
+    /**
+     * Check whether a String only holds ASCII characters, whose UTF-8 encoding is one byte per character
+     *
+     * @param str the String to check
+     * @return true if every character is ASCII
+     */
+    public static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write an ASCII String into a ByteBuffer one byte per character, without encoding it into a new array first
+     *
+     * @param buffer the ByteBuffer to write into
+     * @param str the String, which must only hold ASCII characters
+     */
+    public static void putAscii(ByteBuffer buffer, String str) {
+        for (int i = 0; i < str.length(); i++)
+            buffer.put((byte) str.charAt(i));
+    }
+
+    /**
+     * Check that a field read in place from a request lies within the bytes received
+     *
+     * @param request ByteBuffer holding the request as it was received
+     * @param start index of the first byte of the field
+     * @param length length of the field, as sent in the request
+     * @exception IllegalArgumentException with BAD_REQUEST if the field runs past the end of the request
+     */
+    public static void checkField(ByteBuffer request, int start, int length) {
+        if (length < 0 || start + length > request.limit())
+            throw new IllegalArgumentException(BAD_REQUEST);
+    }
+
     /**
      * Utility function to convert byte array to an integer
      *
@@ -76,18 +111,121 @@ public class UtilityFunctions {
     }
 
     /**
-     * Function for rounding when dealing with monetary amounts
+     * Function to convert a monetary amount into a whole number of cents
      *
-     * @param value  the double value
-     * @param places the number of decimal places to round
-     * @return the rounded value
+     * @param amount the amount in dollars
+     * @return the amount in cents, rounded to the nearest cent
      */
-    public static double round(double value, int places) {
-        if (places < 0) throw new IllegalArgumentException();
+    public static long toMinorUnits(double amount) {
+        return Math.round(amount * MINOR_UNITS);
+    }
 
-        BigDecimal bd = BigDecimal.valueOf(value);
-        bd = bd.setScale(places, RoundingMode.HALF_UP);
-        return bd.doubleValue();
+    /**
+     * Function to convert a monetary amount written as a decimal (e.g. "1000.505") into a whole number of cents
+     * Rounds half up, i.e. half a cent away from zero
+     *
+     * @param amount the amount in dollars
+     * @return the amount in cents
+     * @exception NumberFormatException if the amount is not a number or does not fit into a long
+     */
+    public static long parseMinorUnits(String amount) {
+        try {
+            return new BigDecimal(amount).setScale(MINOR_UNIT_DIGITS, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException(amount);
+        }
+    }
+
+    /**
+     * Function to write a whole number of cents as a decimal with 2 decimal places, e.g. 100050 as "1000.50"
+     *
+     * @param minorUnits the amount in cents
+     * @return the amount in dollars
+     */
+    public static String formatMinorUnits(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, MINOR_UNIT_DIGITS).toPlainString();
+    }
+
+    /**
+     * Function to convert an amount from one currency into another using integer arithmetic only
+     * The exchange rates are fixed point numbers (see EXCHANGE_RATE_SCALE), the result is rounded half up to the
+     * nearest minor unit, i.e. half a cent away from zero
+     *
+     * @param amount the amount in minor units of the currency it is given in
+     * @param from the currency the amount is given in
+     * @param to the currency to convert the amount into
+     * @return the amount in minor units of the currency converted into
+     * @exception ArithmeticException if the amount is too large to be converted
+     */
+    public static long convertMinorUnits(long amount, Currency from, Currency to) {
+        if (from == to)
+            return amount;
+
+        long fromRate = exchangeRate(from);
+        long scaled = Math.multiplyExact(amount, exchangeRate(to));
+        long converted = scaled / fromRate;
+        long remainder = scaled % fromRate;
+        if (Math.abs(remainder) * 2 >= fromRate)
+            converted += Long.signum(scaled);
+        return converted;
+    }
+
+    /**
+     * Function to look up the exchange rate of a currency, taking SGD as 1.0
+     *
+     * @param currency the currency
+     * @return the exchange rate scaled by EXCHANGE_RATE_SCALE
+     */
+    public static long exchangeRate(Currency currency) {
+        switch (currency) {
+            case NZD:
+                return nzdExchangeRate;
+            case USD:
+                return usdExchangeRate;
+            default:
+                return sgdExchangeRate;
+        }
+    }
+
+    /**
+     * Function to hash a password, salted with the number of the account it is for, so the same password gives a
+     * different hash on every account
+     * 64 bit FNV-1a over the UTF-8 bytes of the password, followed by the MurmurHash3 finaliser
+     * This is a fast hash, not a password hash: every request checks the password, which a deliberately slow key
+     * derivation such as PBKDF2 would make many times dearer than the request itself. The hash is written to the
+     * account table, the snapshots and the write-ahead log, from which a short password is found by brute force in
+     * seconds, so those files hold credential material and are to be kept as private as the passwords.
+     *
+     * @param accNumber the account number
+     * @param password the password
+     * @return the hash
+     */
+    public static long credentialHash(int accNumber, String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        return credentialHash(accNumber, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Function to hash a password held in a byte array as UTF-8, see credentialHash(int, String)
+     *
+     * @param accNumber the account number
+     * @param bytes array holding the password
+     * @param offset index of the first byte of the password
+     * @param length number of bytes in the password
+     * @return the hash
+     */
+    public static long credentialHash(int accNumber, byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L ^ accNumber;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     /**